@@ -0,0 +1,223 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Attributes.Visitor;
+import org.dcm4che3.data.BulkData;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.VR;
+
+/**
+ * Replaces bulk data values of a dataset by a SHA-256 digest of their content,
+ * so that datasets read with
+ * {@link org.dcm4che3.io.DicomInputStream.IncludeBulkData#URI} can be compared
+ * with {@link Attributes#equals(Object)} without loading pixel data into
+ * memory.
+ * 
+ * Digests are cached per file, as long as its modification time and size do
+ * not change. Comparing the same reference file against many outputs therefore
+ * only hashes the reference once.
+ */
+public class BulkDataFingerprints {
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_CACHED_FILES = 1024;
+
+    private static final Map<Path, FileDigests> cache = new LinkedHashMap<Path, FileDigests>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, FileDigests> eldest) {
+            return size() > MAX_CACHED_FILES;
+        }
+    };
+
+    private BulkDataFingerprints() {
+    }
+
+    /**
+     * Replace all bulk data values (also within sequences and encapsulated
+     * pixel data) of a dataset read from the given file by their digest.
+     * 
+     * @param dicomFile
+     *            file the dataset was read from
+     * @param dataset
+     *            dataset read with bulk data URIs, modified in place
+     * @return the given dataset
+     * @throws IOException
+     */
+    public static Attributes fingerprint(Path dicomFile, Attributes dataset) throws IOException {
+        final FileDigests digests = digestsOf(dicomFile);
+        final List<Object[]> replacements = new ArrayList<>();
+        try {
+            dataset.accept(new Visitor() {
+                @Override
+                public boolean visit(Attributes attrs, int tag, VR vr, Object value) throws Exception {
+                    if (value instanceof BulkData) {
+                        replacements.add(new Object[] { attrs, tag, vr, digests.digestOf((BulkData) value) });
+                    } else if (value instanceof Fragments) {
+                        replacements.add(new Object[] { attrs, tag, vr, digests.digestOf((Fragments) value) });
+                    }
+                    return true;
+                }
+            }, true);
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e); // should never happen
+        }
+
+        // replace after visiting, to not modify the datasets while iterating over them
+        for (Object[] replacement : replacements) {
+            ((Attributes) replacement[0]).setValue((Integer) replacement[1], (VR) replacement[2], replacement[3]);
+        }
+        return dataset;
+    }
+
+    /**
+     * Drop all cached digests.
+     */
+    public static void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static FileDigests digestsOf(Path dicomFile) throws IOException {
+        Path key = dicomFile.toAbsolutePath().normalize();
+        BasicFileAttributes fileAttributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long lastModified = fileAttributes.lastModifiedTime().toMillis();
+        long size = fileAttributes.size();
+        synchronized (cache) {
+            FileDigests digests = cache.get(key);
+            if (digests == null || digests.lastModified != lastModified || digests.size != size) {
+                digests = new FileDigests(lastModified, size);
+                cache.put(key, digests);
+            }
+            return digests;
+        }
+    }
+
+    private static MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // should never happen, every JRE supports SHA-256
+        }
+    }
+
+    private static class FileDigests {
+
+        final long lastModified;
+        final long size;
+
+        /**
+         * Digests by bulk data URI, which includes offset and length within
+         * the file.
+         */
+        final Map<String, byte[]> digests = new ConcurrentHashMap<>();
+
+        FileDigests(long lastModified, long size) {
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        byte[] digestOf(BulkData bulkData) throws IOException {
+            String uri = bulkData.getURI();
+            byte[] digest = digests.get(uri);
+            if (digest == null) {
+                MessageDigest md = newMessageDigest();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                // openStream() is positioned at the value, but may not end with it
+                long remaining = bulkData.length() >= 0 ? bulkData.length() : Long.MAX_VALUE;
+                try (InputStream in = bulkData.openStream()) {
+                    int read;
+                    while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                        md.update(buffer, 0, read);
+                        remaining -= read;
+                    }
+                }
+                digest = md.digest();
+                digests.put(uri, digest);
+            }
+            return digest;
+        }
+
+        byte[] digestOf(Fragments fragments) throws IOException {
+            MessageDigest md = newMessageDigest();
+            for (Object fragment : fragments) {
+                // length prefix, so that splitting the same bytes differently into fragments is detected
+                if (fragment instanceof BulkData) {
+                    md.update(lengthPrefix(((BulkData) fragment).length()));
+                    md.update(digestOf((BulkData) fragment));
+                } else if (fragment instanceof byte[]) {
+                    byte[] bytes = (byte[]) fragment;
+                    md.update(lengthPrefix(bytes.length));
+                    md.update(newMessageDigest().digest(bytes));
+                } else {
+                    md.update(lengthPrefix(0));
+                }
+            }
+            return md.digest();
+        }
+
+        private static byte[] lengthPrefix(int length) {
+            return new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length };
+        }
+    }
+}
@@ -63,6 +63,8 @@ public class DicomAssert {
 
     private static final Logger log = LoggerFactory.getLogger(DicomAssert.class);
 
+    private static final int MAX_REPORTED_DIFFERENCES = 10;
+
     /**
      * Check that the content of the given DICOM dataset is equal to the given
      * reference dataset.
@@ -109,6 +111,24 @@ public class DicomAssert {
      */
     public static void assertEqualsIgnoringTags(Attributes dataset, Attributes referenceDataset, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) {
 
+        Attributes[] differences = differencesIgnoringTags(dataset, referenceDataset, privateTagsToIgnore, tagsToIgnore);
+
+        if (differences != null)
+        {
+            log.info("Expected: \n{}", differences[0]);
+            log.info("Actual: \n{}", differences[1]);
+
+            Assert.fail("The dicom objects are not equal");
+        }
+    }
+
+    /**
+     * @return <code>null</code> if equal, otherwise the removed or modified
+     *         attributes of the reference dataset (expected) and of the
+     *         dataset (actual)
+     */
+    static Attributes[] differencesIgnoringTags(Attributes dataset, Attributes referenceDataset, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) {
+
     	int[] allTagsToIgnoreForDataset = getAllTagsToIgnore(tagsToIgnore, privateTagsToIgnore, dataset);
         if (allTagsToIgnoreForDataset != null && allTagsToIgnoreForDataset.length > 0) {
         	int[] allTagsToIgnoreForReferenceDataset = getAllTagsToIgnore(tagsToIgnore, privateTagsToIgnore, referenceDataset);
@@ -120,23 +140,17 @@ public class DicomAssert {
             referenceDataset = filteredReferenceDataset;
         }
 
-        boolean equal = dataset.equals(referenceDataset);
+        if (dataset.equals(referenceDataset))
+            return null;
 
-        if (!equal)
-        {
-            Attributes expected = referenceDataset.getRemovedOrModified(dataset);
-            Attributes actual = dataset.getRemovedOrModified(referenceDataset);
-            log.info("Expected: \n{}", expected);
-            log.info("Actual: \n{}", actual);
-
-            Assert.fail("The dicom objects are not equal");
-        }
+        return new Attributes[] { referenceDataset.getRemovedOrModified(dataset), dataset.getRemovedOrModified(referenceDataset) };
     }
     
     private static int[] getAllTagsToIgnore(int[] tagsToIgnore, PrivateTag[] privateTagsToIgnore, Attributes attrs) {
     	int[] toIgnore;
     	if (privateTagsToIgnore == null || privateTagsToIgnore.length == 0) {
-    		toIgnore = tagsToIgnore;
+    		// sorted below, do not modify the array of the caller
+    		toIgnore = tagsToIgnore != null ? tagsToIgnore.clone() : null;
     	} else {
 	    	int privateTag, privateCreatorTag;
 	    	int[] additionalToIgnore = new int[privateTagsToIgnore.length << 1];
@@ -175,6 +189,9 @@ public class DicomAssert {
      * Check that the content of the given DICOM file is equal to the given
      * reference DICOM file.
      * 
+     * Use {@link #assertEqualsCached(Path, Path, int...)} to check many files
+     * against the same reference file.
+     * 
      * This method also considers file meta information and bulk data. Use
      * {@link DicomUtils#read(Path,IncludeFileMetaInformation, IncludeBulkData)}
      * to read in the files yourself if you want to control whether file meta
@@ -213,7 +230,127 @@ public class DicomAssert {
     }
     
     public static void assertEqualsIgnoringTags(Path dicomFile, Path dicomReferenceFile, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) throws IOException {
-        assertEqualsIgnoringTags(DicomUtils.read(dicomFile), DicomUtils.read(dicomReferenceFile), tagsToIgnore);
+        assertEqualsIgnoringTags(DicomUtils.read(dicomFile), DicomUtils.read(dicomReferenceFile), privateTagsToIgnore, tagsToIgnore);
+    }
+
+    /**
+     * Check that the content of the given DICOM file is equal to the given
+     * reference DICOM file ignoring some tags, reading the reference file
+     * through the reference dataset cache, see
+     * {@link DicomUtils#readCached(Path)}.
+     * 
+     * The cache keeps the reference datasets in memory until it is cleared,
+     * up to {@link ReferenceDatasetCache#DEFAULT_MAX_BYTES}, so only use this
+     * if the same reference file is checked against many times.
+     * 
+     * @param dicomFile
+     *            DICOM file
+     * @param dicomReferenceFile
+     *            reference DICOM file
+     * @param tagsToIgnore
+     *            tags to ignore (e.g. {@link Tag#ImplementationVersionName})
+     * @throws IOException
+     */
+    public static void assertEqualsCached(Path dicomFile, Path dicomReferenceFile, int... tagsToIgnore) throws IOException {
+        assertEqualsCached(dicomFile, dicomReferenceFile, null, tagsToIgnore);
+    }
+
+    public static void assertEqualsCached(Path dicomFile, Path dicomReferenceFile, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) throws IOException {
+        assertEqualsIgnoringTags(DicomUtils.read(dicomFile), DicomUtils.readCached(dicomReferenceFile), privateTagsToIgnore, tagsToIgnore);
+    }
+
+    /**
+     * Check that the content of the given DICOM file is equal to the given
+     * reference DICOM file ignoring some tags, without reading the files into
+     * memory.
+     * 
+     * The files are compared as encoded, so they should use the same transfer
+     * syntax. On failure the first differing tags are reported, see
+     * {@link StreamingDicomComparator}.
+     * 
+     * @param dicomFile
+     *            DICOM file
+     * @param dicomReferenceFile
+     *            reference DICOM file
+     * @param tagsToIgnore
+     *            tags to ignore (e.g. {@link Tag#ImplementationVersionName})
+     * @throws IOException
+     */
+    public static void assertEqualsStreaming(Path dicomFile, Path dicomReferenceFile, int... tagsToIgnore) throws IOException {
+        assertEqualsStreaming(dicomFile, dicomReferenceFile, null, tagsToIgnore);
+    }
+
+    public static void assertEqualsStreaming(Path dicomFile, Path dicomReferenceFile, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) throws IOException {
+        List<StreamingDicomComparator.Difference> differences = new StreamingDicomComparator()
+                .maxDifferences(MAX_REPORTED_DIFFERENCES)
+                .ignoreTags(tagsToIgnore)
+                .ignorePrivateTags(privateTagsToIgnore)
+                .compare(dicomFile, dicomReferenceFile);
+
+        if (!differences.isEmpty()) {
+            log.info("Differences: \n{}", differences);
+            Assert.fail("The dicom objects are not equal: " + differences);
+        }
+    }
+
+    /**
+     * Check that the content of the given DICOM file is equal to the given
+     * reference DICOM file ignoring some tags, comparing bulk data by digest.
+     * 
+     * Bulk data (e.g. pixel data) is not read into memory, but compared by a
+     * digest of its content, see {@link BulkDataFingerprints}. Digests are
+     * cached as long as a file is not modified, so checking many files against
+     * the same reference file only hashes the reference once.
+     * 
+     * @param dicomFile
+     *            DICOM file
+     * @param dicomReferenceFile
+     *            reference DICOM file
+     * @param tagsToIgnore
+     *            tags to ignore (e.g. {@link Tag#ImplementationVersionName})
+     * @throws IOException
+     */
+    public static void assertEqualsByFingerprint(Path dicomFile, Path dicomReferenceFile, int... tagsToIgnore) throws IOException {
+        assertEqualsByFingerprint(dicomFile, dicomReferenceFile, null, tagsToIgnore);
+    }
+
+    public static void assertEqualsByFingerprint(Path dicomFile, Path dicomReferenceFile, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) throws IOException {
+        Attributes dataset = DicomUtils.read(dicomFile, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.URI);
+        Attributes referenceDataset = DicomUtils.readCached(dicomReferenceFile, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.URI);
+        assertEqualsIgnoringTags(BulkDataFingerprints.fingerprint(dicomFile, dataset),
+                BulkDataFingerprints.fingerprint(dicomReferenceFile, referenceDataset), privateTagsToIgnore, tagsToIgnore);
+    }
+
+    /**
+     * Check that a directory tree contains the same DICOM instances as a
+     * reference tree, ignoring some tags.
+     * 
+     * Files are paired by SOP Instance UID and compared in parallel, see
+     * {@link DicomTreeComparator}. On failure all missing, extra and differing
+     * instances are reported.
+     * 
+     * @param tree
+     *            directory with the DICOM files to check
+     * @param referenceTree
+     *            directory with the reference DICOM files
+     * @param tagsToIgnore
+     *            tags to ignore (e.g. {@link Tag#ImplementationVersionName})
+     * @throws IOException
+     */
+    public static void assertTreeEquals(Path tree, Path referenceTree, int... tagsToIgnore) throws IOException {
+        assertTreeEquals(tree, referenceTree, null, tagsToIgnore);
+    }
+
+    public static void assertTreeEquals(Path tree, Path referenceTree, PrivateTag[] privateTagsToIgnore, int... tagsToIgnore) throws IOException {
+        DicomTreeComparator.Report report = new DicomTreeComparator()
+                .ignoreTags(tagsToIgnore)
+                .ignorePrivateTags(privateTagsToIgnore)
+                .compare(tree, referenceTree);
+
+        if (!report.isEmpty()) {
+            log.info("Differences: \n{}", report);
+            Assert.fail("The dicom trees are not equal: " + report);
+        }
     }
 
     /**
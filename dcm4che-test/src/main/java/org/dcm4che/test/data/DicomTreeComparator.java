@@ -0,0 +1,393 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.dcm4che.test.data.DicomAssert.PrivateTag;
+import org.dcm4che.test.data.DicomUtils.IncludeFileMetaInformation;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Attributes.Visitor;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.util.TagUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares all DICOM files of a directory tree with the files of a reference
+ * tree, e.g. a study received by the external device tool with a reference
+ * study.
+ * 
+ * Files are paired by SOP Instance UID, independent of their path. The pairs
+ * are compared in parallel on a {@link ForkJoinPool}, with the same rules as
+ * {@link DicomAssert#assertEqualsIgnoringTags(Path, Path, PrivateTag[], int...)}.
+ * Files without SOP Instance UID (e.g. DICOMDIR) or that are no DICOM files
+ * are skipped.
+ * 
+ * <pre>
+ * DicomTreeComparator.Report report = new DicomTreeComparator()
+ *         .ignoreTags(Tag.ImplementationVersionName)
+ *         .compare(receivedDir, referenceDir);
+ * </pre>
+ */
+public class DicomTreeComparator {
+
+    private static final Logger log = LoggerFactory.getLogger(DicomTreeComparator.class);
+
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int[] tagsToIgnore = {};
+    private PrivateTag[] privateTagsToIgnore;
+    private boolean compareBulkDataByFingerprint;
+    private boolean cacheReferenceDatasets;
+
+    /**
+     * @param pool
+     *            pool to read and compare the files on, by default the common
+     *            pool
+     */
+    public DicomTreeComparator pool(ForkJoinPool pool) {
+        if (pool == null)
+            throw new IllegalArgumentException("pool must not be null");
+
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * @param tagsToIgnore
+     *            tags to ignore (e.g. {@link Tag#ImplementationVersionName})
+     */
+    public DicomTreeComparator ignoreTags(int... tagsToIgnore) {
+        // copied and sorted once, the comparing tasks share it
+        int[] sorted = tagsToIgnore != null ? tagsToIgnore.clone() : new int[0];
+        Arrays.sort(sorted);
+        this.tagsToIgnore = sorted;
+        return this;
+    }
+
+    public DicomTreeComparator ignorePrivateTags(PrivateTag... privateTagsToIgnore) {
+        this.privateTagsToIgnore = privateTagsToIgnore != null ? privateTagsToIgnore.clone() : null;
+        return this;
+    }
+
+    /**
+     * Compare bulk data (e.g. pixel data) by a digest of its content instead
+     * of reading it into memory, see {@link BulkDataFingerprints}.
+     */
+    public DicomTreeComparator compareBulkDataByFingerprint(boolean compareBulkDataByFingerprint) {
+        this.compareBulkDataByFingerprint = compareBulkDataByFingerprint;
+        return this;
+    }
+
+    /**
+     * Read the reference files through the
+     * {@link DicomUtils#getReferenceDatasetCache() reference dataset cache},
+     * false by default. Only worth it if the same reference tree is compared
+     * against many times, otherwise it evicts the cached golden datasets.
+     */
+    public DicomTreeComparator cacheReferenceDatasets(boolean cacheReferenceDatasets) {
+        this.cacheReferenceDatasets = cacheReferenceDatasets;
+        return this;
+    }
+
+    /**
+     * @param tree
+     *            directory with the DICOM files to check
+     * @param referenceTree
+     *            directory with the reference DICOM files
+     * @return report of missing, extra and differing instances
+     * @throws IOException
+     */
+    public Report compare(Path tree, Path referenceTree) throws IOException {
+        Report report = new Report();
+        Map<String, Path> files = index(tree, report);
+        Map<String, Path> referenceFiles = index(referenceTree, report);
+
+        List<Callable<Difference>> comparisons = new ArrayList<>();
+        for (Map.Entry<String, Path> referenceFile : referenceFiles.entrySet()) {
+            final String iuid = referenceFile.getKey();
+            final Path file = files.get(iuid);
+            if (file == null) {
+                report.missing.put(iuid, referenceFile.getValue());
+                continue;
+            }
+
+            final Path reference = referenceFile.getValue();
+            comparisons.add(new Callable<Difference>() {
+                @Override
+                public Difference call() throws IOException {
+                    return compare(iuid, file, reference);
+                }
+            });
+        }
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            if (!referenceFiles.containsKey(file.getKey()))
+                report.extra.put(file.getKey(), file.getValue());
+        }
+
+        for (Difference difference : invokeAll(comparisons)) {
+            if (difference != null)
+                report.differing.add(difference);
+        }
+        return report;
+    }
+
+    private Map<String, Path> index(Path tree, Report report) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        Files.walkFileTree(tree, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile())
+                    paths.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(paths);
+
+        List<Callable<String>> reads = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            reads.add(new Callable<String>() {
+                @Override
+                public String call() {
+                    return readSOPInstanceUID(path);
+                }
+            });
+        }
+
+        Map<String, Path> index = new TreeMap<>();
+        List<String> iuids = invokeAll(reads);
+        for (int i = 0; i < paths.size(); i++) {
+            String iuid = iuids.get(i);
+            if (iuid == null)
+                continue;
+
+            Path other = index.put(iuid, paths.get(i));
+            if (other != null) {
+                index.put(iuid, other);
+                report.differing.add(new Difference(iuid, paths.get(i), other, "duplicate SOP Instance UID in " + tree));
+            }
+        }
+        return index;
+    }
+
+    private static String readSOPInstanceUID(Path file) {
+        try (DicomInputStream in = new DicomInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            in.setIncludeBulkData(IncludeBulkData.NO);
+            in.readFileMetaInformation();
+            // stop right after the SOP Instance UID
+            return in.readDataset(-1, Tag.SOPInstanceUID + 1).getString(Tag.SOPInstanceUID);
+        } catch (IOException | RuntimeException e) {
+            log.debug("Skipping {}, not a DICOM file: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    private Difference compare(String iuid, Path file, Path referenceFile) throws IOException {
+        Attributes dataset;
+        Attributes referenceDataset;
+        if (compareBulkDataByFingerprint) {
+            dataset = BulkDataFingerprints.fingerprint(file, DicomUtils.read(file,
+                    IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.URI));
+            referenceDataset = BulkDataFingerprints.fingerprint(referenceFile, readReference(referenceFile,
+                    IncludeBulkData.URI));
+        } else {
+            dataset = DicomUtils.read(file);
+            referenceDataset = readReference(referenceFile, IncludeBulkData.YES);
+        }
+
+        Attributes[] differences = DicomAssert.differencesIgnoringTags(dataset, referenceDataset, privateTagsToIgnore, tagsToIgnore);
+        if (differences == null)
+            return null;
+
+        return new Difference(iuid, file, referenceFile, "tags differ: " + differingTags(differences[0], differences[1]));
+    }
+
+    private Attributes readReference(Path referenceFile, IncludeBulkData includeBulkData) throws IOException {
+        return cacheReferenceDatasets
+                ? DicomUtils.readCached(referenceFile,
+                        IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, includeBulkData)
+                : DicomUtils.read(referenceFile,
+                        IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, includeBulkData);
+    }
+
+    private static String differingTags(Attributes expected, Attributes actual) {
+        final TreeMap<Long, String> tags = new TreeMap<>();
+        Visitor visitor = new Visitor() {
+            @Override
+            public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+                tags.put(tag & 0xffffffffL, TagUtils.toString(tag));
+                return true;
+            }
+        };
+        try {
+            expected.accept(visitor, false);
+            actual.accept(visitor, false);
+        } catch (Exception e) {
+            throw new RuntimeException(e); // should never happen
+        }
+        return String.join(", ", tags.values());
+    }
+
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) throws IOException {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks))
+                results.add(future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while comparing DICOM files", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Aggregated result of a tree comparison.
+     */
+    public static class Report {
+
+        private final Map<String, Path> missing = new TreeMap<>();
+        private final Map<String, Path> extra = new TreeMap<>();
+        private final List<Difference> differing = new ArrayList<>();
+
+        /**
+         * @return reference files by SOP Instance UID, which have no
+         *         counterpart in the compared tree
+         */
+        public Map<String, Path> getMissing() {
+            return Collections.unmodifiableMap(missing);
+        }
+
+        /**
+         * @return files by SOP Instance UID, which have no counterpart in the
+         *         reference tree
+         */
+        public Map<String, Path> getExtra() {
+            return Collections.unmodifiableMap(extra);
+        }
+
+        public List<Difference> getDiffering() {
+            return Collections.unmodifiableList(differing);
+        }
+
+        /**
+         * @return <code>true</code> if the trees contain equal instances
+         */
+        public boolean isEmpty() {
+            return missing.isEmpty() && extra.isEmpty() && differing.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(missing.size()).append(" missing, ")
+                    .append(extra.size()).append(" extra, ")
+                    .append(differing.size()).append(" differing instances");
+            for (Map.Entry<String, Path> e : missing.entrySet())
+                sb.append("\n  missing ").append(e.getKey()).append(" (reference ").append(e.getValue()).append(')');
+            for (Map.Entry<String, Path> e : extra.entrySet())
+                sb.append("\n  extra ").append(e.getKey()).append(" (").append(e.getValue()).append(')');
+            for (Difference difference : differing)
+                sb.append("\n  ").append(difference);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An instance that differs from its reference.
+     */
+    public static class Difference {
+
+        private final String sopInstanceUID;
+        private final Path file;
+        private final Path referenceFile;
+        private final String description;
+
+        Difference(String sopInstanceUID, Path file, Path referenceFile, String description) {
+            this.sopInstanceUID = sopInstanceUID;
+            this.file = file;
+            this.referenceFile = referenceFile;
+            this.description = description;
+        }
+
+        public String getSOPInstanceUID() {
+            return sopInstanceUID;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public Path getReferenceFile() {
+            return referenceFile;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return sopInstanceUID + " (" + file + ", reference " + referenceFile + "): " + description;
+        }
+    }
+}
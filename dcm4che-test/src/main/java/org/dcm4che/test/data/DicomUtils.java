@@ -39,11 +39,15 @@
 
 package org.dcm4che.test.data;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -61,6 +65,10 @@ import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
  */
 public class DicomUtils {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ReferenceDatasetCache referenceDatasetCache = new ReferenceDatasetCache();
+
     public enum IncludeFileMetaInformation {
         /**
          * Only read the DICOM dataset without file meta information.
@@ -90,6 +98,47 @@ public class DicomUtils {
         return read(dicomFile, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.YES);
     }
 
+    /**
+     * Read DICOM object from a file including all bulk data and including file
+     * meta information, using the {@link #getReferenceDatasetCache() reference
+     * dataset cache}.
+     * 
+     * Use this for reference files that are compared against many times.
+     * 
+     * @param dicomFile
+     * @return attributes, a copy that may be modified by the caller
+     * @throws IOException
+     */
+    public static Attributes readCached(Path dicomFile) throws IOException {
+        return readCached(dicomFile, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.YES);
+    }
+
+    /**
+     * Read DICOM object from a file, using the
+     * {@link #getReferenceDatasetCache() reference dataset cache}.
+     * 
+     * @param dicomFile
+     * @param includeFileMetaInformation
+     *            specifies how to handle file meta information when reading the
+     *            dataset
+     * @param includeBulkData
+     *            specifies whether and how to include bulk data
+     * @return attributes, a copy that may be modified by the caller
+     * @throws IOException
+     */
+    public static Attributes readCached(Path dicomFile, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) throws IOException {
+        return referenceDatasetCache.read(dicomFile, includeFileMetaInformation, includeBulkData);
+    }
+
+    /**
+     * @return cache used by {@link #readCached(Path)},
+     *         {@link DicomAssert#assertEqualsCached(Path, Path, int...)} and
+     *         {@link DicomAssert#assertEqualsByFingerprint(Path, Path, int...)}
+     */
+    public static ReferenceDatasetCache getReferenceDatasetCache() {
+        return referenceDatasetCache;
+    }
+
     /**
      * Read DICOM File meta information from a file.
      * 
@@ -118,7 +167,45 @@ public class DicomUtils {
      * @throws IOException
      */
     public static Attributes read(Path dicomFile, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) throws IOException {
-        return read(new FileInputStream(dicomFile.toFile()), includeFileMetaInformation, includeBulkData);
+        return read(new BufferedInputStream(new FileInputStream(dicomFile.toFile()), BUFFER_SIZE), dicomFile.toUri().toString(), includeFileMetaInformation, includeBulkData);
+    }
+
+    /**
+     * Read DICOM object from a file mapped into memory, without copying bulk
+     * data.
+     * 
+     * Compared to {@link #read(Path, IncludeFileMetaInformation, IncludeBulkData)}
+     * this avoids reading large values (e.g. multi-frame pixel data) into the
+     * heap. They are accessible as slices of the mapped file, see
+     * {@link MappedDicomFile}.
+     * 
+     * A single mapping is limited to 2 GiB. Larger files are parsed from a
+     * stream instead, keeping bulk data as references which are mapped one
+     * by one when accessed.
+     * 
+     * @param dicomFile
+     * @param includeFileMetaInformation
+     *            specifies how to handle file meta information when reading the
+     *            dataset
+     * @return mapped file with the parsed dataset
+     * @throws IOException
+     */
+    public static MappedDicomFile readMapped(Path dicomFile, IncludeFileMetaInformation includeFileMetaInformation) throws IOException {
+        MappedByteBuffer buffer;
+        long size;
+        try (FileChannel channel = FileChannel.open(dicomFile, StandardOpenOption.READ)) {
+            size = channel.size();
+            // the mapping stays valid after closing the channel
+            buffer = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+        }
+
+        String uri = dicomFile.toUri().toString();
+        Attributes dataset = buffer != null
+                ? read(new MappedDicomFile.ByteBufferInputStream(buffer.duplicate()), uri, includeFileMetaInformation,
+                        IncludeBulkData.URI)
+                : read(new BufferedInputStream(new FileInputStream(dicomFile.toFile()), BUFFER_SIZE), uri,
+                        includeFileMetaInformation, IncludeBulkData.URI);
+        return new MappedDicomFile(dicomFile, size, buffer, dataset);
     }
 
     /**
@@ -151,9 +238,16 @@ public class DicomUtils {
      * @throws IOException
      */
     public static Attributes read(InputStream binaryDicomObjectStream, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) throws IOException {
+        return read(binaryDicomObjectStream, null, includeFileMetaInformation, includeBulkData);
+    }
+
+    private static Attributes read(InputStream binaryDicomObjectStream, String uri, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) throws IOException {
         try (DicomInputStream dicomIn = new DicomInputStream(binaryDicomObjectStream)) {
 
             dicomIn.setIncludeBulkData(includeBulkData);
+            // bulk data references point into the stream, so they need to know where it came from
+            if (uri != null)
+                dicomIn.setURI(uri);
 
             Attributes fmi = dicomIn.readFileMetaInformation();
             if (includeFileMetaInformation == IncludeFileMetaInformation.FILE_META_INFORMATION_ONLY) {
@@ -0,0 +1,240 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.BulkData;
+
+/**
+ * DICOM file mapped into memory, see
+ * {@link DicomUtils#readMapped(Path, DicomUtils.IncludeFileMetaInformation)}.
+ * 
+ * The dataset is parsed directly from the mapped buffer. Bulk data (e.g. pixel
+ * data) is not copied into the dataset, but kept as {@link BulkData}
+ * reference, whose content is available as a read-only slice of the mapped
+ * buffer by {@link #slice(BulkData)} or {@link #getValue(int)}.
+ * 
+ * Files of 2 GiB or more can not be mapped as a whole. Their dataset is read
+ * from a stream and each slice is mapped separately when requested, a single
+ * value is still limited to 2 GiB.
+ * 
+ * Note: there is no way to explicitly unmap the file, the mapping is released
+ * when the buffer is garbage collected. On some platforms the file can not be
+ * deleted while it is mapped.
+ */
+public class MappedDicomFile {
+
+    private final Path path;
+    private final long size;
+    // null if the file is too large to be mapped as a whole
+    private final MappedByteBuffer buffer;
+    private final Attributes dataset;
+
+    MappedDicomFile(Path path, long size, MappedByteBuffer buffer, Attributes dataset) {
+        this.path = path;
+        this.size = size;
+        this.buffer = buffer;
+        this.dataset = dataset;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return dataset, with bulk data as {@link BulkData} references into this
+     *         file
+     */
+    public Attributes getDataset() {
+        return dataset;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return true if the whole file is mapped, false if it is 2 GiB or
+     *         larger and only its slices are mapped
+     */
+    public boolean isMappedAsWhole() {
+        return buffer != null;
+    }
+
+    /**
+     * @return read-only view of the whole mapped file
+     * @throws IllegalStateException
+     *             if the file is not mapped as a whole, see
+     *             {@link #isMappedAsWhole()}
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer == null)
+            throw new IllegalStateException(path + " is too large to be mapped as a whole");
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the content of bulk data read from this file without copying it.
+     * 
+     * @param bulkData
+     *            bulk data of the dataset (or of one of its sequence items or
+     *            pixel data fragments)
+     * @return read-only slice of the mapped file, in the byte order of the
+     *         encoded value
+     * @throws UncheckedIOException
+     *             if the slice of a file not mapped as a whole could not be
+     *             mapped
+     */
+    public ByteBuffer slice(BulkData bulkData) {
+        long offset = bulkData.offset();
+        int length = bulkData.length();
+        if (offset < 0 || length < 0 || offset + length > size)
+            throw new IllegalArgumentException("Bulk data " + bulkData.getURI() + " is not within " + path);
+
+        if (buffer == null)
+            return map(offset, length);
+
+        ByteBuffer slice = buffer.asReadOnlyBuffer();
+        slice.position((int) offset);
+        slice.limit((int) offset + length);
+        return slice.slice();
+    }
+
+    private ByteBuffer map(long offset, int length) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Get a top-level binary value of the dataset without copying bulk data.
+     * 
+     * @param tag
+     *            tag of the value (e.g. {@link org.dcm4che3.data.Tag#PixelData})
+     * @return read-only buffer with the value, or <code>null</code> if the
+     *         dataset does not contain the tag
+     * @throws IllegalArgumentException
+     *             if the value is not binary, e.g. encapsulated pixel data
+     *             (use {@link #slice(BulkData)} on its fragments instead)
+     */
+    public ByteBuffer getValue(int tag) {
+        Object value = dataset.getValue(tag);
+        if (value == null)
+            return null;
+        if (value instanceof BulkData)
+            return slice((BulkData) value);
+        if (value instanceof byte[])
+            return ByteBuffer.wrap((byte[]) value).asReadOnlyBuffer();
+
+        throw new IllegalArgumentException("Not a binary value: " + value.getClass().getSimpleName());
+    }
+
+    /**
+     * Input stream on a (mapped) buffer. Supports mark/reset, so that the
+     * {@link org.dcm4che3.io.DicomInputStream} does not add another buffer,
+     * and skipping of bulk data only moves the position.
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            if (n <= 0)
+                return 0;
+
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            buffer.reset();
+        }
+    }
+}
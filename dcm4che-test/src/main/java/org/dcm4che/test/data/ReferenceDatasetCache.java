@@ -0,0 +1,306 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.test.data.DicomUtils.IncludeFileMetaInformation;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Attributes.Visitor;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+
+/**
+ * Cache of parsed reference datasets, see
+ * {@link DicomUtils#readCached(Path, IncludeFileMetaInformation, IncludeBulkData)}.
+ * 
+ * Entries are evicted in least recently used order when the estimated size of
+ * all cached datasets exceeds the configured maximum, and re-read when the
+ * modification time or size of the file changes. Every read returns a deep copy
+ * of the cached dataset, so tests can modify it without affecting each other.
+ */
+public class ReferenceDatasetCache {
+
+    /**
+     * Default maximum of the estimated size of all cached datasets.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    private static final int ELEMENT_OVERHEAD = 32;
+
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ReferenceDatasetCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes
+     *            maximum of the estimated size of all cached datasets
+     */
+    public ReferenceDatasetCache(long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Read a DICOM object from a file, or get it from the cache if the file was
+     * not modified since it was cached.
+     * 
+     * @param dicomFile
+     * @param includeFileMetaInformation
+     *            specifies how to handle file meta information when reading the
+     *            dataset
+     * @param includeBulkData
+     *            specifies whether and how to include bulk data
+     * @return copy of the cached attributes
+     * @throws IOException
+     */
+    public Attributes read(Path dicomFile, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) throws IOException {
+        Key key = new Key(dicomFile.toAbsolutePath().normalize(), includeFileMetaInformation, includeBulkData);
+        BasicFileAttributes fileAttributes = Files.readAttributes(key.path, BasicFileAttributes.class);
+        long lastModified = fileAttributes.lastModifiedTime().toMillis();
+        long size = fileAttributes.size();
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+            hits.incrementAndGet();
+            return copyOf(entry.dataset);
+        }
+
+        misses.incrementAndGet();
+        Attributes dataset = DicomUtils.read(key.path, includeFileMetaInformation, includeBulkData);
+        if (dataset == null)
+            return null; // no file meta information
+
+        long estimatedBytes = estimateBytes(dataset);
+        if (estimatedBytes > maxBytes) {
+            // would evict everything else and still not fit, do not copy it
+            remove(key);
+            return dataset;
+        }
+
+        put(key, new Entry(lastModified, size, copyOf(dataset), estimatedBytes));
+        return dataset;
+    }
+
+    /**
+     * Remove all cached datasets.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated size of all cached datasets in bytes
+     */
+    public synchronized long getEstimatedBytes() {
+        return totalBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private synchronized void put(Key key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        totalBytes += entry.estimatedBytes;
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes) {
+            totalBytes -= eldest.next().estimatedBytes;
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(Key key) {
+        Entry previous = entries.remove(key);
+        if (previous != null)
+            totalBytes -= previous.estimatedBytes;
+    }
+
+    /**
+     * Deep copy, as the {@link Attributes#Attributes(Attributes)} copy
+     * constructor shares binary values, multi-valued strings and fragments.
+     */
+    static Attributes copyOf(Attributes dataset) {
+        Attributes copy = new Attributes(dataset);
+        final List<Object[]> replacements = new ArrayList<>();
+        visit(copy, new Visitor() {
+            @Override
+            public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+                if (value instanceof byte[]) {
+                    replacements.add(new Object[] { attrs, tag, vr, ((byte[]) value).clone() });
+                } else if (value instanceof String[]) {
+                    replacements.add(new Object[] { attrs, tag, vr, ((String[]) value).clone() });
+                } else if (value instanceof Fragments) {
+                    // the fragments list itself is already copied, only its items are shared
+                    Fragments fragments = (Fragments) value;
+                    for (int i = 0; i < fragments.size(); i++)
+                        if (fragments.get(i) instanceof byte[])
+                            fragments.set(i, ((byte[]) fragments.get(i)).clone());
+                }
+                return true;
+            }
+        });
+
+        // replace after visiting, to not modify the datasets while iterating over them
+        for (Object[] replacement : replacements) {
+            ((Attributes) replacement[0]).setValue((Integer) replacement[1], (VR) replacement[2], replacement[3]);
+        }
+        return copy;
+    }
+
+    /**
+     * Rough estimate of the heap used by a dataset, counting the values and a
+     * fixed overhead per element.
+     */
+    static long estimateBytes(Attributes dataset) {
+        final long[] bytes = { 0 };
+        visit(dataset, new Visitor() {
+            @Override
+            public boolean visit(Attributes attrs, int tag, VR vr, Object value) {
+                bytes[0] += ELEMENT_OVERHEAD;
+                if (value instanceof byte[]) {
+                    bytes[0] += ((byte[]) value).length;
+                } else if (value instanceof String) {
+                    bytes[0] += ((String) value).length() * 2;
+                } else if (value instanceof String[]) {
+                    for (String s : (String[]) value)
+                        bytes[0] += ELEMENT_OVERHEAD + (s != null ? s.length() * 2 : 0);
+                } else if (value instanceof List) { // sequence or fragments
+                    for (Object item : (List<?>) value)
+                        if (item instanceof byte[])
+                            bytes[0] += ELEMENT_OVERHEAD + ((byte[]) item).length;
+                }
+                return true;
+            }
+        });
+        return bytes[0];
+    }
+
+    private static void visit(Attributes dataset, Visitor visitor) {
+        try {
+            dataset.accept(visitor, true);
+        } catch (Exception e) {
+            throw new RuntimeException(e); // should never happen
+        }
+    }
+
+    private static class Key {
+
+        final Path path;
+        final IncludeFileMetaInformation includeFileMetaInformation;
+        final IncludeBulkData includeBulkData;
+
+        Key(Path path, IncludeFileMetaInformation includeFileMetaInformation, IncludeBulkData includeBulkData) {
+            this.path = path;
+            this.includeFileMetaInformation = includeFileMetaInformation;
+            this.includeBulkData = includeBulkData;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return path.equals(other.path)
+                    && includeFileMetaInformation == other.includeFileMetaInformation
+                    && includeBulkData == other.includeBulkData;
+        }
+
+        @Override
+        public int hashCode() {
+            return (path.hashCode() * 31 + includeFileMetaInformation.hashCode()) * 31 + includeBulkData.hashCode();
+        }
+    }
+
+    private static class Entry {
+
+        final long lastModified;
+        final long size;
+        final Attributes dataset;
+        final long estimatedBytes;
+
+        Entry(long lastModified, long size, Attributes dataset, long estimatedBytes) {
+            this.lastModified = lastModified;
+            this.size = size;
+            this.dataset = dataset;
+            this.estimatedBytes = estimatedBytes;
+        }
+    }
+}
@@ -0,0 +1,542 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.dcm4che.test.data.DicomAssert.PrivateTag;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.util.TagUtils;
+
+/**
+ * Compares two DICOM objects element by element while reading them, without
+ * building their datasets in memory.
+ * 
+ * Both streams are walked in tag order with {@link DicomInputStream#readHeader()},
+ * values are compared in chunks of the buffer size, so the memory needed is
+ * bounded by the buffer size and not by the size of the objects. Values are
+ * compared as encoded, so both objects should use the same transfer syntax.
+ * 
+ * Tags to ignore apply to the top level dataset and the file meta
+ * information, like in {@link DicomAssert#assertEqualsIgnoringTags(Attributes, Attributes, PrivateTag[], int...)}.
+ */
+public class StreamingDicomComparator {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_PRIVATE_CREATOR_LENGTH = 1024;
+
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int maxDifferences = 1;
+    private int[] tagsToIgnore = {};
+    private PrivateTag[] privateTagsToIgnore = {};
+    private boolean includeFileMetaInformation = true;
+
+    /**
+     * @param bufferSize
+     *            size of the chunks in which values are compared
+     */
+    public StreamingDicomComparator bufferSize(int bufferSize) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize: " + bufferSize);
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * @param maxDifferences
+     *            number of differences after which the comparison stops
+     */
+    public StreamingDicomComparator maxDifferences(int maxDifferences) {
+        if (maxDifferences <= 0)
+            throw new IllegalArgumentException("maxDifferences: " + maxDifferences);
+        this.maxDifferences = maxDifferences;
+        return this;
+    }
+
+    public StreamingDicomComparator ignoreTags(int... tagsToIgnore) {
+        int[] sorted = tagsToIgnore != null ? tagsToIgnore.clone() : new int[0];
+        Arrays.sort(sorted);
+        this.tagsToIgnore = sorted;
+        return this;
+    }
+
+    public StreamingDicomComparator ignorePrivateTags(PrivateTag... privateTagsToIgnore) {
+        this.privateTagsToIgnore = privateTagsToIgnore != null ? privateTagsToIgnore.clone() : new PrivateTag[0];
+        return this;
+    }
+
+    /**
+     * @param includeFileMetaInformation
+     *            whether to compare the file meta information, true by default
+     */
+    public StreamingDicomComparator includeFileMetaInformation(boolean includeFileMetaInformation) {
+        this.includeFileMetaInformation = includeFileMetaInformation;
+        return this;
+    }
+
+    /**
+     * @return the first differences of the file to the reference file, empty
+     *         if they are equal
+     */
+    public List<Difference> compare(Path dicomFile, Path dicomReferenceFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(dicomFile), bufferSize);
+                InputStream referenceIn = new BufferedInputStream(Files.newInputStream(dicomReferenceFile), bufferSize)) {
+            return compare(in, referenceIn);
+        }
+    }
+
+    /**
+     * Compare two DICOM streams, the streams are not closed.
+     * 
+     * @return the first differences of the stream to the reference stream,
+     *         empty if they are equal
+     */
+    @SuppressWarnings("resource") // the caller closes the underlying streams
+    public List<Difference> compare(InputStream in, InputStream referenceIn) throws IOException {
+        DicomInputStream dicomIn = new DicomInputStream(in);
+        DicomInputStream referenceDicomIn = new DicomInputStream(referenceIn);
+        List<Difference> differences = new ArrayList<>();
+
+        Attributes fmi = dicomIn.readFileMetaInformation();
+        Attributes referenceFmi = referenceDicomIn.readFileMetaInformation();
+        if (includeFileMetaInformation)
+            compareFileMetaInformation(fmi, referenceFmi, differences);
+
+        if (differences.size() < maxDifferences)
+            new Comparison(new Walker(dicomIn), new Walker(referenceDicomIn), differences).run();
+        return differences;
+    }
+
+    private void compareFileMetaInformation(Attributes fmi, Attributes referenceFmi, List<Difference> differences) {
+        if (fmi == null || referenceFmi == null) {
+            if (fmi != referenceFmi)
+                differences.add(new Difference("File Meta Information", fmi == null ? "missing" : "unexpected"));
+            return;
+        }
+
+        TreeSet<Long> tags = new TreeSet<>();
+        for (int tag : fmi.tags())
+            tags.add(tag & 0xffffffffL);
+        for (int tag : referenceFmi.tags())
+            tags.add(tag & 0xffffffffL);
+
+        for (long unsignedTag : tags) {
+            int tag = (int) unsignedTag;
+            if (Arrays.binarySearch(tagsToIgnore, tag) >= 0)
+                continue;
+
+            String path = TagUtils.toString(tag);
+            if (!fmi.contains(tag))
+                differences.add(new Difference(path, "missing"));
+            else if (!referenceFmi.contains(tag))
+                differences.add(new Difference(path, "unexpected"));
+            else if (!new Attributes(fmi, tag).equals(new Attributes(referenceFmi, tag)))
+                differences.add(new Difference(path, "value differs"));
+
+            if (differences.size() >= maxDifferences)
+                return;
+        }
+    }
+
+    /**
+     * A differing element, identified by the path of sequence tags and item
+     * indexes leading to it.
+     */
+    public static class Difference {
+        private final String path;
+        private final String description;
+
+        Difference(String path, String description) {
+            this.path = path;
+            this.description = description;
+        }
+
+        /**
+         * @return path like <code>(0008,1115)[0]/(0008,1150)</code>
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + description;
+        }
+    }
+
+    private enum Event {
+        ELEMENT, SEQUENCE_START, ITEM_START, FRAGMENT, ITEM_END, SEQUENCE_END, END;
+
+        boolean isEnd() {
+            return this == ITEM_END || this == SEQUENCE_END || this == END;
+        }
+    }
+
+    private enum Kind {
+        SEQUENCE, FRAGMENTS, ITEM
+    }
+
+    private static final class Context {
+        final Kind kind;
+        final int tag;
+        final long end;
+        final int index;
+        int items;
+
+        Context(Kind kind, int tag, long end, int index) {
+            this.kind = kind;
+            this.tag = tag;
+            this.end = end;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Reads one stream as events, keeping track of the nesting.
+     */
+    private static final class Walker {
+        final DicomInputStream in;
+        final Deque<Context> contexts = new ArrayDeque<>();
+        // private creators of the top level dataset by group and block
+        final Map<Integer, String> privateCreators = new HashMap<>();
+
+        Event event;
+        int tag;
+        VR vr;
+        int length;
+        int fragmentIndex;
+        // value read ahead, only for private creators
+        byte[] value;
+        long remaining;
+
+        Walker(DicomInputStream in) {
+            this.in = in;
+        }
+
+        void next() throws IOException {
+            if (remaining > 0)
+                in.skipFully(remaining);
+            remaining = 0;
+            value = null;
+
+            Context top = contexts.peek();
+            if (top != null && top.end >= 0 && in.getPosition() >= top.end) {
+                contexts.pop();
+                event = top.kind == Kind.ITEM ? Event.ITEM_END : Event.SEQUENCE_END;
+                return;
+            }
+
+            if (!in.readHeader()) {
+                event = Event.END;
+                return;
+            }
+
+            tag = in.tag();
+            vr = in.vr();
+            length = in.length();
+            switch (tag) {
+            case Tag.ItemDelimitationItem:
+                if (top != null && top.kind == Kind.ITEM)
+                    contexts.pop();
+                event = Event.ITEM_END;
+                return;
+            case Tag.SequenceDelimitationItem:
+                if (top != null && top.kind != Kind.ITEM)
+                    contexts.pop();
+                event = Event.SEQUENCE_END;
+                return;
+            case Tag.Item:
+                if (top == null || top.kind == Kind.ITEM)
+                    throw new IOException("Unexpected item at position " + in.getTagPosition());
+                int index = top.items++;
+                if (top.kind == Kind.FRAGMENTS) {
+                    fragmentIndex = index;
+                    remaining = length;
+                    event = Event.FRAGMENT;
+                } else {
+                    contexts.push(new Context(Kind.ITEM, tag, end(), index));
+                    event = Event.ITEM_START;
+                }
+                return;
+            default:
+                break;
+            }
+
+            if (vr == VR.UN && !in.explicitVR()) {
+                VR dictionaryVR = ElementDictionary.vrOf(tag, contexts.isEmpty() ? privateCreatorOf(tag) : null);
+                if (dictionaryVR != null)
+                    vr = dictionaryVR;
+            }
+            if (vr == VR.UN && length == -1)
+                vr = VR.SQ;
+
+            if (vr == VR.SQ) {
+                contexts.push(new Context(Kind.SEQUENCE, tag, end(), 0));
+                event = Event.SEQUENCE_START;
+            } else if (length == -1) {
+                contexts.push(new Context(Kind.FRAGMENTS, tag, -1, 0));
+                event = Event.SEQUENCE_START;
+            } else {
+                remaining = length;
+                event = Event.ELEMENT;
+                if (contexts.isEmpty() && TagUtils.isPrivateCreator(tag) && length <= MAX_PRIVATE_CREATOR_LENGTH)
+                    privateCreators.put(creatorKey(tag), readValueAsString());
+            }
+        }
+
+        private long end() {
+            return length == -1 ? -1 : in.getPosition() + (length & 0xffffffffL);
+        }
+
+        private static int creatorKey(int creatorTag) {
+            return (creatorTag & 0xffff0000) | (creatorTag & 0xff);
+        }
+
+        String privateCreatorOf(int tag) {
+            return privateCreators.get((tag & 0xffff0000) | ((tag >>> 8) & 0xff));
+        }
+
+        String readValueAsString() throws IOException {
+            return new String(readValue(), StandardCharsets.ISO_8859_1).trim();
+        }
+
+        byte[] readValue() throws IOException {
+            if (value == null) {
+                value = new byte[(int) remaining];
+                in.readFully(value, 0, value.length);
+                remaining = 0;
+            }
+            return value;
+        }
+
+        void read(byte[] buf, int len) throws IOException {
+            in.readFully(buf, 0, len);
+            remaining -= len;
+        }
+
+        boolean isTopLevel() {
+            return event == Event.SEQUENCE_START ? contexts.size() == 1 : contexts.isEmpty();
+        }
+
+        /**
+         * Skip the rest of the current element, sequence or item.
+         */
+        void skip() throws IOException {
+            if (event != Event.SEQUENCE_START && event != Event.ITEM_START)
+                return; // remaining value is skipped by next()
+
+            int depth = contexts.size();
+            do {
+                next();
+            } while (event != Event.END && !(event.isEnd() && contexts.size() < depth));
+        }
+
+        String path() {
+            StringBuilder sb = new StringBuilder();
+            Iterator<Context> outermostFirst = contexts.descendingIterator();
+            while (outermostFirst.hasNext()) {
+                Context context = outermostFirst.next();
+                if (context.kind == Kind.ITEM)
+                    sb.append('[').append(context.index).append("]/");
+                else
+                    sb.append(TagUtils.toString(context.tag));
+            }
+            switch (event) {
+            case ELEMENT:
+                sb.append(TagUtils.toString(tag));
+                break;
+            case FRAGMENT:
+                sb.append('[').append(fragmentIndex).append(']');
+                break;
+            default:
+                if (sb.length() > 0 && sb.charAt(sb.length() - 1) == '/')
+                    sb.setLength(sb.length() - 1);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final class Comparison {
+        private final Walker walker;
+        private final Walker reference;
+        private final List<Difference> differences;
+        private final byte[] buffer = new byte[bufferSize];
+        private final byte[] referenceBuffer = new byte[bufferSize];
+
+        Comparison(Walker walker, Walker reference, List<Difference> differences) {
+            this.walker = walker;
+            this.reference = reference;
+            this.differences = differences;
+        }
+
+        void run() throws IOException {
+            walker.next();
+            reference.next();
+            while (differences.size() < maxDifferences) {
+                skipIgnored(walker);
+                skipIgnored(reference);
+                Event event = walker.event;
+                Event referenceEvent = reference.event;
+
+                if (event.isEnd() || referenceEvent.isEnd()) {
+                    if (event == referenceEvent) {
+                        if (event == Event.END)
+                            return;
+                        advance();
+                    } else if (event.isEnd()) {
+                        differ(reference, "missing");
+                        reference.skip();
+                        reference.next();
+                    } else {
+                        differ(walker, "unexpected");
+                        walker.skip();
+                        walker.next();
+                    }
+                    continue;
+                }
+
+                int order = Integer.compare(walker.tag ^ Integer.MIN_VALUE, reference.tag ^ Integer.MIN_VALUE);
+                if (order < 0) {
+                    differ(walker, "unexpected");
+                    walker.skip();
+                    walker.next();
+                } else if (order > 0) {
+                    differ(reference, "missing");
+                    reference.skip();
+                    reference.next();
+                } else if (event != referenceEvent || walker.vr != reference.vr) {
+                    differ(walker, "encoded as " + walker.vr + " " + event + " instead of " + reference.vr + " " + referenceEvent);
+                    walker.skip();
+                    reference.skip();
+                    advance();
+                } else {
+                    if (event == Event.ELEMENT || event == Event.FRAGMENT) {
+                        if (walker.length != reference.length)
+                            differ(walker, "value length " + walker.length + " instead of " + reference.length);
+                        else if (!sameValue())
+                            differ(walker, "value differs");
+                    }
+                    advance();
+                }
+            }
+        }
+
+        private void advance() throws IOException {
+            walker.next();
+            reference.next();
+        }
+
+        private void skipIgnored(Walker w) throws IOException {
+            while ((w.event == Event.ELEMENT || w.event == Event.SEQUENCE_START) && w.isTopLevel() && isIgnored(w)) {
+                w.skip();
+                w.next();
+            }
+        }
+
+        private boolean isIgnored(Walker w) throws IOException {
+            if (Arrays.binarySearch(tagsToIgnore, w.tag) >= 0)
+                return true;
+
+            if (privateTagsToIgnore.length == 0 || !TagUtils.isPrivateGroup(w.tag))
+                return false;
+
+            int group = w.tag >>> 16;
+            if (TagUtils.isPrivateCreator(w.tag)) {
+                String creator = w.privateCreators.get(Walker.creatorKey(w.tag));
+                for (PrivateTag privateTag : privateTagsToIgnore)
+                    if (privateTag.tag >>> 16 == group && privateTag.creator.equals(creator))
+                        return true;
+                return false;
+            }
+
+            String creator = w.privateCreatorOf(w.tag);
+            if (creator == null)
+                return false;
+            for (PrivateTag privateTag : privateTagsToIgnore)
+                if ((privateTag.tag & 0xffff00ff) == (w.tag & 0xffff00ff) && privateTag.creator.equals(creator))
+                    return true;
+            return false;
+        }
+
+        private boolean sameValue() throws IOException {
+            if (walker.value != null || reference.value != null)
+                return Arrays.equals(walker.readValue(), reference.readValue());
+
+            long remaining = walker.remaining;
+            while (remaining > 0) {
+                int len = (int) Math.min(buffer.length, remaining);
+                walker.read(buffer, len);
+                reference.read(referenceBuffer, len);
+                for (int i = 0; i < len; i++)
+                    if (buffer[i] != referenceBuffer[i])
+                        return false;
+                remaining -= len;
+            }
+            return true;
+        }
+
+        private void differ(Walker w, String description) {
+            differences.add(new Difference(w.path(), description));
+        }
+    }
+}
@@ -0,0 +1,421 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.tool.common.test.TestResult;
+import org.dcm4che3.tool.common.test.TestTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * C-ECHO load generator for tests.
+ * 
+ * Runs a number of concurrent workers which repeatedly connect, negotiate an
+ * association, send one or more C-ECHOs and release the association again,
+ * either for a fixed duration or until a fixed number of C-ECHOs was sent.
+ * Latencies are recorded separately for the TCP connect, the A-ASSOCIATE
+ * negotiation and the C-ECHO round trip. C-ECHOs answered with another status
+ * than Success are counted as failed and not recorded in the C-ECHO latency.
+ * 
+ * To run it offline, point it to the connection of a local
+ * {@link org.dcm4che.test.tool.externaldevice.ExternalDeviceTool}, which
+ * accepts C-ECHO requests.
+ */
+public class EchoLoadTool implements TestTool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EchoLoadTool.class);
+
+    private final String host;
+    private final int port;
+    private final String aeTitle;
+    private final Device sourceDevice;
+    private final Connection sourceConnection;
+    private final String sourceAETitle;
+
+    private int concurrency = 1;
+    private long duration;
+    private long requestCount;
+    private int echoesPerAssociation = 1;
+
+    public EchoLoadTool(String host, int port, String aeTitle, Device sourceDevice, String sourceAETitle, Connection sourceConnection) {
+        this.host = host;
+        this.port = port;
+        this.aeTitle = aeTitle;
+        this.sourceDevice = sourceDevice;
+        this.sourceAETitle = sourceAETitle;
+        this.sourceConnection = sourceConnection;
+    }
+
+    /**
+     * @param concurrency
+     *            number of concurrent workers, each one using its own
+     *            association
+     */
+    public EchoLoadTool concurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency: " + concurrency);
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param duration
+     *            run the load for the given time
+     */
+    public EchoLoadTool duration(long duration, TimeUnit unit) {
+        this.duration = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param requestCount
+     *            stop after the given number of C-ECHOs over all workers
+     */
+    public EchoLoadTool requestCount(long requestCount) {
+        this.requestCount = requestCount;
+        return this;
+    }
+
+    /**
+     * @param echoesPerAssociation
+     *            number of C-ECHOs sent over each association before it is
+     *            released, 1 (the default) negotiates a new association for
+     *            every C-ECHO
+     */
+    public EchoLoadTool echoesPerAssociation(int echoesPerAssociation) {
+        if (echoesPerAssociation < 1)
+            throw new IllegalArgumentException("echoesPerAssociation: " + echoesPerAssociation);
+        this.echoesPerAssociation = echoesPerAssociation;
+        return this;
+    }
+
+    public Result run() throws InterruptedException {
+        if (duration <= 0 && requestCount <= 0)
+            throw new IllegalStateException("Neither duration nor request count specified");
+
+        TimedConnection local = new TimedConnection(sourceConnection);
+        sourceDevice.addConnection(local);
+        sourceDevice.setInstalled(true);
+        ApplicationEntity ae = new ApplicationEntity(sourceAETitle);
+        sourceDevice.addApplicationEntity(ae);
+        ae.addConnection(local);
+
+        Result result = new Result(concurrency);
+        try {
+            run(ae, local, result);
+        } finally {
+            // the AE references the connection, so remove it first
+            if (sourceDevice.getApplicationEntity(sourceAETitle) == ae)
+                sourceDevice.removeApplicationEntity(ae);
+            sourceDevice.removeConnection(local);
+        }
+
+        LOG.info("{}", result);
+        return result;
+    }
+
+    private void run(ApplicationEntity ae, TimedConnection local, Result result) throws InterruptedException {
+        Connection remote = new Connection();
+        remote.setHostname(host);
+        remote.setPort(port);
+        remote.setTlsCipherSuites(sourceConnection.getTlsCipherSuites());
+        remote.setTlsProtocols(sourceConnection.getTlsProtocols());
+
+        SharedExecutors.Lease executors = SharedExecutors.acquire();
+        sourceDevice.setExecutor(executors.getExecutor());
+        sourceDevice.setScheduledExecutor(executors.getScheduledExecutor());
+
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        try {
+            long start = System.nanoTime();
+            long deadline = duration > 0 ? start + duration : Long.MAX_VALUE;
+            AtomicLong remaining = new AtomicLong(requestCount > 0 ? requestCount : Long.MAX_VALUE);
+
+            List<Future<?>> futures = new ArrayList<>(concurrency);
+            for (int i = 0; i < concurrency; i++)
+                futures.add(workers.submit(new Worker(ae, local, remote, deadline, remaining, result)));
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    result.fail(e.getCause());
+                }
+            }
+            result.elapsed = System.nanoTime() - start;
+        } finally {
+            workers.shutdownNow();
+            executors.close();
+        }
+    }
+
+    @Override
+    public void init(TestResult result) {
+        // not needed
+    }
+
+    @Override
+    public TestResult getResult() {
+        return null; // not needed
+    }
+
+    private class Worker implements Runnable {
+        private final ApplicationEntity ae;
+        private final TimedConnection local;
+        private final Connection remote;
+        private final long deadline;
+        private final AtomicLong remaining;
+        private final Result result;
+
+        private Worker(ApplicationEntity ae, TimedConnection local, Connection remote,
+                long deadline, AtomicLong remaining, Result result) {
+            this.ae = ae;
+            this.local = local;
+            this.remote = remote;
+            this.deadline = deadline;
+            this.remaining = remaining;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted() && System.nanoTime() < deadline) {
+                if (remaining.getAndDecrement() <= 0)
+                    return;
+
+                Association as = null;
+                try {
+                    AAssociateRQ rq = new AAssociateRQ();
+                    rq.setCalledAET(aeTitle);
+                    rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
+
+                    long t0 = System.nanoTime();
+                    as = ae.connect(local, remote, rq);
+                    long connect = local.lastConnectTime();
+                    result.connect.record(connect);
+                    result.associate.record(System.nanoTime() - t0 - connect);
+                    result.associations.incrementAndGet();
+
+                    int echoes = 0;
+                    do {
+                        long t1 = System.nanoTime();
+                        DimseRSP rsp = as.cecho();
+                        rsp.next();
+                        long latency = System.nanoTime() - t1;
+                        int status = rsp.getCommand().getInt(Tag.Status, -1);
+                        if (status == Status.Success) {
+                            result.dimse.record(latency);
+                            result.echoes.incrementAndGet();
+                        } else {
+                            result.failedEcho(status);
+                        }
+                    } while (++echoes < echoesPerAssociation && System.nanoTime() < deadline
+                            && remaining.getAndDecrement() > 0);
+
+                    as.release();
+                    as = null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException | IncompatibleConnectionException | GeneralSecurityException e) {
+                    result.fail(e);
+                } finally {
+                    if (as != null)
+                        as.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Local connection which remembers how long the TCP connect of the
+     * current thread took, to separate it from the A-ASSOCIATE negotiation.
+     */
+    private static class TimedConnection extends Connection {
+        private final ThreadLocal<long[]> connectTime = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        private TimedConnection(Connection template) {
+            setTlsCipherSuites(template.getTlsCipherSuites());
+            setTlsProtocols(template.getTlsProtocols());
+            setConnectTimeout(template.getConnectTimeout());
+        }
+
+        @Override
+        public Socket connect(Connection remoteConn)
+                throws IOException, IncompatibleConnectionException, GeneralSecurityException {
+            long start = System.nanoTime();
+            try {
+                return super.connect(remoteConn);
+            } finally {
+                connectTime.get()[0] = System.nanoTime() - start;
+            }
+        }
+
+        private long lastConnectTime() {
+            return connectTime.get()[0];
+        }
+    }
+
+    /**
+     * Outcome of a load run.
+     */
+    public static class Result {
+        private final int concurrency;
+        private final LatencyHistogram connect = new LatencyHistogram();
+        private final LatencyHistogram associate = new LatencyHistogram();
+        private final LatencyHistogram dimse = new LatencyHistogram();
+        private final AtomicLong associations = new AtomicLong();
+        private final AtomicLong echoes = new AtomicLong();
+        private final AtomicLong failedEchoes = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicReference<Throwable> firstError = new AtomicReference<>();
+        private volatile long elapsed;
+
+        private Result(int concurrency) {
+            this.concurrency = concurrency;
+        }
+
+        private void fail(Throwable e) {
+            errors.incrementAndGet();
+            if (firstError.compareAndSet(null, e))
+                LOG.warn("C-ECHO load worker failed", e);
+        }
+
+        private void failedEcho(int status) {
+            if (failedEchoes.getAndIncrement() == 0)
+                LOG.warn("C-ECHO failed with status {}H", Integer.toHexString(status));
+        }
+
+        /**
+         * @return latencies of the TCP connect
+         */
+        public LatencyHistogram getConnectLatency() {
+            return connect;
+        }
+
+        /**
+         * @return latencies of the A-ASSOCIATE negotiation, without TCP connect
+         */
+        public LatencyHistogram getAssociateLatency() {
+            return associate;
+        }
+
+        /**
+         * @return latencies of the C-ECHO request/response round trip
+         */
+        public LatencyHistogram getDimseLatency() {
+            return dimse;
+        }
+
+        public long getAssociations() {
+            return associations.get();
+        }
+
+        /**
+         * @return C-ECHOs answered with status Success
+         */
+        public long getEchoes() {
+            return echoes.get();
+        }
+
+        /**
+         * @return C-ECHOs answered with another status than Success
+         */
+        public long getFailedEchoes() {
+            return failedEchoes.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public Throwable getFirstError() {
+            return firstError.get();
+        }
+
+        public long getElapsed(TimeUnit unit) {
+            return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return C-ECHOs per second
+         */
+        public double getThroughput() {
+            return elapsed == 0 ? 0 : getEchoes() * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("C-ECHO load: %d workers, %d echoes over %d associations in %d ms (%.1f/s), %d failed echoes, %d errors%n"
+                    + "  connect:   %s%n"
+                    + "  associate: %s%n"
+                    + "  c-echo:    %s",
+                    concurrency, getEchoes(), getAssociations(), getElapsed(TimeUnit.MILLISECONDS),
+                    getThroughput(), getFailedEchoes(), getErrors(), connect, associate, dimse);
+        }
+    }
+}
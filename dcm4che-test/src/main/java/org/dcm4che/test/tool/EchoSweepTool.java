@@ -0,0 +1,380 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.conf.api.DicomConfiguration;
+import org.dcm4che3.conf.core.api.ConfigurationException;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.tool.common.test.TestResult;
+import org.dcm4che3.tool.common.test.TestTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends a C-ECHO to every network AE of a set of devices in parallel.
+ * 
+ * All C-ECHOs share one global deadline, so unreachable peers do not hold up
+ * the rest of the sweep: peers which did not answer in time are reported with
+ * {@link Status#TIMEOUT}. Peers which answer with a status other than
+ * Success are reported as {@link Status#FAILED}, see
+ * {@link Result#getDimseStatus()}.
+ */
+public class EchoSweepTool implements TestTool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EchoSweepTool.class);
+
+    public enum Status {
+        SUCCESS, FAILED, TIMEOUT, NO_CONNECTION
+    }
+
+    private final String sourceAETitle;
+    private final Connection sourceConnection;
+    private int maxParallelism = 32;
+
+    /**
+     * @param sourceAETitle
+     *            calling AE title used for all C-ECHOs
+     * @param sourceConnection
+     *            template for the local connections, only TLS settings are
+     *            taken over
+     */
+    public EchoSweepTool(String sourceAETitle, Connection sourceConnection) {
+        this.sourceAETitle = sourceAETitle;
+        this.sourceConnection = sourceConnection;
+    }
+
+    /**
+     * @param maxParallelism
+     *            maximum number of concurrent C-ECHOs
+     */
+    public void setMaxParallelism(int maxParallelism) {
+        if (maxParallelism < 1)
+            throw new IllegalArgumentException("maxParallelism: " + maxParallelism);
+        this.maxParallelism = maxParallelism;
+    }
+
+    /**
+     * Echo all network AEs of all devices found in the given configuration.
+     * 
+     * @return results by device name and AE title, see {@link Result#getKey()}
+     */
+    public Map<String, Result> sweep(DicomConfiguration config, long timeout, TimeUnit unit)
+            throws ConfigurationException, InterruptedException {
+        List<Device> devices = new ArrayList<>();
+        for (String deviceName : config.listDeviceNames()) {
+            devices.add(config.findDevice(deviceName));
+        }
+        return sweep(devices, timeout, unit);
+    }
+
+    /**
+     * Echo all installed network AEs which accept associations of the given
+     * devices.
+     * 
+     * @return results by device name and AE title, see {@link Result#getKey()},
+     *         as the same AE title may be used on several devices
+     */
+    public Map<String, Result> sweep(Collection<Device> devices, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        List<Target> targets = new ArrayList<>();
+        for (Device device : devices) {
+            for (ApplicationEntity ae : device.getApplicationEntities()) {
+                if (ae.isInstalled() && ae.isAssociationAcceptor())
+                    targets.add(new Target(device.getDeviceName(), ae.getAETitle(), selectConnection(ae)));
+            }
+        }
+        return sweepTargets(targets, timeout, unit);
+    }
+
+    /**
+     * Echo the given remote connections.
+     * 
+     * @param connectionsByAETitle
+     *            remote connections by called AE title
+     * @return results by called AE title
+     */
+    public Map<String, Result> sweep(Map<String, Connection> connectionsByAETitle, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        List<Target> targets = new ArrayList<>();
+        for (Map.Entry<String, Connection> entry : connectionsByAETitle.entrySet()) {
+            targets.add(new Target(null, entry.getKey(), entry.getValue()));
+        }
+        return sweepTargets(targets, timeout, unit);
+    }
+
+    private Map<String, Result> sweepTargets(List<Target> targets, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (targets.isEmpty())
+            return results;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(targets.size(), maxParallelism),
+                new DaemonThreadFactory());
+        try {
+            List<Future<Result>> futures = new ArrayList<>(targets.size());
+            for (Target target : targets) {
+                futures.add(target.connection != null
+                        ? executor.submit(new EchoTask(target, deadline))
+                        : null);
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                Target target = targets.get(i);
+                Future<Result> future = futures.get(i);
+                Result result;
+                if (future == null) {
+                    result = new Result(target, Status.NO_CONNECTION, 0, null, null);
+                } else {
+                    try {
+                        result = future.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        future.cancel(true);
+                        result = new Result(target, Status.TIMEOUT, unit.toMillis(timeout), null, e);
+                    } catch (ExecutionException e) {
+                        result = new Result(target, Status.FAILED, 0, null, e.getCause());
+                    }
+                }
+                results.put(result.getKey(), result);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        LOG.info("C-ECHO sweep: {}", results.values());
+        return Collections.unmodifiableMap(results);
+    }
+
+    private static Connection selectConnection(ApplicationEntity ae) {
+        Connection selected = null;
+        for (Connection conn : ae.getConnections()) {
+            if (conn.getProtocol() != Connection.Protocol.DICOM || !conn.isInstalled() || !conn.isServer())
+                continue;
+            if (!conn.isTls())
+                return conn;
+            if (selected == null)
+                selected = conn;
+        }
+        return selected;
+    }
+
+    @Override
+    public void init(TestResult result) {
+        // not needed
+    }
+
+    @Override
+    public TestResult getResult() {
+        return null; // not needed
+    }
+
+    private class EchoTask implements Callable<Result> {
+        private final Target target;
+        private final long deadline;
+
+        private EchoTask(Target target, long deadline) {
+            this.target = target;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public Result call() {
+            // every C-ECHO needs its own device, EchoTool modifies the device it is using
+            Device device = new Device("echoscu-" + target.aeTitle);
+            Connection local = new Connection();
+            local.setTlsCipherSuites(sourceConnection.getTlsCipherSuites());
+            local.setTlsProtocols(sourceConnection.getTlsProtocols());
+            int timeout = (int) Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1);
+            local.setConnectTimeout(timeout);
+            local.setAcceptTimeout(timeout);
+            local.setResponseTimeout(timeout);
+            device.addConnection(local);
+
+            long start = System.nanoTime();
+            try {
+                Attributes rsp = new EchoTool(target.connection.getHostname(), target.connection.getPort(),
+                        target.aeTitle, device, sourceAETitle, local).echo();
+                Status status = rsp.getInt(Tag.Status, -1) == org.dcm4che3.net.Status.Success
+                        ? Status.SUCCESS : Status.FAILED;
+                return new Result(target, status, elapsedMillis(start), rsp, null);
+            } catch (Exception e) {
+                return new Result(target, Status.FAILED, elapsedMillis(start), null, e);
+            }
+        }
+
+        private long elapsedMillis(long start) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+    }
+
+    private static final class Target {
+        private final String deviceName;
+        private final String aeTitle;
+        private final Connection connection;
+
+        private Target(String deviceName, String aeTitle, Connection connection) {
+            this.deviceName = deviceName;
+            this.aeTitle = aeTitle;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Outcome of the C-ECHO to one AE.
+     */
+    public static class Result {
+        private final String deviceName;
+        private final String aeTitle;
+        private final String hostname;
+        private final int port;
+        private final Status status;
+        private final long elapsed;
+        private final Attributes response;
+        private final Throwable error;
+
+        private Result(Target target, Status status, long elapsed, Attributes response, Throwable error) {
+            this.deviceName = target.deviceName;
+            this.aeTitle = target.aeTitle;
+            this.hostname = target.connection != null ? target.connection.getHostname() : null;
+            this.port = target.connection != null ? target.connection.getPort() : -1;
+            this.status = status;
+            this.elapsed = elapsed;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * @return <code>&lt;device name&gt;/&lt;AE title&gt;</code>, or only
+         *         the AE title if the device is not known
+         */
+        public String getKey() {
+            return deviceName != null ? deviceName + "/" + aeTitle : aeTitle;
+        }
+
+        public String getDeviceName() {
+            return deviceName;
+        }
+
+        public String getAETitle() {
+            return aeTitle;
+        }
+
+        public String getHostname() {
+            return hostname;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.SUCCESS;
+        }
+
+        /**
+         * @return time in ms until the C-ECHO response was received or the
+         *         C-ECHO failed
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return C-ECHO response command, null if no response was received
+         */
+        public Attributes getResponse() {
+            return response;
+        }
+
+        /**
+         * @return status of the C-ECHO response, -1 if no response was
+         *         received
+         */
+        public int getDimseStatus() {
+            return response != null ? response.getInt(Tag.Status, -1) : -1;
+        }
+
+        public Throwable getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            String s = aeTitle + "@" + hostname + ":" + port + " " + status + " (" + elapsed + " ms)";
+            return status == Status.FAILED && response != null
+                    ? s + " status " + Integer.toHexString(getDimseStatus()) + "H"
+                    : s;
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "echo-sweep-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -40,9 +40,6 @@ package org.dcm4che.test.tool;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.net.ApplicationEntity;
@@ -93,10 +90,9 @@ public class EchoTool implements TestTool {
         main.getRemoteConnection().setTlsCipherSuites(sourceConnection.getTlsCipherSuites());
         main.getRemoteConnection().setTlsProtocols(sourceConnection.getTlsProtocols());
 
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-        sourceDevice.setExecutor(executorService);
-        sourceDevice.setScheduledExecutor(scheduledExecutorService);
+        SharedExecutors.Lease executors = SharedExecutors.acquire();
+        sourceDevice.setExecutor(executors.getExecutor());
+        sourceDevice.setScheduledExecutor(executors.getScheduledExecutor());
 
         Attributes responseDataset;
         try {
@@ -104,9 +100,11 @@ public class EchoTool implements TestTool {
 
             responseDataset = main.echo();
         } finally {
-            main.close();
-            executorService.shutdown();
-            scheduledExecutorService.shutdown();
+            try {
+                main.close();
+            } finally {
+                executors.close();
+            }
         }
 
         return responseDataset;
@@ -0,0 +1,377 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.tool.common.test.TestResult;
+import org.dcm4che3.tool.common.test.TestTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * C-ECHO SCU tool for tests which keeps associations open between echoes.
+ * 
+ * In contrast to {@link EchoTool}, which negotiates a new association for
+ * every C-ECHO, this tool keeps a pool of open associations per remote host,
+ * port and called AE title and sends repeated C-ECHOs over them. Associations
+ * which stay idle longer than the idle timeout are released in the background.
+ * 
+ * Call {@link #close()} to release all pooled associations.
+ */
+public class PooledEchoTool implements TestTool, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PooledEchoTool.class);
+
+    private final Device sourceDevice;
+    private final Connection sourceConnection;
+    private final ApplicationEntity ae;
+
+    private final Map<PoolKey, Pool> pools = new ConcurrentHashMap<>();
+    private final AtomicLong openedAssociations = new AtomicLong();
+    private final AtomicLong echoes = new AtomicLong();
+
+    private int maxPoolSize = 4;
+    private long idleTimeout = 30000;
+
+    private SharedExecutors.Lease executors;
+    private ScheduledFuture<?> evictionTask;
+    private volatile boolean closed;
+
+    public PooledEchoTool(Device sourceDevice, String sourceAETitle, Connection sourceConnection) {
+        this.sourceDevice = sourceDevice;
+        this.sourceConnection = sourceConnection;
+
+        sourceDevice.setInstalled(true);
+        ae = new ApplicationEntity(sourceAETitle);
+        sourceDevice.addApplicationEntity(ae);
+        ae.addConnection(sourceConnection);
+    }
+
+    /**
+     * @param maxPoolSize
+     *            maximum number of open associations per remote AE, also
+     *            limits the number of concurrent C-ECHOs to that AE
+     */
+    public void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 1)
+            throw new IllegalArgumentException("maxPoolSize: " + maxPoolSize);
+        this.maxPoolSize = maxPoolSize;
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * @param idleTimeout
+     *            time in ms after which an unused association is released
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout <= 0)
+            throw new IllegalArgumentException("idleTimeout: " + idleTimeout);
+        this.idleTimeout = idleTimeout;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Send a C-ECHO to the given remote AE, reusing a pooled association if
+     * one is available.
+     * 
+     * @return C-ECHO response command
+     * @throws IOException
+     *             also if the C-ECHO response status is not success
+     */
+    public Attributes echo(String host, int port, String calledAETitle)
+            throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        if (closed)
+            throw new IllegalStateException("PooledEchoTool is closed");
+
+        Pool pool = pool(new PoolKey(host, port, calledAETitle));
+        pool.permits.acquire();
+        try {
+            PooledAssociation pooled = pool.idle.pollFirst();
+            if (pooled != null && !pooled.as.isReadyForDataTransfer()) {
+                closeQuietly(pooled.as, false);
+                pooled = null;
+            }
+            if (pooled == null)
+                pooled = new PooledAssociation(open(pool.key));
+
+            Attributes rsp;
+            boolean reusable = false;
+            try {
+                DimseRSP dimseRSP = pooled.as.cecho();
+                dimseRSP.next();
+                rsp = dimseRSP.getCommand();
+                reusable = true;
+            } finally {
+                // also on interrupt, the association may still have a response outstanding
+                if (!reusable)
+                    closeQuietly(pooled.as, true);
+            }
+            release(pool, pooled);
+
+            int status = rsp.getInt(Tag.Status, -1);
+            if (status != Status.Success)
+                throw new IOException("C-ECHO to " + pool.key + " failed with status " + Integer.toHexString(status) + "H");
+
+            echoes.incrementAndGet();
+            return rsp;
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    private void release(Pool pool, PooledAssociation pooled) {
+        pooled.lastUsed = System.currentTimeMillis();
+        pool.idle.offerFirst(pooled);
+        // close() sets the flag before draining, so either it drains this association or we see the flag here
+        if (closed && pool.idle.remove(pooled))
+            closeQuietly(pooled.as, false);
+    }
+
+    /**
+     * @return number of associations negotiated so far
+     */
+    public long getOpenedAssociations() {
+        return openedAssociations.get();
+    }
+
+    /**
+     * @return number of successful C-ECHOs sent so far
+     */
+    public long getEchoes() {
+        return echoes.get();
+    }
+
+    /**
+     * @return number of currently idle pooled associations over all remote AEs
+     */
+    public int getIdleAssociations() {
+        int count = 0;
+        for (Pool pool : pools.values())
+            count += pool.idle.size();
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        if (evictionTask != null)
+            evictionTask.cancel(false);
+
+        for (Pool pool : pools.values()) {
+            PooledAssociation pooled;
+            while ((pooled = pool.idle.pollFirst()) != null)
+                closeQuietly(pooled.as, false);
+        }
+        pools.clear();
+
+        if (executors != null)
+            executors.close();
+    }
+
+    @Override
+    public void init(TestResult result) {
+        // not needed
+    }
+
+    @Override
+    public TestResult getResult() {
+        return null; // not needed
+    }
+
+    private Pool pool(PoolKey key) {
+        Pool pool = pools.get(key);
+        if (pool == null) {
+            Pool newPool = new Pool(key, maxPoolSize);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null)
+                pool = newPool;
+        }
+        return pool;
+    }
+
+    private Association open(PoolKey key)
+            throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        ensureExecutors();
+
+        Connection remote = new Connection();
+        remote.setHostname(key.host);
+        remote.setPort(key.port);
+        remote.setTlsCipherSuites(sourceConnection.getTlsCipherSuites());
+        remote.setTlsProtocols(sourceConnection.getTlsProtocols());
+
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCalledAET(key.calledAETitle);
+        rq.addPresentationContext(new PresentationContext(1, UID.VerificationSOPClass, UID.ImplicitVRLittleEndian));
+
+        Association as = ae.connect(sourceConnection, remote, rq);
+        openedAssociations.incrementAndGet();
+        return as;
+    }
+
+    private synchronized void ensureExecutors() {
+        if (closed)
+            throw new IllegalStateException("PooledEchoTool is closed");
+        if (executors != null)
+            return;
+
+        executors = SharedExecutors.acquire();
+        sourceDevice.setExecutor(executors.getExecutor());
+        sourceDevice.setScheduledExecutor(executors.getScheduledExecutor());
+
+        long period = Math.max(idleTimeout / 2, 1);
+        evictionTask = executors.getScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void evictIdle() {
+        long expired = System.currentTimeMillis() - idleTimeout;
+        for (Pool pool : pools.values()) {
+            for (Iterator<PooledAssociation> it = pool.idle.iterator(); it.hasNext();) {
+                PooledAssociation pooled = it.next();
+                // only the thread which removes the association from the deque owns it
+                if ((pooled.lastUsed < expired || !pooled.as.isReadyForDataTransfer())
+                        && pool.idle.remove(pooled)) {
+                    LOG.debug("Releasing idle association {}", pooled.as);
+                    closeQuietly(pooled.as, false);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Association as, boolean abort) {
+        try {
+            if (abort || !as.isReadyForDataTransfer()) {
+                as.abort();
+            } else {
+                as.release();
+            }
+        } catch (IOException e) {
+            LOG.debug("Failed to release association {}", as, e);
+        }
+    }
+
+    private static final class PooledAssociation {
+        private final Association as;
+        private volatile long lastUsed;
+
+        private PooledAssociation(Association as) {
+            this.as = as;
+        }
+    }
+
+    private static final class Pool {
+        private final PoolKey key;
+        private final Deque<PooledAssociation> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore permits;
+
+        private Pool(PoolKey key, int maxPoolSize) {
+            this.key = key;
+            this.permits = new Semaphore(maxPoolSize);
+        }
+    }
+
+    private static final class PoolKey {
+        private final String host;
+        private final int port;
+        private final String calledAETitle;
+
+        private PoolKey(String host, int port, String calledAETitle) {
+            this.host = host;
+            this.port = port;
+            this.calledAETitle = calledAETitle;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof PoolKey))
+                return false;
+            PoolKey other = (PoolKey) o;
+            return port == other.port && host.equals(other.host) && calledAETitle.equals(other.calledAETitle);
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * 31 + calledAETitle.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return calledAETitle + "@" + host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.io.Closeable;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reference counted executors shared by the test tools.
+ * 
+ * Tools {@link #acquire()} a {@link Lease} when they start and close it when
+ * they are done. The executors are created for the first lease and shut down
+ * a short while after the last lease was closed, so tools which are started
+ * and stopped in quick succession reuse the same threads.
+ * 
+ * If the system property {@value #VIRTUAL_THREADS_PROPERTY} is set to
+ * <code>true</code> and the JVM supports virtual threads, the general purpose
+ * executor starts a new virtual thread per task instead of pooling platform
+ * threads.
+ */
+public final class SharedExecutors {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedExecutors.class);
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "org.dcm4che.test.virtualThreads";
+
+    private static final long LINGER_MS = 10000;
+
+    private static final AtomicLong createdThreads = new AtomicLong();
+    private static final AtomicLong createdVirtualThreads = new AtomicLong();
+
+    private static int refCount;
+    private static ExecutorService executor;
+    private static ScheduledExecutorService scheduledExecutor;
+    private static ScheduledFuture<?> pendingShutdown;
+
+    private SharedExecutors() {
+    }
+
+    /**
+     * Acquire the shared executors, creating them if necessary.
+     * 
+     * @return lease which must be closed when the executors are not needed
+     *         anymore
+     */
+    public static synchronized Lease acquire() {
+        if (pendingShutdown != null) {
+            pendingShutdown.cancel(false);
+            pendingShutdown = null;
+        }
+        if (executor == null) {
+            scheduledExecutor = new ScheduledThreadPoolExecutor(1, new CountingThreadFactory("dcm4che-test-scheduler-", null));
+            executor = useVirtualThreads() ? newVirtualThreadPerTaskExecutor() : newCachedThreadPool();
+        }
+        refCount++;
+        return new Lease(executor, scheduledExecutor);
+    }
+
+    private static synchronized void release() {
+        if (--refCount > 0)
+            return;
+
+        pendingShutdown = scheduledExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                shutdownIfUnused();
+            }
+        }, LINGER_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void shutdownIfUnused() {
+        if (refCount > 0 || executor == null)
+            return;
+
+        LOG.debug("Shutting down shared executors");
+        executor.shutdown();
+        scheduledExecutor.shutdown();
+        executor = null;
+        scheduledExecutor = null;
+        pendingShutdown = null;
+    }
+
+    /**
+     * @return number of currently open leases
+     */
+    public static synchronized int getReferenceCount() {
+        return refCount;
+    }
+
+    /**
+     * @return number of threads created by the shared executors since class
+     *         loading, including virtual threads
+     */
+    public static long getCreatedThreadCount() {
+        return createdThreads.get();
+    }
+
+    /**
+     * @return number of virtual threads created by the shared executors and
+     *         by executors returned from
+     *         {@link #newVirtualThreadPerTaskExecutor()}
+     */
+    public static long getCreatedVirtualThreadCount() {
+        return createdVirtualThreads.get();
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads (Java 21 or later)
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.FACTORY != null;
+    }
+
+    /**
+     * Create an executor which starts a new virtual thread for each task.
+     * 
+     * @throws UnsupportedOperationException
+     *             if the JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadSupported())
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+
+        ThreadFactory factory = new CountingThreadFactory(null, VirtualThreads.FACTORY);
+        try {
+            return (ExecutorService) VirtualThreads.NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Failed to create virtual thread executor", e);
+        }
+    }
+
+    private static boolean useVirtualThreads() {
+        if (!Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY))
+            return false;
+        if (isVirtualThreadSupported())
+            return true;
+
+        LOG.warn("Virtual threads requested by {} but not supported by this JVM, using platform threads",
+                VIRTUAL_THREADS_PROPERTY);
+        return false;
+    }
+
+    private static ExecutorService newCachedThreadPool() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new CountingThreadFactory("dcm4che-test-", null));
+    }
+
+    /**
+     * Shared executors handed out to one tool.
+     */
+    public static final class Lease implements Closeable {
+        private final ExecutorService executor;
+        private final ScheduledExecutorService scheduledExecutor;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(ExecutorService executor, ScheduledExecutorService scheduledExecutor) {
+            this.executor = executor;
+            this.scheduledExecutor = scheduledExecutor;
+        }
+
+        public ExecutorService getExecutor() {
+            return executor;
+        }
+
+        public ScheduledExecutorService getScheduledExecutor() {
+            return scheduledExecutor;
+        }
+
+        /**
+         * Release the lease. Do not shut down the executors yourself.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true))
+                release();
+        }
+    }
+
+    private static final class CountingThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final ThreadFactory virtualThreadFactory;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private CountingThreadFactory(String namePrefix, ThreadFactory virtualThreadFactory) {
+            this.namePrefix = namePrefix;
+            this.virtualThreadFactory = virtualThreadFactory;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t;
+            if (virtualThreadFactory != null) {
+                t = virtualThreadFactory.newThread(r);
+                createdVirtualThreads.incrementAndGet();
+            } else {
+                t = new Thread(r, namePrefix + count.incrementAndGet());
+                t.setDaemon(true);
+            }
+            createdThreads.incrementAndGet();
+            return t;
+        }
+    }
+
+    /**
+     * Access to the virtual thread API by reflection, the tools are still
+     * compiled for Java 8.
+     */
+    private static final class VirtualThreads {
+        private static final ThreadFactory FACTORY;
+        private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+        static {
+            ThreadFactory factory = null;
+            Method newThreadPerTaskExecutor = null;
+            try {
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                builder = builderClass.getMethod("name", String.class, long.class)
+                        .invoke(builder, "dcm4che-test-virtual-", 1L);
+                factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+                newThreadPerTaskExecutor = Executors.class
+                        .getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                factory = null;
+                newThreadPerTaskExecutor = null;
+            }
+            FACTORY = factory;
+            NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+        }
+    }
+}
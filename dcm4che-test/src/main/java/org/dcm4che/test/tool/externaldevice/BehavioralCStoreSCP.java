@@ -41,7 +41,16 @@ package org.dcm4che.test.tool.externaldevice;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -67,6 +76,15 @@ public class BehavioralCStoreSCP {
         private final Map<String,ReturnState> instanceStatusMap = new HashMap<String, ReturnState>();
         
         private DimseRequestRecorder requestRecorder;
+        private TimingInterceptor timingInterceptor;
+        private final List<DicomServiceInterceptor> interceptors = new ArrayList<DicomServiceInterceptor>();
+        private InstanceStorage instanceStorage;
+        
+        private final Map<String,Long> instanceDelays = new HashMap<String, Long>();
+        private long responseDelay;
+        private Jitter jitter = Jitter.NONE;
+        private long bytesPerSecond;
+        private int maxConcurrentStores;
         
         public Builder qrSCPConfig(ExternalDeviceToolConfig toolCfg) {
             this.toolCfg = toolCfg;
@@ -78,87 +96,274 @@ public class BehavioralCStoreSCP {
             return this;
         }
         
+        /**
+         * Delay the C-STORE response for the given instance, overrides
+         * {@link #responseDelay(long)} and {@link #jitter(Jitter)}.
+         */
+        public Builder responseDelay(String iuid, long millis) {
+            this.instanceDelays.put(iuid, checkNotNegative(millis));
+            return this;
+        }
+        
+        /**
+         * Delay all C-STORE responses by the given time plus the configured
+         * {@link #jitter(Jitter)}.
+         */
+        public Builder responseDelay(long millis) {
+            this.responseDelay = checkNotNegative(millis);
+            return this;
+        }
+        
+        public Builder jitter(Jitter jitter) {
+            this.jitter = Objects.requireNonNull(jitter);
+            return this;
+        }
+        
+        /**
+         * Limit the rate at which each received dataset is read, 0 for no
+         * limit.
+         */
+        public Builder throttle(long bytesPerSecond) {
+            this.bytesPerSecond = checkNotNegative(bytesPerSecond);
+            return this;
+        }
+        
+        /**
+         * Limit the number of C-STOREs processed at the same time over all
+         * associations, 0 for no limit. Further requests block the reader
+         * thread of their association until a store completes.
+         */
+        public Builder maxConcurrentStores(int maxConcurrentStores) {
+            this.maxConcurrentStores = (int) checkNotNegative(maxConcurrentStores);
+            return this;
+        }
+        
+        private static long checkNotNegative(long value) {
+            if(value < 0) {
+                throw new IllegalArgumentException("Negative value: " + value);
+            }
+            return value;
+        }
+        
         public Builder attachRequestRecorder(DimseRequestRecorder requestRecorder) {
             this.requestRecorder = requestRecorder;
             return this;
         }
         
+        /**
+         * Record the service time of each request, see
+         * {@link TimingInterceptor}.
+         */
+        public Builder attachTimingInterceptor(TimingInterceptor timingInterceptor) {
+            this.timingInterceptor = timingInterceptor;
+            return this;
+        }
+        
+        /**
+         * Add an interceptor running after the request recorder and the
+         * timing interceptor, before the scripted request failures.
+         */
+        public Builder addInterceptor(DicomServiceInterceptor interceptor) {
+            this.interceptors.add(Objects.requireNonNull(interceptor));
+            return this;
+        }
+        
+        /**
+         * Store received instances to the given storage instead of writing
+         * files and DICOMDIR records.
+         */
+        public Builder instanceStorage(InstanceStorage instanceStorage) {
+            this.instanceStorage = instanceStorage;
+            return this;
+        }
+        
+        /**
+         * Discard received instances after streaming them through a digest,
+         * see {@link DigestSinkInstanceStorage}.
+         */
+        public Builder sink(String digestAlgorithm) {
+            return instanceStorage(new DigestSinkInstanceStorage(digestAlgorithm));
+        }
+        
         public InterceptableCStoreSCPImpl build() {
             InterceptableCStoreSCPImpl cStore = new InterceptableCStoreSCPImpl(toolCfg.getDicomDirWriter(), new AttributesFormat(toolCfg.getFilePathFormat()), toolCfg.getRecordFactory());
+            cStore.setInstanceStorage(instanceStorage);
+            cStore.setFaults(new Faults(instanceDelays, responseDelay, jitter, bytesPerSecond, maxConcurrentStores));
             if(requestRecorder != null) {
                 cStore.addInterceptor(requestRecorder);
             }
-            cStore.addInterceptor(new RequestInterceptor(instanceStatusMap));
+            if(timingInterceptor != null) {
+                cStore.addInterceptor(timingInterceptor);
+            }
+            for(DicomServiceInterceptor interceptor : interceptors) {
+                cStore.addInterceptor(interceptor);
+            }
+            cStore.addInterceptor(new RequestInterceptor(new ConcurrentHashMap<String, ReturnState>(instanceStatusMap)));
             return cStore;
         }
 
     }
     
     public static class InterceptableCStoreSCPImpl extends CStoreSCPImpl {
-        private List<DicomServiceInterceptor> interceptors = new ArrayList<DicomServiceInterceptor>();
+        private volatile InterceptorChain interceptors = InterceptorChain.EMPTY;
 
-        private Set<String> storedInstances = new HashSet<>();
+        private final Set<String> storedInstances = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final ConcurrentMap<String,CompletableFuture<String>> storedFutures = new ConcurrentHashMap<String, CompletableFuture<String>>();
+        
+        private InstanceStorage instanceStorage;
+        
+        private Faults faults = Faults.NONE;
+        
+        // data set parsed by super.store(), passed on to the interceptors
+        private final ThreadLocal<Attributes> parsedDataset = new ThreadLocal<Attributes>();
         
         public InterceptableCStoreSCPImpl(DicomDirWriter dicomDirWriter,
                 AttributesFormat filePathFormat, RecordFactory recordFactory) {
             super(dicomDirWriter, filePathFormat, recordFactory);
         }
         
-        public void onDimseRQ(Association as, PresentationContext pc, Dimse dimse,
-                Attributes rq, PDVInputStream data) throws IOException {
-            for(DicomServiceInterceptor interceptor : interceptors) {
-                interceptor.beforeDimseRQ(as, pc, dimse, rq, null);
-            }
-            
-            super.onDimseRQ(as, pc, dimse, rq, data);
+        /**
+         * @param instanceStorage
+         *            storage for received instances, null to write files and
+         *            DICOMDIR records
+         */
+        public void setInstanceStorage(InstanceStorage instanceStorage) {
+            this.instanceStorage = instanceStorage;
+        }
+        
+        public InstanceStorage getInstanceStorage() {
+            return instanceStorage;
+        }
+        
+        private void setFaults(Faults faults) {
+            this.faults = faults;
+        }
+        
+        public void onDimseRQ(final Association as, final PresentationContext pc, final Dimse dimse,
+                final Attributes rq, final PDVInputStream data) throws IOException {
+            interceptors.invoke(as, pc, dimse, rq, null, new DimseInvocation.Service() {
+                @Override
+                public void invoke() throws IOException {
+                    InterceptableCStoreSCPImpl.super.onDimseRQ(as, pc, dimse, rq, data);
+                }
+            });
+        }
+        
+        private synchronized void addInterceptor(DicomServiceInterceptor interceptor) {
+            interceptors = interceptors.with(interceptor);
         }
         
-        private void addInterceptor(DicomServiceInterceptor interceptor) {
-            interceptors.add(interceptor);
+        public InterceptorChain getInterceptors() {
+            return interceptors;
+        }
+
+        @Override
+        protected void store(Association as, PresentationContext pc, Attributes rq,
+                PDVInputStream data, Attributes rsp) throws IOException {
+            Semaphore permits = faults.storePermits;
+            if(permits != null) {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for store permit");
+                }
+            }
+            
+            try {
+                if(faults.bytesPerSecond > 0) {
+                    data = new ThrottledPDVInputStream(data, faults.bytesPerSecond);
+                }
+                
+                Attributes dataset;
+                if(instanceStorage == null) {
+                    try {
+                        super.store(as, pc, rq, data, rsp);
+                        dataset = parsedDataset.get();
+                    } finally {
+                        parsedDataset.remove();
+                    }
+                } else {
+                    dataset = instanceStorage.store(as, pc, rq, data);
+                    instanceStored(Objects.requireNonNull(rq.getString(Tag.AffectedSOPInstanceUID)));
+                }
+                
+                if(dataset != null) {
+                    interceptors.afterDataParsed(as, pc, Dimse.C_STORE_RQ, rq, dataset);
+                }
+                interceptors.beforeDimseRSP(as, pc, Dimse.C_STORE_RQ, rq, rsp);
+                faults.delayResponse(rq.getString(Tag.AffectedSOPInstanceUID));
+            } finally {
+                if(permits != null) {
+                    permits.release();
+                }
+            }
         }
 
         @Override
         protected boolean addDicomDirRecords(Association as, Attributes ds, Attributes fmi, File f) throws IOException {
+            parsedDataset.set(ds);
             boolean added = super.addDicomDirRecords(as, ds, fmi, f);
 
             if(added) {
-                String iuid = Objects.requireNonNull(fmi.getString(Tag.MediaStorageSOPInstanceUID, null));
-
-                synchronized(storedInstances) {
-                    storedInstances.add(iuid);
-                    storedInstances.notifyAll();
-                }
+                instanceStored(Objects.requireNonNull(fmi.getString(Tag.MediaStorageSOPInstanceUID, null)));
             }
 
             return added;
         }
+        
+        private void instanceStored(String iuid) {
+            storedInstances.add(iuid);
+            CompletableFuture<String> future = storedFutures.get(iuid);
+            if(future != null) {
+                future.complete(iuid);
+            }
+        }
+        
+        private CompletableFuture<String> storedFuture(String iuid) {
+            CompletableFuture<String> future = storedFutures.get(iuid);
+            if(future == null) {
+                CompletableFuture<String> newFuture = new CompletableFuture<String>();
+                future = storedFutures.putIfAbsent(iuid, newFuture);
+                if(future == null) {
+                    future = newFuture;
+                }
+            }
+            
+            // the storing thread adds to storedInstances before it looks up the future
+            if(storedInstances.contains(iuid)) {
+                future.complete(iuid);
+            }
+            return future;
+        }
+        
+        /**
+         * @return future completed once all given instances are stored
+         */
+        public CompletableFuture<Void> whenInstancesStored(String... sopInstanceUIDs) {
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[sopInstanceUIDs.length];
+            for(int i = 0; i < sopInstanceUIDs.length; i++) {
+                futures[i] = storedFuture(sopInstanceUIDs[i]);
+            }
+            return CompletableFuture.allOf(futures);
+        }
 
+        /**
+         * @param timeout
+         *            timeout in milliseconds, 0 or less to wait forever
+         */
         public void waitForInstancesStored(long timeout, String... sopInstanceUIDs) throws InterruptedException {
-            long leftTimeout = timeout;
-            boolean failed = true;
-
-            synchronized (storedInstances) {
-                while (failed) {
-                    failed = false;
-                    for (String sopInstanceUID : sopInstanceUIDs) {
-                        if (!storedInstances.contains(sopInstanceUID)) {
-                            if(timeout <= 0) {
-                                storedInstances.wait();
-                            } else {
-                                if(leftTimeout <= 0) {
-                                    throw new InterruptedException("Timeout passed: Not all instances stored!");
-                                }
-
-                                long now = System.currentTimeMillis();
-                                storedInstances.wait(leftTimeout);
-                                leftTimeout -= System.currentTimeMillis() - now;
-                            }
-
-                            failed = true;
-                            break;
-                        }
-                    }
+            CompletableFuture<Void> stored = whenInstancesStored(sopInstanceUIDs);
+            try {
+                if(timeout <= 0) {
+                    stored.get();
+                } else {
+                    stored.get(timeout, TimeUnit.MILLISECONDS);
                 }
+            } catch (TimeoutException e) {
+                throw new InterruptedException("Timeout passed: Not all instances stored!");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
             }
         }
 
@@ -167,10 +372,10 @@ public class BehavioralCStoreSCP {
         }
     }
     
-    private static class RequestInterceptor implements DicomServiceInterceptor {
+    static class RequestInterceptor implements DicomServiceInterceptor {
         private final Map<String,ReturnState> instanceStatusMap;
         
-        private RequestInterceptor(Map<String,ReturnState> instanceStatusMap) {
+        RequestInterceptor(Map<String,ReturnState> instanceStatusMap) {
             this.instanceStatusMap = instanceStatusMap;
         }
        
@@ -186,24 +391,50 @@ public class BehavioralCStoreSCP {
 
     }
     
-    private static final class ReturnState {
-        private int call;
-        private final boolean[] states;
+    static final class Faults {
+        static final Faults NONE = new Faults(Collections.<String, Long>emptyMap(), 0, Jitter.NONE, 0, 0);
         
-        private ReturnState(boolean[] states) {
-            this.states = states;
+        private final Map<String,Long> instanceDelays;
+        private final long responseDelay;
+        private final Jitter jitter;
+        private final long bytesPerSecond;
+        final Semaphore storePermits;
+        
+        Faults(Map<String,Long> instanceDelays, long responseDelay, Jitter jitter,
+                long bytesPerSecond, int maxConcurrentStores) {
+            this.instanceDelays = new ConcurrentHashMap<String, Long>(instanceDelays);
+            this.responseDelay = responseDelay;
+            this.jitter = jitter;
+            this.bytesPerSecond = bytesPerSecond;
+            this.storePermits = maxConcurrentStores > 0 ? new Semaphore(maxConcurrentStores, true) : null;
         }
         
-        private boolean state() {
-            boolean state;
-            if(call > states.length - 1) {
-                state = states[states.length -1];
-            } else {
-                state = states[call];
+        void delayResponse(String iuid) throws InterruptedIOException {
+            Long instanceDelay = iuid != null ? instanceDelays.get(iuid) : null;
+            long delay = instanceDelay != null ? instanceDelay : responseDelay + jitter.nextDelay();
+            if(delay <= 0) {
+                return;
             }
             
-            call++;
-            return state;
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while delaying response");
+            }
+        }
+    }
+    
+    static final class ReturnState {
+        private final AtomicInteger call = new AtomicInteger();
+        private final boolean[] states;
+        
+        ReturnState(boolean[] states) {
+            this.states = states;
+        }
+        
+        boolean state() {
+            return states[Scripts.nextIndex(call, states.length)];
         }
     }
 
@@ -41,15 +41,26 @@ package org.dcm4che.test.tool.externaldevice;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
 import org.dcm4che3.media.DicomDirReader;
 import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.Status;
@@ -69,6 +80,10 @@ public class BehavioralStgCmtSCP {
         private final Map<String,ReturnState> instanceStatusMap = new HashMap<String, ReturnState>();
         private boolean[] requestSuccessBehavior = new boolean[] { true };
         private DimseRequestRecorder requestRecorder;
+        private TimingInterceptor timingInterceptor;
+        private final List<DicomServiceInterceptor> interceptors = new ArrayList<DicomServiceInterceptor>();
+        private InstanceStorage instanceStorage;
+        private final StgCmtReportScheduler.Behavior reportBehavior = new StgCmtReportScheduler.Behavior();
         
         public Builder qrSCPConfig(ExternalDeviceToolConfig toolCfg) {
             this.toolCfg = toolCfg;
@@ -90,13 +105,97 @@ public class BehavioralStgCmtSCP {
             return this;
         }
         
+        /**
+         * Record the service time of each request, see
+         * {@link TimingInterceptor}.
+         */
+        public Builder attachTimingInterceptor(TimingInterceptor timingInterceptor) {
+            this.timingInterceptor = timingInterceptor;
+            return this;
+        }
+        
+        /**
+         * Add an interceptor running after the request recorder and the
+         * timing interceptor, before the scripted request failures.
+         */
+        public Builder addInterceptor(DicomServiceInterceptor interceptor) {
+            this.interceptors.add(Objects.requireNonNull(interceptor));
+            return this;
+        }
+        
+        /**
+         * Resolve storage commitment requests against the given storage
+         * instead of the DICOMDIR, use the same storage as the C-STORE SCP.
+         */
+        public Builder instanceStorage(InstanceStorage instanceStorage) {
+            this.instanceStorage = instanceStorage;
+            return this;
+        }
+        
+        /**
+         * Send the N-EVENT-REPORT the given time after the N-ACTION or, if
+         * reports are batched, after the batch is closed.
+         */
+        public Builder reportDelay(long millis) {
+            if(millis < 0) {
+                throw new IllegalArgumentException("Negative delay: " + millis);
+            }
+            reportBehavior.reportDelay = millis;
+            return this;
+        }
+        
+        /**
+         * Collect the N-ACTIONs of a calling AE until <code>maxActions</code>
+         * are received or <code>windowMillis</code> passed since the first
+         * one, then report them together over one association. N-ACTIONs
+         * with the same Transaction UID are merged into one N-EVENT-REPORT.
+         */
+        public Builder batchReports(int maxActions, long windowMillis) {
+            if(maxActions < 1 || windowMillis <= 0) {
+                throw new IllegalArgumentException("maxActions: " + maxActions + ", windowMillis: " + windowMillis);
+            }
+            reportBehavior.batchSize = maxActions;
+            reportBehavior.batchWindow = windowMillis;
+            return this;
+        }
+        
+        /**
+         * Split the result of a request into partial N-EVENT-REPORTs of at
+         * most <code>maxInstancesPerReport</code> instances.
+         */
+        public Builder splitReports(int maxInstancesPerReport) {
+            return splitReports(maxInstancesPerReport, 0);
+        }
+        
+        /**
+         * Split the result of a request into partial N-EVENT-REPORTs of at
+         * most <code>maxInstancesPerReport</code> instances, sent
+         * <code>intervalMillis</code> apart on separate associations.
+         */
+        public Builder splitReports(int maxInstancesPerReport, long intervalMillis) {
+            if(maxInstancesPerReport < 1 || intervalMillis < 0) {
+                throw new IllegalArgumentException("maxInstancesPerReport: " + maxInstancesPerReport
+                        + ", intervalMillis: " + intervalMillis);
+            }
+            reportBehavior.maxInstancesPerReport = maxInstancesPerReport;
+            reportBehavior.splitInterval = intervalMillis;
+            return this;
+        }
+        
         public BehavioralStgCmtSCPImpl build() {
             BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCPImpl(toolCfg.getDicomDirWriter(), 
                     toolCfg.getRemoteConnections(), toolCfg.isStgCmtOnSameAssoc(), toolCfg.getExecutor(),
-                    instanceStatusMap);
+                    new ConcurrentHashMap<String, ReturnState>(instanceStatusMap), instanceStorage,
+                    reportBehavior);
             if(requestRecorder != null) {
                 stgCmtSCP.addInterceptor(requestRecorder);
             }
+            if(timingInterceptor != null) {
+                stgCmtSCP.addInterceptor(timingInterceptor);
+            }
+            for(DicomServiceInterceptor interceptor : interceptors) {
+                stgCmtSCP.addInterceptor(interceptor);
+            }
             stgCmtSCP.addInterceptor(new RequestInterceptor(requestSuccessBehavior));
             return stgCmtSCP;
         }
@@ -104,7 +203,7 @@ public class BehavioralStgCmtSCP {
     }
     
     private static class InterceptableStgCmtSCPImpl extends StgCmtSCPImpl {
-        private List<DicomServiceInterceptor> interceptors = new ArrayList<DicomServiceInterceptor>();
+        private volatile InterceptorChain interceptors = InterceptorChain.EMPTY;
        
         private InterceptableStgCmtSCPImpl(DicomDirReader dicomDirReader,
                 Map<String, Connection> remoteConnections, boolean stgCmtOnSameAssoc,
@@ -113,103 +212,184 @@ public class BehavioralStgCmtSCP {
         }
         
         @Override
-        protected void onDimseRQ(Association as, PresentationContext pc,
+        protected void onDimseRQ(final Association as, final PresentationContext pc,
+                final Dimse dimse, final Attributes cmd, final Attributes data) throws IOException {
+            interceptors.invoke(as, pc, dimse, cmd, data, new DimseInvocation.Service() {
+                @Override
+                public void invoke() throws IOException {
+                    handleDimseRQ(as, pc, dimse, cmd, data);
+                }
+            });
+        }
+        
+        protected void handleDimseRQ(Association as, PresentationContext pc,
                 Dimse dimse, Attributes cmd, Attributes data) throws IOException {
-            for(DicomServiceInterceptor interceptor : interceptors) {
-                interceptor.beforeDimseRQ(as, pc, dimse, cmd, data);
-            }
-            
             super.onDimseRQ(as, pc, dimse, cmd, data);
         }
         
-        protected void addInterceptor(DicomServiceInterceptor interceptor) {
-            interceptors.add(interceptor);
+        protected synchronized void addInterceptor(DicomServiceInterceptor interceptor) {
+            interceptors = interceptors.with(interceptor);
+        }
+        
+        public InterceptorChain getInterceptors() {
+            return interceptors;
         }
      
     }
     
     public static class BehavioralStgCmtSCPImpl extends InterceptableStgCmtSCPImpl {
 
+        private final VerifiedInstanceRegistry verifiedInstanceRegistry = new VerifiedInstanceRegistry();
         // I own Alex a beer for making this public ;)
-        public final Map<String,Integer> verifiedInstances = new HashMap<String, Integer>();
+        // read-only, use the registry to wait for results, filled once the
+        // N-EVENT-REPORT was sent, see getVerifiedInstanceRegistry()
+        public final Map<String,Integer> verifiedInstances = verifiedInstanceRegistry.asMap();
         private final Map<String,ReturnState> instanceStatusMap;
+        private final InstanceStorage instanceStorage;
+        private final StgCmtReportScheduler reportScheduler;
         
         
         private BehavioralStgCmtSCPImpl(DicomDirReader dicomDirReader,
                 Map<String, Connection> remoteConnections, boolean stgCmtOnSameAssoc,
-                Executor executor, Map<String,ReturnState> instanceStatusMap) {
+                Executor executor, Map<String,ReturnState> instanceStatusMap, InstanceStorage instanceStorage,
+                StgCmtReportScheduler.Behavior reportBehavior) {
             super(dicomDirReader, remoteConnections, stgCmtOnSameAssoc, executor);
             this.instanceStatusMap = instanceStatusMap;
+            this.instanceStorage = instanceStorage;
+            this.reportScheduler = new StgCmtReportScheduler(reportBehavior, remoteConnections, stgCmtOnSameAssoc, this);
         }
         
+        /**
+         * Answers the N-ACTION itself and hands the result over to the
+         * report scheduler, which sends the N-EVENT-REPORT immediately unless
+         * delayed, batched or split reports are configured.
+         */
         @Override
-        protected Map<String,Integer> calculateMatches(Map<String, String> requestMap) throws DicomServiceException {
-            Map<String, Integer> localInstanceStatusMap = super.calculateMatches(requestMap);
+        protected void handleDimseRQ(Association as, PresentationContext pc,
+                Dimse dimse, Attributes cmd, Attributes data) throws IOException {
+            if(dimse != Dimse.N_ACTION_RQ) {
+                throw new DicomServiceException(Status.UnrecognizedOperation);
+            }
             
-            for(Entry<String,ReturnState> entry : instanceStatusMap.entrySet()) {
-                String iuid = entry.getKey();
-                if(requestMap.containsKey(iuid)) {
-                    localInstanceStatusMap.put(iuid, entry.getValue().state());
-                }
+            int actionTypeID = cmd.getInt(Tag.ActionTypeID, 0);
+            if(actionTypeID != 1) {
+                throw new DicomServiceException(Status.NoSuchActionType).setActionTypeID(actionTypeID);
             }
             
-            synchronized(this) {
-                verifiedInstances.putAll(localInstanceStatusMap);
-                notifyAll();
+            if(!reportScheduler.canReportTo(as)) {
+                throw new DicomServiceException(Status.ProcessingFailure, "Unknown Calling AET: " + as.getCallingAET());
             }
             
-            return localInstanceStatusMap;
+            Sequence refSOPSeq = data != null ? data.getSequence(Tag.ReferencedSOPSequence) : null;
+            if(refSOPSeq == null) {
+                throw new DicomServiceException(Status.MissingAttribute, "Missing Referenced SOP Sequence");
+            }
+            
+            Map<String, String> requestMap = new LinkedHashMap<String, String>(refSOPSeq.size() * 2);
+            for(Attributes item : refSOPSeq) {
+                requestMap.put(item.getString(Tag.ReferencedSOPInstanceUID), item.getString(Tag.ReferencedSOPClassUID));
+            }
+            Map<String, Integer> matches = calculateMatches(requestMap);
+            
+            Attributes rsp = Commands.mkNActionRSP(cmd, Status.Success);
+            getInterceptors().beforeDimseRSP(as, pc, dimse, cmd, rsp);
+            as.writeDimseRSP(pc, rsp, null);
+            reportScheduler.schedule(new StgCmtReportScheduler.Commitment(as, data.getString(Tag.TransactionUID),
+                    requestMap, matches));
         }
-
         
-        public void waitForStgCmtResponse(long timeout, int resultStatus, String... sopInstanceUIDs) throws InterruptedException {
-            long leftTimeout = timeout;
-            boolean failed = true;
+        @Override
+        protected Map<String,Integer> calculateMatches(Map<String, String> requestMap) throws DicomServiceException {
+            return matchInstances(requestMap);
+        }
+        
+        private Map<String,Integer> matchInstances(Map<String, String> requestMap) throws DicomServiceException {
+            Map<String, Integer> localInstanceStatusMap = instanceStorage != null 
+                    ? calculateStorageMatches(requestMap) : super.calculateMatches(requestMap);
             
-            synchronized (this) {
-                while (failed) {
-                    failed = false;
-                    for (String sopInstanceUID : sopInstanceUIDs) {
-                        Integer status = verifiedInstances.get(sopInstanceUID);
-                        if (status == null || status != resultStatus) {
-                            if(timeout <= 0) {
-                                wait();
-                            } else {
-                                if(leftTimeout <= 0) {
-                                    throw new InterruptedException("Timeout passed: Not all stg-cmt responses sent!");
-                                }
-                                
-                                long now = System.currentTimeMillis();
-                                wait(leftTimeout);
-                                leftTimeout -= System.currentTimeMillis() - now;
-                            }
-                            
-                            failed = true;
-                            break;
-                        }
-                    }
-                    
+            // cost depends on the request size only, not on the number of scripted instances
+            for(String iuid : requestMap.keySet()) {
+                ReturnState returnState = instanceStatusMap.get(iuid);
+                if(returnState != null) {
+                    localInstanceStatusMap.put(iuid, returnState.state());
                 }
             }
             
+            return localInstanceStatusMap;
+        }
+        
+        /**
+         * Called once the result for the given instances was sent.
+         */
+        void verified(Map<String, Integer> results) {
+            verifiedInstanceRegistry.putAll(results);
+        }
+        
+        /**
+         * Called if the result for the given instances could not be sent.
+         */
+        void reportFailed(Collection<String> iuids, Throwable cause) {
+            verifiedInstanceRegistry.fail(iuids, cause);
+        }
+        
+        /**
+         * @return registry of the reported instance results; the results of
+         *         a report are added once its N-EVENT-REPORT was sent
+         *         successfully, for immediate as well as for delayed, batched
+         *         or split reports
+         */
+        public VerifiedInstanceRegistry getVerifiedInstanceRegistry() {
+            return verifiedInstanceRegistry;
+        }
+        
+        private Map<String,Integer> calculateStorageMatches(Map<String, String> requestMap) {
+            Map<String, Integer> matches = new HashMap<String, Integer>(requestMap.size() * 2);
+            for(Entry<String,String> entry : requestMap.entrySet()) {
+                String storedCuid = instanceStorage.getSOPClassUID(entry.getKey());
+                int status;
+                if(storedCuid == null) {
+                    status = Status.NoSuchObjectInstance;
+                } else if(!storedCuid.equals(entry.getValue())) {
+                    status = Status.ClassInstanceConflict;
+                } else {
+                    status = Status.Success;
+                }
+                matches.put(entry.getKey(), status);
+            }
+            return matches;
+        }
+
+        
+        public void waitForStgCmtResponse(long timeout, int resultStatus, String... sopInstanceUIDs) throws InterruptedException {
+            try {
+                verifiedInstanceRegistry.await(timeout, TimeUnit.MILLISECONDS, resultStatus, sopInstanceUIDs);
+            } catch (TimeoutException e) {
+                throw new InterruptedException("Timeout passed: Not all stg-cmt responses sent!");
+            }
+        }
+        
+        /**
+         * @return future completed once all given instances were reported
+         *         with the given status
+         */
+        public CompletableFuture<Void> whenStgCmtResponse(int resultStatus, String... sopInstanceUIDs) {
+            return verifiedInstanceRegistry.whenVerified(resultStatus, sopInstanceUIDs);
         }
         
     }
     
-    private static class RequestInterceptor implements DicomServiceInterceptor {
+    static class RequestInterceptor implements DicomServiceInterceptor {
         private final boolean[] requestSuccessBehavior;
-        private int request;
+        private final AtomicInteger request = new AtomicInteger();
         
-        private RequestInterceptor(boolean[] requestSuccessBehavior) {
+        RequestInterceptor(boolean[] requestSuccessBehavior) {
             this.requestSuccessBehavior = requestSuccessBehavior;
         }
        
         @Override
         public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse,
                 Attributes cmd, Attributes actionInfo) throws IOException {
-            boolean success = request < requestSuccessBehavior.length - 1 ? requestSuccessBehavior[request] : 
-                requestSuccessBehavior[requestSuccessBehavior.length - 1];
-            request++;
+            boolean success = requestSuccessBehavior[Scripts.nextIndex(request, requestSuccessBehavior.length)];
             if(!success) {
                 throw new DicomServiceException(Status.ProcessingFailure, "Storage commitment request failed");
             }
@@ -218,24 +398,16 @@ public class BehavioralStgCmtSCP {
         
     }
     
-    private static final class ReturnState {
-        private int call;
+    static final class ReturnState {
+        private final AtomicInteger call = new AtomicInteger();
         private final int[] states;
         
-        private ReturnState(int[] states) {
+        ReturnState(int[] states) {
             this.states = states;
         }
         
-        private int state() {
-            int state;
-            if(call > states.length - 1) {
-                state = states[states.length -1];
-            } else {
-                state = states[call];
-            }
-            
-            call++;
-            return state;
+        int state() {
+            return states[Scripts.nextIndex(call, states.length)];
         }
     }
     
@@ -0,0 +1,168 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Dimse;
+
+/**
+ * Decides which attributes of a request a {@link DimseRequestRecorder} keeps.
+ * 
+ * The returned attributes are owned by the recorder, so they must not share
+ * state with the passed command or data set which are reused by the
+ * association. Subclass it to record a custom extract of the requests.
+ * 
+ * The data set of a C-STORE request is captured after the request was
+ * recorded, once the service parsed it, see
+ * {@link DicomServiceInterceptor#afterDataParsed}.
+ */
+public abstract class CaptureProfile {
+
+    /**
+     * Copies the complete command and data set.
+     */
+    public static final CaptureProfile FULL = new CaptureProfile() {
+        @Override
+        public Attributes captureCommand(Dimse dimse, Attributes cmd) {
+            return cmd != null ? new Attributes(cmd) : null;
+        }
+
+        @Override
+        public Attributes captureData(Dimse dimse, Attributes data) {
+            return data != null ? new Attributes(data) : null;
+        }
+    };
+
+    /**
+     * Keeps what {@link RequestMatchers} need: the SOP Instance UIDs of the
+     * command, the Move Originator, the Study Instance UID of stored instances
+     * and the Transaction UID and Referenced SOP Sequence of storage commitment
+     * requests.
+     * 
+     * The Study Instance UID of a stored instance is only captured once the
+     * C-STORE SCP parsed the data set, that is not by a
+     * {@link DigestSinkInstanceStorage}, and not written to a
+     * {@link DimseJournalRecorder journal}.
+     */
+    public static final CaptureProfile INSTANCE_REFERENCES = selection(
+            template(Tag.CommandField, Tag.MessageID, Tag.AffectedSOPClassUID, Tag.AffectedSOPInstanceUID,
+                    Tag.RequestedSOPClassUID, Tag.RequestedSOPInstanceUID, Tag.MoveOriginatorApplicationEntityTitle,
+                    Tag.MoveOriginatorMessageID, Tag.ActionTypeID, Tag.EventTypeID),
+            referencedSOPTemplate());
+
+    /**
+     * @return profile keeping the given top level attributes of command and
+     *         data set
+     */
+    public static CaptureProfile tags(int... tags) {
+        final int[] selection = tags.clone();
+        Arrays.sort(selection);
+        return new CaptureProfile() {
+            @Override
+            public Attributes captureCommand(Dimse dimse, Attributes cmd) {
+                return cmd != null ? new Attributes(cmd, selection) : null;
+            }
+
+            @Override
+            public Attributes captureData(Dimse dimse, Attributes data) {
+                return data != null ? new Attributes(data, selection) : null;
+            }
+        };
+    }
+
+    /**
+     * @param cmdSelection
+     *            template of the command attributes to keep, null to drop the
+     *            command
+     * @param dataSelection
+     *            template of the data set attributes to keep, including
+     *            selected attributes of sequence items, null to drop the data
+     *            set
+     * @see Attributes#addSelected(Attributes, Attributes)
+     */
+    public static CaptureProfile selection(final Attributes cmdSelection, final Attributes dataSelection) {
+        return new CaptureProfile() {
+            @Override
+            public Attributes captureCommand(Dimse dimse, Attributes cmd) {
+                return select(cmd, cmdSelection);
+            }
+
+            @Override
+            public Attributes captureData(Dimse dimse, Attributes data) {
+                return select(data, dataSelection);
+            }
+        };
+    }
+
+    public abstract Attributes captureCommand(Dimse dimse, Attributes cmd);
+
+    public abstract Attributes captureData(Dimse dimse, Attributes data);
+
+    private static Attributes select(Attributes attrs, Attributes selection) {
+        if (attrs == null || selection == null)
+            return null;
+
+        Attributes selected = new Attributes(selection.size());
+        selected.addSelected(attrs, selection);
+        return selected;
+    }
+
+    private static Attributes template(int... tags) {
+        Attributes template = new Attributes(tags.length);
+        for (int tag : tags)
+            template.setNull(tag, VR.UN);
+        return template;
+    }
+
+    private static Attributes referencedSOPTemplate() {
+        Attributes template = new Attributes(4);
+        template.setNull(Tag.StudyInstanceUID, VR.UI);
+        template.setNull(Tag.TransactionUID, VR.UI);
+        template.newSequence(Tag.ReferencedSOPSequence, 1)
+                .add(template(Tag.ReferencedSOPClassUID, Tag.ReferencedSOPInstanceUID));
+        template.newSequence(Tag.FailedSOPSequence, 1)
+                .add(template(Tag.ReferencedSOPClassUID, Tag.ReferencedSOPInstanceUID, Tag.FailureReason));
+        return template;
+    }
+}
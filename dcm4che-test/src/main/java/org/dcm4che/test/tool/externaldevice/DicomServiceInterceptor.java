@@ -47,12 +47,48 @@ import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.pdu.PresentationContext;
 
 /**
+ * Hooks of an {@link InterceptorChain} around the handling of a request.
+ * 
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
  *
  */
 public interface DicomServiceInterceptor {
     
+    /**
+     * Called for each request before the service handles it, in the order the
+     * interceptors were added. Throwing an exception fails the request.
+     */
     void beforeDimseRQ(Association as, PresentationContext pc,
             Dimse dimse, Attributes cmd, Attributes data) throws IOException;
     
+    /**
+     * Wraps the handling of the request by the service, the first interceptor
+     * added being the outermost. Implementations must call
+     * {@link DimseInvocation#proceed()} once to pass the request on.
+     */
+    default void aroundDimseRQ(DimseInvocation invocation) throws IOException {
+        invocation.proceed();
+    }
+    
+    /**
+     * Called once the service parsed the data set of a C-STORE request, which
+     * is not yet available in {@link #beforeDimseRQ}. Only called if the
+     * received instance is written to a file or kept by an
+     * {@link InstanceStorage} which parses it. Runs on the thread which
+     * called {@link #beforeDimseRQ} for the request, before
+     * {@link #beforeDimseRSP}.
+     */
+    default void afterDataParsed(Association as, PresentationContext pc,
+            Dimse dimse, Attributes cmd, Attributes data) throws IOException {
+    }
+    
+    /**
+     * Called before the response built by the service is sent, may modify
+     * it. Only called by services which build the response themselves, that
+     * is for C-STORE and for storage commitment with scheduled reports.
+     */
+    default void beforeDimseRSP(Association as, PresentationContext pc,
+            Dimse dimse, Attributes cmd, Attributes rsp) throws IOException {
+    }
+    
 }
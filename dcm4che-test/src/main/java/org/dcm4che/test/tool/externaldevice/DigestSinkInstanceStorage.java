@@ -0,0 +1,345 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Discards received instances after streaming them through a digest.
+ * 
+ * The dataset stream is neither parsed nor written to disk, only its digest,
+ * byte count and receive time are recorded per instance. So interceptors do
+ * not see the C-STORE data set, see
+ * {@link DicomServiceInterceptor#afterDataParsed}. Use it for
+ * throughput tests where only the integrity of the received bytes matters:
+ * 
+ * <pre>
+ * DigestSinkInstanceStorage sink = new DigestSinkInstanceStorage("CRC32");
+ * InterceptableCStoreSCPImpl cStore = new BehavioralCStoreSCP.Builder()
+ *         .qrSCPConfig(cfg).instanceStorage(sink).build();
+ * </pre>
+ * 
+ * Besides all {@link MessageDigest} algorithms, <code>CRC32</code> is
+ * supported as a much cheaper non-cryptographic checksum.
+ * 
+ * Only the records of the last {@link #getMaxInstances()} received instances
+ * are kept, the totals count all received instances until {@link #clear()}.
+ */
+public class DigestSinkInstanceStorage implements InstanceStorage {
+
+    public static final String CRC32 = "CRC32";
+
+    public static final int DEFAULT_MAX_INSTANCES = 100000;
+
+    private final String algorithm;
+    private final int maxInstances;
+    private final ThreadLocal<DigestOutputStream> digestStreams = new ThreadLocal<DigestOutputStream>() {
+        @Override
+        protected DigestOutputStream initialValue() {
+            return new DigestOutputStream(algorithm);
+        }
+    };
+
+    private final Map<String, ReceivedInstance> instances;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong totalInstances = new AtomicLong();
+
+    public DigestSinkInstanceStorage() {
+        this("SHA-256");
+    }
+
+    /**
+     * @param algorithm
+     *            {@link MessageDigest} algorithm or {@link #CRC32}
+     */
+    public DigestSinkInstanceStorage(String algorithm) {
+        this(algorithm, DEFAULT_MAX_INSTANCES);
+    }
+
+    /**
+     * @param algorithm
+     *            {@link MessageDigest} algorithm or {@link #CRC32}
+     * @param maxInstances
+     *            maximum number of kept instance records, the records of the
+     *            least recently received instances are dropped first
+     */
+    public DigestSinkInstanceStorage(String algorithm, int maxInstances) {
+        if (maxInstances < 1)
+            throw new IllegalArgumentException("maxInstances: " + maxInstances);
+        this.algorithm = algorithm;
+        this.maxInstances = maxInstances;
+        this.instances = new LinkedHashMap<String, ReceivedInstance>(Math.min(maxInstances, 1024), 0.75f) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ReceivedInstance> eldest) {
+                return size() > DigestSinkInstanceStorage.this.maxInstances;
+            }
+        };
+        new DigestOutputStream(algorithm); // fail early on unknown algorithm
+    }
+
+    @Override
+    public Attributes store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data) throws IOException {
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+
+        DigestOutputStream out = digestStreams.get();
+        out.reset();
+        data.copyTo(out);
+
+        ReceivedInstance instance = new ReceivedInstance(rq.getString(Tag.AffectedSOPClassUID), iuid,
+                pc.getTransferSyntax(), as.getCallingAET(), out.digest(), out.count, System.currentTimeMillis());
+        synchronized (instances) {
+            // move a repeated instance to the end
+            instances.remove(iuid);
+            instances.put(iuid, instance);
+        }
+        totalBytes.addAndGet(out.count);
+        totalInstances.incrementAndGet();
+        return null; // not parsed
+    }
+
+    @Override
+    public String getSOPClassUID(String sopInstanceUID) {
+        ReceivedInstance instance = get(sopInstanceUID);
+        return instance != null ? instance.getSOPClassUID() : null;
+    }
+
+    /**
+     * @return last received instance with the given UID, null if not received
+     *         or its record was already dropped
+     */
+    public ReceivedInstance get(String sopInstanceUID) {
+        synchronized (instances) {
+            return instances.get(sopInstanceUID);
+        }
+    }
+
+    /**
+     * @return snapshot of the kept instance records, in the order they were
+     *         received
+     */
+    public Collection<ReceivedInstance> getReceivedInstances() {
+        synchronized (instances) {
+            return new ArrayList<>(instances.values());
+        }
+    }
+
+    /**
+     * @return number of kept instance records
+     */
+    public int size() {
+        synchronized (instances) {
+            return instances.size();
+        }
+    }
+
+    /**
+     * @return number of received instances, including repeated instances
+     */
+    public long getTotalInstances() {
+        return totalInstances.get();
+    }
+
+    /**
+     * @return number of received dataset bytes over all instances
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    /**
+     * Drop all instance records and reset the totals.
+     */
+    public void clear() {
+        synchronized (instances) {
+            instances.clear();
+        }
+        totalBytes.set(0);
+        totalInstances.set(0);
+    }
+
+    /**
+     * Digest of one received instance.
+     */
+    public static class ReceivedInstance {
+        private final String cuid;
+        private final String iuid;
+        private final String tsuid;
+        private final String callingAET;
+        private final byte[] digest;
+        private final long length;
+        private final long receiveTime;
+
+        private ReceivedInstance(String cuid, String iuid, String tsuid, String callingAET,
+                byte[] digest, long length, long receiveTime) {
+            this.cuid = cuid;
+            this.iuid = iuid;
+            this.tsuid = tsuid;
+            this.callingAET = callingAET;
+            this.digest = digest;
+            this.length = length;
+            this.receiveTime = receiveTime;
+        }
+
+        public String getSOPClassUID() {
+            return cuid;
+        }
+
+        public String getSOPInstanceUID() {
+            return iuid;
+        }
+
+        public String getTransferSyntaxUID() {
+            return tsuid;
+        }
+
+        public String getCallingAET() {
+            return callingAET;
+        }
+
+        public byte[] getDigest() {
+            return digest.clone();
+        }
+
+        public String getDigestAsHex() {
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return sb.toString();
+        }
+
+        /**
+         * @return number of received dataset bytes
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public long getReceiveTime() {
+            return receiveTime;
+        }
+
+        @Override
+        public String toString() {
+            return iuid + " " + length + " bytes " + getDigestAsHex();
+        }
+    }
+
+    /**
+     * Output stream which only updates a digest or checksum.
+     */
+    private static final class DigestOutputStream extends OutputStream {
+        private final MessageDigest md;
+        private final Checksum crc;
+        private long count;
+
+        private DigestOutputStream(String algorithm) {
+            if (CRC32.equalsIgnoreCase(algorithm)) {
+                md = null;
+                crc = new java.util.zip.CRC32();
+            } else {
+                try {
+                    md = MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                crc = null;
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            if (md != null)
+                md.update((byte) b);
+            else
+                crc.update(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (md != null)
+                md.update(b, off, len);
+            else
+                crc.update(b, off, len);
+            count += len;
+        }
+
+        private void reset() {
+            if (md != null)
+                md.reset();
+            else
+                crc.reset();
+            count = 0;
+        }
+
+        private byte[] digest() {
+            if (md != null)
+                return md.digest();
+
+            long value = crc.getValue();
+            return new byte[] { (byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value };
+        }
+    }
+}
@@ -0,0 +1,170 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.net.Dimse;
+
+/**
+ * Binary format of the DIMSE journal written by {@link DimseJournalRecorder}.
+ * 
+ * The journal starts with {@link #MAGIC} followed by {@link #VERSION} and a
+ * sequence of records. Each record starts with its length, so a reader can
+ * detect a record truncated by a crash:
+ * 
+ * <pre>
+ * int    length of the rest of the record
+ * long   timestamp in ms since the epoch
+ * int    serial number of the association, -1 if unknown
+ * short  command field of the DIMSE, -1 if unknown
+ * string calling AE title
+ * string called AE title
+ * bytes  command set
+ * bytes  data set
+ * </pre>
+ * 
+ * Strings are a presence flag followed by modified UTF-8, data sets are their
+ * length (-1 if absent) followed by their Explicit VR Little Endian encoding.
+ */
+final class DimseJournal {
+
+    static final byte[] MAGIC = "DIMSEJNL".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = MAGIC.length + 4;
+
+    private DimseJournal() {
+    }
+
+    static ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(MAGIC).putInt(VERSION).flip();
+        return header;
+    }
+
+    static void checkHeader(byte[] header) throws IOException {
+        if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC))
+            throw new IOException("Not a DIMSE journal");
+
+        int version = ByteBuffer.wrap(header, MAGIC.length, 4).getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported DIMSE journal version: " + version);
+    }
+
+    static void write(DataOutputStream out, ByteArrayOutputStream scratch, DimseRequest request)
+            throws IOException {
+        scratch.reset();
+        DataOutputStream body = new DataOutputStream(scratch);
+        body.writeLong(request.getTimestamp());
+        body.writeInt(request.getAssociationSerialNo());
+        body.writeShort(request.getDimse() != null ? request.getDimse().commandField() : -1);
+        writeString(body, request.getCallingAETitle());
+        writeString(body, request.getCalledAETitle());
+        writeAttributes(body, request.getCmd());
+        writeAttributes(body, request.getData());
+        body.flush();
+
+        out.writeInt(scratch.size());
+        scratch.writeTo(out);
+    }
+
+    static DimseJournalReader.Entry read(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        long timestamp = in.readLong();
+        int associationSerialNo = in.readInt();
+        short commandField = in.readShort();
+        String callingAET = readString(in);
+        String calledAET = readString(in);
+        Attributes cmd = readAttributes(in);
+        Attributes data = readAttributes(in);
+        Dimse dimse = commandField != -1 ? Dimse.valueOf(commandField & 0xffff) : null;
+        return new DimseJournalReader.Entry(timestamp,
+                DimseRequest.captured(callingAET, calledAET, dimse, cmd, data, timestamp, associationSerialNo));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeAttributes(DataOutputStream out, Attributes attrs) throws IOException {
+        if (attrs == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(256);
+        @SuppressWarnings("resource") // nothing to release
+        DicomOutputStream dos = new DicomOutputStream(encoded, UID.ExplicitVRLittleEndian);
+        dos.writeDataset(null, attrs);
+        dos.flush();
+        out.writeInt(encoded.size());
+        encoded.writeTo(out);
+    }
+
+    private static Attributes readAttributes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+
+        byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        @SuppressWarnings("resource") // nothing to release
+        DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(encoded), UID.ExplicitVRLittleEndian);
+        return dis.readDataset(-1, -1);
+    }
+}
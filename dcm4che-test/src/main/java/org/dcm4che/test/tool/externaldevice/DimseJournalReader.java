@@ -0,0 +1,196 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams the requests of a journal written by {@link DimseJournalRecorder},
+ * reading one record at a time.
+ * 
+ * <pre>
+ * try (DimseJournalReader reader = new DimseJournalReader(path)) {
+ *     for (DimseJournalReader.Entry entry : reader) {
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * 
+ * A record truncated because the recording process died while writing it
+ * ends the iteration.
+ */
+public class DimseJournalReader implements Iterable<DimseJournalReader.Entry>, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DimseJournalReader.class);
+
+    private final Path path;
+    private final DataInputStream in;
+    private boolean iterated;
+    private Entry next;
+    private boolean eof;
+
+    public DimseJournalReader(Path path) throws IOException {
+        this.path = path;
+        this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024));
+        try {
+            byte[] header = new byte[DimseJournal.HEADER_LENGTH];
+            in.readFully(header);
+            DimseJournal.checkHeader(header);
+        } catch (IOException e) {
+            in.close();
+            throw e instanceof EOFException ? new IOException("Not a DIMSE journal: " + path) : e;
+        }
+    }
+
+    /**
+     * @return all requests of the journal
+     */
+    public static List<DimseRequest> readAll(Path path) throws IOException {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        try (DimseJournalReader reader = new DimseJournalReader(path)) {
+            for (Entry entry : reader)
+                requests.add(entry.getRequest());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return requests;
+    }
+
+    /**
+     * @return iterator over the records, can only be requested once
+     */
+    @Override
+    public Iterator<Entry> iterator() {
+        if (iterated)
+            throw new IllegalStateException("DIMSE journal " + path + " already iterated");
+        iterated = true;
+
+        return new Iterator<Entry>() {
+            @Override
+            public boolean hasNext() {
+                if (next == null && !eof)
+                    next = readEntry();
+                return next != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Entry entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Entry readEntry() {
+        try {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                eof = true;
+                return null;
+            }
+
+            byte[] record = new byte[length];
+            try {
+                in.readFully(record);
+            } catch (EOFException e) {
+                LOG.warn("Ignore truncated last record of DIMSE journal {}", path);
+                eof = true;
+                return null;
+            }
+            return DimseJournal.read(record);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * A recorded request and the time it was recorded.
+     */
+    public static class Entry {
+        private final long timestamp;
+        private final DimseRequest request;
+
+        Entry(long timestamp, DimseRequest request) {
+            this.timestamp = timestamp;
+            this.request = request;
+        }
+
+        /**
+         * @return time the request was recorded, in ms since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public DimseRequest getRequest() {
+            return request;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.test.tool.SharedExecutors;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link DimseRequestRecorder} appending every request to a binary journal
+ * on disk instead of keeping it in memory, see {@link DimseJournalReader} and
+ * {@link DimseJournalReplayTool} to read and replay it.
+ * 
+ * Association threads only encode their request and append it to an in
+ * memory batch. Batches are written with one {@link FileChannel} write once
+ * they exceed the flush threshold or when the flush interval passed (group
+ * flush), so recording does not block on the disk.
+ * 
+ * A C-STORE request is held back until the service parsed its data set, see
+ * {@link #afterDataParsed}, and is written with the captured data set. If the
+ * service never parses it, the request is written without data set once the
+ * service handled it. A C-STORE request failed by the
+ * {@link DicomServiceInterceptor#beforeDimseRQ} of an interceptor added
+ * after the recorder never reaches the service; it is written on the next
+ * request received by the same thread or on {@link #close()}.
+ * 
+ * Requests are not indexed by default, as the index would grow with the
+ * journal. Matchers then scan the journal.
+ */
+public class DimseJournalRecorder extends DimseRequestRecorder implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DimseJournalRecorder.class);
+
+    public static final int DEFAULT_FLUSH_THRESHOLD = 256 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL = 200;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final boolean forceOnFlush;
+    private final int flushThreshold;
+
+    private final Object batchLock = new Object();
+    private Batch batch = new Batch();
+    private Batch spare = new Batch();
+    private boolean closed;
+
+    private final Object writeLock = new Object();
+    private final ThreadLocal<Batch[]> encoders = new ThreadLocal<Batch[]>() {
+        @Override
+        protected Batch[] initialValue() {
+            return new Batch[] { new Batch(), new Batch() };
+        }
+    };
+
+    // C-STORE recorded by this thread, held back until its data set was captured
+    private final ThreadLocal<DimseRequest> held = new ThreadLocal<DimseRequest>();
+    private final Set<DimseRequest> pending = ConcurrentHashMap.newKeySet();
+
+    private final SharedExecutors.Lease executors;
+    private final ScheduledFuture<?> flusher;
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    public DimseJournalRecorder(Path path) throws IOException {
+        this(path, CaptureProfile.FULL, DEFAULT_FLUSH_INTERVAL, false);
+    }
+
+    public DimseJournalRecorder(Path path, CaptureProfile captureProfile, long flushIntervalMillis,
+            boolean forceOnFlush) throws IOException {
+        this(path, captureProfile, flushIntervalMillis, forceOnFlush, false);
+    }
+
+    /**
+     * @param path
+     *            journal file, appended to if it exists
+     * @param captureProfile
+     *            selects the attributes kept of each request
+     * @param flushIntervalMillis
+     *            maximal time a request stays in memory
+     * @param forceOnFlush
+     *            force each flushed batch to the storage device
+     * @param indexed
+     *            keep a {@link RequestIndex} of all recorded requests in
+     *            memory
+     */
+    public DimseJournalRecorder(Path path, CaptureProfile captureProfile, long flushIntervalMillis,
+            boolean forceOnFlush, boolean indexed) throws IOException {
+        super(captureProfile, indexed);
+        if (flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("flushIntervalMillis: " + flushIntervalMillis);
+
+        this.path = path;
+        this.forceOnFlush = forceOnFlush;
+        this.flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+        if (Files.exists(path) && Files.size(path) > 0)
+            checkHeader(path);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        try {
+            if (channel.size() == 0)
+                writeHeader();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.executors = SharedExecutors.acquire();
+        this.flusher = executors.getScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    LOG.warn("Failed to flush DIMSE journal " + DimseJournalRecorder.this.path, e);
+                }
+            }
+        }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void checkHeader(Path path) throws IOException {
+        byte[] header = new byte[DimseJournal.HEADER_LENGTH];
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+            in.readFully(header);
+        } catch (EOFException e) {
+            throw new IOException("Not a DIMSE journal: " + path);
+        }
+        DimseJournal.checkHeader(header);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = DimseJournal.header();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * @return number of requests recorded
+     */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return number of bytes written to the journal, without its header
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data)
+            throws IOException {
+        // C-STORE failed by a later interceptor before it reached the service
+        writeHeld();
+        super.beforeDimseRQ(as, pc, dimse, cmd, data);
+    }
+
+    @Override
+    public void aroundDimseRQ(DimseInvocation invocation) throws IOException {
+        try {
+            invocation.proceed();
+        } finally {
+            // the service did not parse the data set
+            writeHeld();
+        }
+    }
+
+    @Override
+    protected void dataCaptured(DimseRequest r) {
+        writeHeld();
+    }
+
+    @Override
+    public void record(DimseRequest r) {
+        if (isAwaitingData(r)) {
+            held.set(r);
+            pending.add(r);
+            return;
+        }
+        append(r);
+    }
+
+    private void writeHeld() {
+        DimseRequest r = held.get();
+        if (r == null)
+            return;
+
+        held.remove();
+        // close() may have written it already
+        if (pending.remove(r))
+            append(r);
+    }
+
+    private void append(DimseRequest r) {
+        Batch encoded = encode(r);
+        boolean full;
+        synchronized (batchLock) {
+            if (closed)
+                throw new IllegalStateException("DIMSE journal " + path + " closed");
+
+            encoded.appendTo(batch);
+            full = batch.size() >= flushThreshold;
+        }
+        recorded.incrementAndGet();
+        requestRecorded(r);
+
+        if (full) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private Batch encode(DimseRequest r) {
+        Batch[] buffers = encoders.get();
+        Batch encoded = buffers[0];
+        encoded.reset();
+        try {
+            DimseJournal.write(new DataOutputStream(encoded), buffers[1], r);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return encoded;
+    }
+
+    /**
+     * Write all recorded requests to the journal.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            Batch full;
+            synchronized (batchLock) {
+                if (batch.size() == 0)
+                    return;
+                full = batch;
+                batch = spare;
+            }
+
+            try {
+                ByteBuffer buffer = full.asByteBuffer();
+                int size = buffer.remaining();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                if (forceOnFlush)
+                    channel.force(false);
+                bytesWritten.addAndGet(size);
+            } finally {
+                full.reset();
+                spare = full;
+            }
+        }
+    }
+
+    /**
+     * Reads the whole journal, prefer {@link DimseJournalReader} for large
+     * journals.
+     */
+    @Override
+    public List<DimseRequest> getRequests() {
+        try {
+            flush();
+            return DimseJournalReader.readAll(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes C-STORE requests still waiting for their data set without it
+     * and closes the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        List<DimseRequest> written = new ArrayList<DimseRequest>();
+        synchronized (batchLock) {
+            if (closed)
+                return;
+            for (DimseRequest r : pending) {
+                if (pending.remove(r)) {
+                    encode(r).appendTo(batch);
+                    written.add(r);
+                }
+            }
+            closed = true;
+        }
+        recorded.addAndGet(written.size());
+        for (DimseRequest r : written)
+            requestRecorded(r);
+
+        flusher.cancel(false);
+        executors.close();
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static final class Batch extends ByteArrayOutputStream {
+        private Batch() {
+            super(8192);
+        }
+
+        private void appendTo(Batch other) {
+            other.write(buf, 0, count);
+        }
+
+        private ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,537 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che.test.tool.LatencyHistogram;
+import org.dcm4che.test.tool.SharedExecutors;
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.tool.common.test.TestResult;
+import org.dcm4che3.tool.common.test.TestTool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Re-sends the requests of a journal written by {@link DimseJournalRecorder}
+ * to a target AE, at the recorded pacing or a multiple of it.
+ * 
+ * The journal is read twice: first to collect the SOP classes to negotiate
+ * per recorded calling AE, then to send the requests. One association is
+ * opened per recorded calling AE. It proposes asynchronous operations
+ * without a limit of outstanding requests and responses are handled
+ * asynchronously, so a slow target does not change the pacing of the replay,
+ * unless it negotiates a smaller asynchronous operations window, e.g.
+ * synchronous mode. The AEs and the connection added to the source device
+ * for the replay are removed again afterwards, and the asynchronous
+ * operations settings of the source connection are restored.
+ * 
+ * C-ECHO, C-STORE, C-FIND, N-ACTION and N-EVENT-REPORT requests are
+ * replayed, other requests are skipped. The data set of a C-STORE request is
+ * provided by a {@link DatasetSource}, by default the one recorded if the
+ * C-STORE SCP parsed it, see {@link DimseJournalRecorder}.
+ */
+public class DimseJournalReplayTool implements TestTool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DimseJournalReplayTool.class);
+
+    /**
+     * Provides the data set to send for a recorded request.
+     */
+    public interface DatasetSource {
+        Attributes datasetFor(DimseRequest request);
+    }
+
+    /**
+     * Sends the recorded data set or, if none was recorded, one containing
+     * only the SOP Class and Instance UID of the request.
+     */
+    public static final DatasetSource RECORDED_OR_MINIMAL = new DatasetSource() {
+        @Override
+        public Attributes datasetFor(DimseRequest request) {
+            if (request.getData() != null)
+                return request.getData();
+
+            Attributes cmd = request.getCmd();
+            Attributes dataset = new Attributes(2);
+            dataset.setString(Tag.SOPClassUID, VR.UI, cmd.getString(Tag.AffectedSOPClassUID));
+            dataset.setString(Tag.SOPInstanceUID, VR.UI, cmd.getString(Tag.AffectedSOPInstanceUID));
+            return dataset;
+        }
+    };
+
+    private final String host;
+    private final int port;
+    private final String aeTitle;
+    private final Device sourceDevice;
+    private final Connection sourceConnection;
+
+    private double speed = 1.0;
+    private String callingAETitle;
+    private DatasetSource datasetSource = RECORDED_OR_MINIMAL;
+
+    public DimseJournalReplayTool(String host, int port, String aeTitle, Device sourceDevice,
+            Connection sourceConnection) {
+        this.host = host;
+        this.port = port;
+        this.aeTitle = aeTitle;
+        this.sourceDevice = sourceDevice;
+        this.sourceConnection = sourceConnection;
+    }
+
+    /**
+     * @param speed
+     *            multiple of the recorded pacing, 2 replays twice as fast, 0
+     *            sends as fast as possible
+     */
+    public DimseJournalReplayTool speed(double speed) {
+        if (speed < 0)
+            throw new IllegalArgumentException("speed: " + speed);
+        this.speed = speed;
+        return this;
+    }
+
+    /**
+     * @param callingAETitle
+     *            send all requests with the given calling AE title instead of
+     *            the recorded ones
+     */
+    public DimseJournalReplayTool callingAETitle(String callingAETitle) {
+        this.callingAETitle = callingAETitle;
+        return this;
+    }
+
+    public DimseJournalReplayTool datasetSource(DatasetSource datasetSource) {
+        this.datasetSource = datasetSource;
+        return this;
+    }
+
+    public Result replay(Path journal) throws IOException, InterruptedException {
+        Map<String, Set<String>> sopClassesByAET = collectSOPClasses(journal);
+
+        Connection remote = new Connection();
+        remote.setHostname(host);
+        remote.setPort(port);
+        remote.setTlsCipherSuites(sourceConnection.getTlsCipherSuites());
+        remote.setTlsProtocols(sourceConnection.getTlsProtocols());
+        boolean addConnection = !sourceDevice.listConnections().contains(sourceConnection);
+        if (addConnection)
+            sourceDevice.addConnection(sourceConnection);
+        // the association request takes the window over from the connection
+        int maxOpsInvoked = sourceConnection.getMaxOpsInvoked();
+        int maxOpsPerformed = sourceConnection.getMaxOpsPerformed();
+        sourceConnection.setMaxOpsInvoked(0);
+        sourceConnection.setMaxOpsPerformed(0);
+        sourceDevice.setInstalled(true);
+
+        SharedExecutors.Lease executors = SharedExecutors.acquire();
+        sourceDevice.setExecutor(executors.getExecutor());
+        sourceDevice.setScheduledExecutor(executors.getScheduledExecutor());
+
+        Map<String, Association> associations = new HashMap<String, Association>();
+        List<ApplicationEntity> addedAEs = new ArrayList<ApplicationEntity>();
+        EchoResponses echoResponses = new EchoResponses(executors.getExecutor());
+        Result result = new Result();
+        try (DimseJournalReader reader = new DimseJournalReader(journal)) {
+            long start = System.nanoTime();
+            long firstTimestamp = -1;
+            for (DimseJournalReader.Entry entry : reader) {
+                DimseRequest request = entry.getRequest();
+                String sopClass = sopClassOf(request);
+                if (sopClass == null) {
+                    result.skipped.incrementAndGet();
+                    continue;
+                }
+
+                if (firstTimestamp < 0)
+                    firstTimestamp = entry.getTimestamp();
+                if (speed > 0)
+                    pace(start, (long) ((entry.getTimestamp() - firstTimestamp) / speed));
+
+                String aet = callingAETOf(request);
+                try {
+                    Association as = associations.get(aet);
+                    if (as == null || !as.isReadyForDataTransfer()) {
+                        as = connect(aet, sopClassesByAET.get(aet), remote, addedAEs);
+                        associations.put(aet, as);
+                    }
+                    send(as, request, sopClass, result, echoResponses);
+                } catch (IOException | IncompatibleConnectionException | GeneralSecurityException e) {
+                    result.fail(e);
+                }
+            }
+
+            for (Association as : associations.values()) {
+                try {
+                    as.waitForOutstandingRSP();
+                    as.release();
+                } catch (IOException e) {
+                    result.fail(e);
+                }
+            }
+            echoResponses.await(result);
+            result.elapsed = System.nanoTime() - start;
+        } finally {
+            for (Association as : associations.values()) {
+                if (as.isReadyForDataTransfer())
+                    as.abort();
+            }
+            echoResponses.cancel();
+            executors.close();
+            for (ApplicationEntity ae : addedAEs) {
+                if (sourceDevice.getApplicationEntity(ae.getAETitle()) == ae)
+                    sourceDevice.removeApplicationEntity(ae);
+            }
+            if (addConnection)
+                sourceDevice.removeConnection(sourceConnection);
+            sourceConnection.setMaxOpsInvoked(maxOpsInvoked);
+            sourceConnection.setMaxOpsPerformed(maxOpsPerformed);
+        }
+
+        LOG.info("{}", result);
+        return result;
+    }
+
+    private Map<String, Set<String>> collectSOPClasses(Path journal) throws IOException {
+        Map<String, Set<String>> sopClassesByAET = new LinkedHashMap<String, Set<String>>();
+        try (DimseJournalReader reader = new DimseJournalReader(journal)) {
+            for (DimseJournalReader.Entry entry : reader) {
+                String sopClass = sopClassOf(entry.getRequest());
+                if (sopClass == null)
+                    continue;
+
+                String aet = callingAETOf(entry.getRequest());
+                Set<String> sopClasses = sopClassesByAET.get(aet);
+                if (sopClasses == null) {
+                    sopClasses = new LinkedHashSet<String>();
+                    sopClassesByAET.put(aet, sopClasses);
+                }
+                sopClasses.add(sopClass);
+            }
+        }
+        return sopClassesByAET;
+    }
+
+    private String callingAETOf(DimseRequest request) {
+        return callingAETitle != null ? callingAETitle : request.getCallingAETitle();
+    }
+
+    private static String sopClassOf(DimseRequest request) {
+        Dimse dimse = request.getDimse();
+        if (dimse == null || request.getCmd() == null)
+            return null;
+
+        switch (dimse) {
+        case C_ECHO_RQ:
+            return UID.VerificationSOPClass;
+        case C_STORE_RQ:
+        case C_FIND_RQ:
+        case N_EVENT_REPORT_RQ:
+            return request.getCmd().getString(Tag.AffectedSOPClassUID);
+        case N_ACTION_RQ:
+            return request.getCmd().getString(Tag.RequestedSOPClassUID);
+        default:
+            return null;
+        }
+    }
+
+    private static void pace(long start, long offsetMillis) throws InterruptedException {
+        long wait = start + TimeUnit.MILLISECONDS.toNanos(offsetMillis) - System.nanoTime();
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private Association connect(String callingAET, Set<String> sopClasses, Connection remote,
+            List<ApplicationEntity> addedAEs)
+            throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        ApplicationEntity ae = sourceDevice.getApplicationEntity(callingAET);
+        if (ae == null) {
+            ae = new ApplicationEntity(callingAET);
+            sourceDevice.addApplicationEntity(ae);
+            ae.addConnection(sourceConnection);
+            addedAEs.add(ae);
+        }
+
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCalledAET(aeTitle);
+        rq.setMaxOpsInvoked(0);
+        rq.setMaxOpsPerformed(0);
+        int pcid = 1;
+        for (String sopClass : sopClasses) {
+            rq.addPresentationContext(new PresentationContext(pcid, sopClass, UID.ImplicitVRLittleEndian));
+            pcid += 2;
+        }
+        return ae.connect(sourceConnection, remote, rq);
+    }
+
+    private void send(Association as, DimseRequest request, String sopClass, Result result,
+            EchoResponses echoResponses) throws IOException, InterruptedException {
+        Attributes cmd = request.getCmd();
+        if (request.getDimse() == Dimse.C_ECHO_RQ) {
+            long t0 = System.nanoTime();
+            DimseRSP rsp = as.cecho();
+            result.sent.incrementAndGet();
+            echoResponses.add(rsp, t0, result);
+            return;
+        }
+
+        ResponseHandler handler = new ResponseHandler(as.nextMessageID(), result);
+        switch (request.getDimse()) {
+        case C_STORE_RQ:
+            as.cstore(sopClass, cmd.getString(Tag.AffectedSOPInstanceUID), cmd.getInt(Tag.Priority, 0),
+                    new DataWriterAdapter(datasetSource.datasetFor(request)), UID.ImplicitVRLittleEndian, handler);
+            break;
+        case C_FIND_RQ:
+            as.cfind(sopClass, cmd.getInt(Tag.Priority, 0), request.getData(), UID.ImplicitVRLittleEndian, handler);
+            break;
+        case N_ACTION_RQ:
+            as.naction(sopClass, cmd.getString(Tag.RequestedSOPInstanceUID), cmd.getInt(Tag.ActionTypeID, 0),
+                    request.getData(), UID.ImplicitVRLittleEndian, handler);
+            break;
+        case N_EVENT_REPORT_RQ:
+            as.neventReport(sopClass, cmd.getString(Tag.AffectedSOPInstanceUID), cmd.getInt(Tag.EventTypeID, 0),
+                    request.getData(), UID.ImplicitVRLittleEndian, handler);
+            break;
+        default:
+            throw new AssertionError(request.getDimse());
+        }
+        result.sent.incrementAndGet();
+    }
+
+    @Override
+    public void init(TestResult result) {
+        // not needed
+    }
+
+    @Override
+    public TestResult getResult() {
+        return null; // not needed
+    }
+
+    private static class ResponseHandler extends DimseRSPHandler {
+        private final Result result;
+        private final long sent = System.nanoTime();
+
+        private ResponseHandler(int msgId, Result result) {
+            super(msgId);
+            this.result = result;
+        }
+
+        @Override
+        public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+            super.onDimseRSP(as, cmd, data);
+            int status = cmd.getInt(Tag.Status, -1);
+            if (Status.isPending(status))
+                return;
+
+            result.completed(status, sent);
+        }
+
+        @Override
+        public void onClose(Association as) {
+            super.onClose(as);
+            result.unanswered.incrementAndGet();
+        }
+    }
+
+    /**
+     * Waits for C-ECHO responses on the executor. Association offers no C-ECHO
+     * taking a {@link DimseRSPHandler}, but sends the request before returning
+     * the {@link DimseRSP}, so only waiting for the response is moved off the
+     * replaying thread.
+     */
+    private static class EchoResponses {
+        private final ExecutorService executor;
+        private final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+        private EchoResponses(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        private void add(final DimseRSP rsp, final long sent, final Result result) {
+            pending.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rsp.next();
+                        result.completed(rsp.getCommand().getInt(Tag.Status, -1), sent);
+                    } catch (IOException e) {
+                        result.unanswered.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }));
+        }
+
+        private void await(Result result) throws InterruptedException {
+            for (Future<?> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    result.fail(e.getCause());
+                }
+            }
+        }
+
+        private void cancel() {
+            for (Future<?> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    /**
+     * Outcome of a replay.
+     */
+    public static class Result {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong unanswered = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long elapsed;
+
+        private Result() {
+        }
+
+        private void completed(int status, long sent) {
+            latency.record(System.nanoTime() - sent);
+            if (status == Status.Success)
+                succeeded.incrementAndGet();
+            else
+                failed.incrementAndGet();
+        }
+
+        private void fail(Throwable e) {
+            if (errors.getAndIncrement() == 0)
+                LOG.warn("Failed to replay request", e);
+        }
+
+        /**
+         * @return latencies from sending a request to its final response
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        /**
+         * @return requests answered with status Success
+         */
+        public long getSucceeded() {
+            return succeeded.get();
+        }
+
+        /**
+         * @return requests answered with a failure or warning status
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        /**
+         * @return requests without response because the association was
+         *         closed
+         */
+        public long getUnanswered() {
+            return unanswered.get();
+        }
+
+        /**
+         * @return recorded requests of a DIMSE type which cannot be replayed
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * @return requests which could not be sent
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getElapsed(TimeUnit unit) {
+            return unit.convert(elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "sent=" + getSent() + " succeeded=" + getSucceeded() + " failed=" + getFailed()
+                    + " unanswered=" + getUnanswered() + " skipped=" + getSkipped() + " errors=" + getErrors()
+                    + " elapsed=" + getElapsed(TimeUnit.MILLISECONDS) + "ms latency=" + latency.summary();
+        }
+    }
+}
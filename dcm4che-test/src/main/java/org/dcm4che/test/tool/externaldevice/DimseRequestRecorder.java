@@ -40,13 +40,21 @@
 package org.dcm4che.test.tool.externaldevice;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Dimse;
 import org.dcm4che3.net.pdu.PresentationContext;
+import org.hamcrest.Matcher;
 
 /**
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
@@ -54,24 +62,261 @@ import org.dcm4che3.net.pdu.PresentationContext;
  */
 public class DimseRequestRecorder implements DicomServiceInterceptor {
     private final List<DimseRequest> requests = new ArrayList<DimseRequest>();
+    private final RequestIndex requestIndex = new RequestIndex();
+    private final SynchronizedRequests plainRequests = new SynchronizedRequests(requests);
+    private final IndexedRequests indexedRequests = new IndexedRequests(requests, requestIndex);
+    private final List<RecordListener> listeners = new CopyOnWriteArrayList<RecordListener>();
+    private final CaptureProfile captureProfile;
+    private final boolean indexed;
+    // C-STORE recorded by this thread, waiting for its data set to be parsed
+    private final ThreadLocal<DimseRequest> awaitingData = new ThreadLocal<DimseRequest>();
+    
+    public DimseRequestRecorder() {
+        this(CaptureProfile.FULL);
+    }
+    
+    /**
+     * @param captureProfile
+     *            selects the attributes kept of each request
+     */
+    public DimseRequestRecorder(CaptureProfile captureProfile) {
+        this(captureProfile, true);
+    }
+    
+    /**
+     * @param indexed
+     *            keep a {@link RequestIndex} of the recorded requests
+     */
+    protected DimseRequestRecorder(CaptureProfile captureProfile, boolean indexed) {
+        this.captureProfile = captureProfile;
+        this.indexed = indexed;
+    }
+    
+    public CaptureProfile getCaptureProfile() {
+        return captureProfile;
+    }
     
     @Override
     public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data) throws IOException {
-        DimseRequest r = new DimseRequest(as.getCallingAET(), as.getCalledAET(), cmd, data);
-        requests.add(r);
+        DimseRequest r = DimseRequest.captured(as.getCallingAET(), as.getCalledAET(), dimse,
+                captureProfile.captureCommand(dimse, cmd), captureProfile.captureData(dimse, data),
+                System.currentTimeMillis(), as.getSerialNo());
+        if(dimse == Dimse.C_STORE_RQ && data == null) {
+            awaitingData.set(r);
+        } else {
+            awaitingData.remove();
+        }
+        record(r);
+    }
+    
+    /**
+     * Adds the captured data set to the C-STORE request recorded before on
+     * this thread and notifies the listeners again.
+     */
+    @Override
+    public void afterDataParsed(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data) throws IOException {
+        DimseRequest r = awaitingData.get();
+        awaitingData.remove();
+        if(r == null || r.getData() != null) {
+            return;
+        }
+        
+        r.data = captureProfile.captureData(dimse, data);
+        if(r.data != null) {
+            dataCaptured(r);
+        }
+    }
+    
+    /**
+     * @return true if the request is a C-STORE request recorded by this
+     *         thread whose data set is captured by {@link #afterDataParsed}
+     *         once the service parsed it
+     */
+    protected boolean isAwaitingData(DimseRequest r) {
+        return awaitingData.get() == r;
+    }
+    
+    /**
+     * Notify the listeners that the data set of the C-STORE request recorded
+     * before was captured.
+     */
+    protected void dataCaptured(DimseRequest r) {
+        for (RecordListener listener : listeners)
+            listener.dataCaptured(this, r);
+    }
+    
+    public void record(DimseRequest r) {
+        synchronized (requests) {
+            requests.add(r);
+        }
+        requestRecorded(r);
+    }
+    
+    /**
+     * Index the request, if the recorder is indexed, and notify the
+     * listeners, to be called by subclasses for each request they keep.
+     */
+    protected void requestRecorded(DimseRequest r) {
+        if (indexed)
+            requestIndex.add(r);
+        notifyRecorded(r);
+    }
+    
+    /**
+     * Notify the listeners only, for subclasses which maintain the index
+     * themselves.
+     */
+    protected void notifyRecorded(DimseRequest r) {
+        for (RecordListener listener : listeners)
+            listener.recorded(this, r);
+    }
+    
+    /**
+     * @return true if the recorder keeps a {@link RequestIndex}
+     */
+    public boolean isIndexed() {
+        return indexed;
+    }
+    
+    /**
+     * @return index over the requests kept by the recorder
+     * @throws IllegalStateException
+     *             if the recorder is not indexed
+     */
+    public RequestIndex getRequestIndex() {
+        if (!indexed)
+            throw new IllegalStateException("Recorded requests are not indexed");
+        return requestIndex;
+    }
+    
+    /**
+     * Listeners are called on the thread recording the request, after it was
+     * indexed.
+     */
+    public void addRecordListener(RecordListener listener) {
+        listeners.add(listener);
+    }
+    
+    public void removeRecordListener(RecordListener listener) {
+        listeners.remove(listener);
+    }
+    
+    /**
+     * Evaluates the matcher now and after each request recorded until it
+     * matches. Matchers on the recorder like
+     * {@link RequestMatchers#recordedCStoreRequest(String, int)} answer from
+     * the index, so no recorded request is looked at again. Other matchers,
+     * like {@link RequestMatchers#recordedRequests(Matcher)}, and all
+     * matchers on a recorder which is not indexed rescan all recorded
+     * requests on each evaluation.
+     * 
+     * @return future completed when the matcher matches, cancel it to stop
+     *         evaluating
+     */
+    public CompletableFuture<Void> whenRecorded(Matcher<? super DimseRequestRecorder> matcher) {
+        final MatchingListener listener = new MatchingListener(matcher);
+        addRecordListener(listener);
+        listener.future.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void result, Throwable failure) {
+                removeRecordListener(listener);
+            }
+        });
+        listener.evaluate(this);
+        return listener.future;
+    }
+    
+    public interface RecordListener {
+        void recorded(DimseRequestRecorder recorder, DimseRequest request);
+        
+        /**
+         * Called when the data set of a recorded C-STORE request was captured
+         * after it was parsed, see
+         * {@link DicomServiceInterceptor#afterDataParsed}.
+         */
+        default void dataCaptured(DimseRequestRecorder recorder, DimseRequest request) {
+        }
+    }
+    
+    private static class MatchingListener implements RecordListener {
+        private final Matcher<? super DimseRequestRecorder> matcher;
+        private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+        
+        MatchingListener(Matcher<? super DimseRequestRecorder> matcher) {
+            this.matcher = matcher;
+        }
+
+        @Override
+        public void recorded(DimseRequestRecorder recorder, DimseRequest request) {
+            evaluate(recorder);
+        }
+        
+        @Override
+        public void dataCaptured(DimseRequestRecorder recorder, DimseRequest request) {
+            evaluate(recorder);
+        }
+        
+        void evaluate(DimseRequestRecorder recorder) {
+            if (future.isDone())
+                return;
+            
+            try {
+                if (matcher.matches(recorder))
+                    future.complete(null);
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
     }
 
     public static class DimseRequest {
         private String callingAETitle;
         private String calledAETitle;
+        private Dimse dimse;
         private Attributes cmd;
-        private Attributes data;
+        // captured after recording for C-STORE requests
+        private volatile Attributes data;
+        private long timestamp;
+        private int associationSerialNo = -1;
         
         public DimseRequest(String callingAETitle, String calledAETitle, Attributes cmd, Attributes data) {
+            this.timestamp = System.currentTimeMillis();
             this.callingAETitle = callingAETitle;
-            this.calledAETitle = calledAETitle;
+            this.calledAETitle = calledAETitle;
             this.cmd = (cmd != null) ? new Attributes(cmd) : null;
-            this.data = (data != null) ? new Attributes(data) : null;
+            this.data = (data != null) ? new Attributes(data) : null;
+        }
+        
+        private DimseRequest() {
+        }
+        
+        /**
+         * Create a request taking ownership of the given, already captured
+         * attributes without copying them.
+         */
+        public static DimseRequest captured(String callingAETitle, String calledAETitle, Dimse dimse,
+                Attributes cmd, Attributes data) {
+            return captured(callingAETitle, calledAETitle, dimse, cmd, data, System.currentTimeMillis(), -1);
+        }
+        
+        /**
+         * @param timestamp
+         *            time the request was received, in ms since the epoch
+         * @param associationSerialNo
+         *            serial number of the association carrying the request,
+         *            -1 if not known
+         */
+        public static DimseRequest captured(String callingAETitle, String calledAETitle, Dimse dimse,
+                Attributes cmd, Attributes data, long timestamp, int associationSerialNo) {
+            DimseRequest r = new DimseRequest();
+            r.callingAETitle = callingAETitle;
+            r.calledAETitle = calledAETitle;
+            r.dimse = dimse;
+            r.cmd = cmd;
+            r.data = data;
+            r.timestamp = timestamp;
+            r.associationSerialNo = associationSerialNo;
+            return r;
         }
 
         public String getCallingAETitle() {
@@ -82,18 +327,175 @@ public class DimseRequestRecorder implements DicomServiceInterceptor {
             return calledAETitle;
         }
 
+        /**
+         * @return type of the request, null if not known
+         */
+        public Dimse getDimse() {
+            return dimse;
+        }
+
         public Attributes getCmd() {
             return cmd;
         }
 
+        /**
+         * @return captured data set, for C-STORE requests null until the
+         *         service parsed it, see
+         *         {@link DicomServiceInterceptor#afterDataParsed}
+         */
         public Attributes getData() {
             return data;
         }
+
+        /**
+         * @return time the request was received, in ms since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return serial number of the association carrying the request, -1
+         *         if not known
+         */
+        public int getAssociationSerialNo() {
+            return associationSerialNo;
+        }
         
     }
     
+    /**
+     * @return live view of the recorded requests, which keeps the index up
+     *         to date on modification if the recorder is indexed. It may be
+     *         used while requests are recorded, its iterators work on a
+     *         snapshot and do not support removal.
+     */
     public List<DimseRequest> getRequests() {
-        return requests;
+        return indexed ? indexedRequests : plainRequests;
+    }
+    
+    /**
+     * Live view of recorded requests. All access is synchronized on the
+     * underlying list, which the recorder also locks to add requests.
+     * Iterators work on a snapshot taken under the lock, so a matcher
+     * iterating the view does not fail while other associations record.
+     */
+    static class SynchronizedRequests extends AbstractList<DimseRequest> {
+        final List<DimseRequest> requests;
+        
+        SynchronizedRequests(List<DimseRequest> requests) {
+            this.requests = requests;
+        }
+        
+        List<DimseRequest> snapshot() {
+            synchronized (requests) {
+                return new ArrayList<DimseRequest>(requests);
+            }
+        }
+
+        @Override
+        public Iterator<DimseRequest> iterator() {
+            return Collections.unmodifiableList(snapshot()).iterator();
+        }
+
+        @Override
+        public ListIterator<DimseRequest> listIterator(int i) {
+            return Collections.unmodifiableList(snapshot()).listIterator(i);
+        }
+
+        @Override
+        public DimseRequest get(int i) {
+            synchronized (requests) {
+                return requests.get(i);
+            }
+        }
+
+        @Override
+        public int size() {
+            synchronized (requests) {
+                return requests.size();
+            }
+        }
+
+        @Override
+        public void add(int i, DimseRequest r) {
+            synchronized (requests) {
+                requests.add(i, r);
+            }
+        }
+
+        @Override
+        public DimseRequest set(int i, DimseRequest r) {
+            synchronized (requests) {
+                return requests.set(i, r);
+            }
+        }
+
+        @Override
+        public DimseRequest remove(int i) {
+            synchronized (requests) {
+                return requests.remove(i);
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (requests) {
+                requests.clear();
+            }
+        }
+    }
+    
+    /**
+     * Live view of the recorded requests keeping the index up to date on
+     * modification.
+     */
+    static class IndexedRequests extends SynchronizedRequests {
+        private final RequestIndex index;
+        
+        IndexedRequests(List<DimseRequest> requests, RequestIndex index) {
+            super(requests);
+            this.index = index;
+        }
+        
+        RequestIndex getIndex() {
+            return index;
+        }
+
+        @Override
+        public void add(int i, DimseRequest r) {
+            synchronized (requests) {
+                requests.add(i, r);
+                index.add(r);
+            }
+        }
+
+        @Override
+        public DimseRequest set(int i, DimseRequest r) {
+            synchronized (requests) {
+                DimseRequest old = requests.set(i, r);
+                index.remove(old);
+                index.add(r);
+                return old;
+            }
+        }
+
+        @Override
+        public DimseRequest remove(int i) {
+            synchronized (requests) {
+                DimseRequest old = requests.remove(i);
+                index.remove(old);
+                return old;
+            }
+        }
+
+        @Override
+        public void clear() {
+            synchronized (requests) {
+                requests.clear();
+                index.clear();
+            }
+        }
     }
     
 }
@@ -97,6 +97,9 @@ public class ExternalDeviceTool implements TestTool {
         this.builder = builder;
         
         Device device = builder.cfg.getDevice();
+        if (builder.cfg.isVirtualThreads()) {
+            LOG.info("External device {} uses virtual threads", device.getDeviceName());
+        }
         device.setExecutor(builder.cfg.getExecutor());
         device.setScheduledExecutor(builder.cfg.getScheduledExecutorService());
         ApplicationEntity ae = device.getApplicationEntity(builder.cfg.getAeTitle());
@@ -49,6 +49,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
+import org.dcm4che.test.tool.SharedExecutors;
 import org.dcm4che3.conf.api.internal.DicomConfigurationManager;
 import org.dcm4che3.conf.core.api.ConfigurationException;
 import org.dcm4che3.media.DicomDirWriter;
@@ -72,7 +73,8 @@ public class ExternalDeviceToolConfig {
 
     private final HashMap<String, Connection> remoteConnections = new HashMap<String, Connection>();
     private boolean stgCmtOnSameAssoc;
-    private Executor executor = Executors.newCachedThreadPool();
+    private Executor executor;
+    private boolean virtualThreads;
     private ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
     private DicomDirWriter dicomDirWriter;
     private String aeTitle;
@@ -165,6 +167,23 @@ public class ExternalDeviceToolConfig {
         return this;
     }
     
+    /**
+     * Run the association acceptor, the per-association readers and the DIMSE
+     * handling on virtual threads instead of a cached pool of platform threads.
+     * Requires Java 21 or later. Ignored if an executor is set explicitly.
+     * 
+     * @param virtualThreads
+     * @return this config
+     * @throws UnsupportedOperationException if the JVM does not support virtual threads
+     */
+    public ExternalDeviceToolConfig virtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !SharedExecutors.isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+        }
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+    
     public ExternalDeviceToolConfig scheduledExecutor(ScheduledExecutorService scheduledExecutor) {
         this.scheduledExecutor = scheduledExecutor;
         return this;
@@ -199,9 +218,16 @@ public class ExternalDeviceToolConfig {
     }
 
     public Executor getExecutor() {
+        if (executor == null) {
+            executor = virtualThreads ? SharedExecutors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        }
         return executor;
     }
     
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+    
     public ScheduledExecutorService getScheduledExecutorService() {
         return scheduledExecutor;
     }
@@ -0,0 +1,371 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomEncodingOptions;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Keeps received instances in memory instead of writing them to disk.
+ * 
+ * Either the complete datasets are kept, or only the headers (without bulk
+ * data) together with a digest of the received dataset stream. Both the number
+ * of kept instances and their estimated size in bytes (the encoded length of
+ * the kept datasets) are bounded, the oldest instances are dropped first.
+ */
+public class InMemoryInstanceStorage implements InstanceStorage {
+
+    public enum Mode {
+        /**
+         * Keep complete datasets including bulk data.
+         */
+        DATASET,
+
+        /**
+         * Keep the dataset without bulk data and a digest of the received
+         * dataset stream.
+         */
+        HEADERS_WITH_DIGEST
+    }
+
+    private final Mode mode;
+    private final int maxInstances;
+    private final long maxBytes;
+    private final String digestAlgorithm;
+
+    private final LinkedHashMap<String, StoredInstance> instances = new LinkedHashMap<>();
+    private long totalBytes;
+
+    /**
+     * Keep complete datasets of up to the given number of instances.
+     */
+    public InMemoryInstanceStorage(int maxInstances) {
+        this(Mode.DATASET, maxInstances, Long.MAX_VALUE, "SHA-256");
+    }
+
+    /**
+     * Keep complete datasets of up to the given number of instances and
+     * bytes.
+     */
+    public InMemoryInstanceStorage(int maxInstances, long maxBytes) {
+        this(Mode.DATASET, maxInstances, maxBytes, "SHA-256");
+    }
+
+    public InMemoryInstanceStorage(Mode mode, int maxInstances, String digestAlgorithm) {
+        this(mode, maxInstances, Long.MAX_VALUE, digestAlgorithm);
+    }
+
+    /**
+     * @param mode
+     *            what to keep of every instance
+     * @param maxInstances
+     *            maximum number of kept instances
+     * @param maxBytes
+     *            maximum estimated size of all kept instances, an instance
+     *            larger than that is not kept at all
+     * @param digestAlgorithm
+     *            message digest algorithm used in
+     *            {@link Mode#HEADERS_WITH_DIGEST} mode
+     */
+    public InMemoryInstanceStorage(Mode mode, int maxInstances, long maxBytes, String digestAlgorithm) {
+        if (maxInstances < 1)
+            throw new IllegalArgumentException("maxInstances: " + maxInstances);
+        if (maxBytes < 1)
+            throw new IllegalArgumentException("maxBytes: " + maxBytes);
+        try {
+            MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+
+        this.mode = mode;
+        this.maxInstances = maxInstances;
+        this.maxBytes = maxBytes;
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    @Override
+    public Attributes store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data) throws IOException {
+        String cuid = rq.getString(Tag.AffectedSOPClassUID);
+        String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+        String tsuid = pc.getTransferSyntax();
+
+        Attributes dataset;
+        byte[] digest = null;
+        if (mode == Mode.DATASET) {
+            dataset = data.readDataset(tsuid);
+        } else {
+            MessageDigest md = newMessageDigest();
+            DigestingInputStream in = new DigestingInputStream(data, md);
+            DicomInputStream dis = new DicomInputStream(in, tsuid);
+            dis.setIncludeBulkData(IncludeBulkData.NO);
+            dataset = dis.readDataset(-1, -1);
+            // include trailing padding, if any
+            in.skip(Long.MAX_VALUE);
+            digest = md.digest();
+        }
+
+        Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
+        long length = fmi.calcLength(DicomEncodingOptions.DEFAULT, true)
+                + dataset.calcLength(DicomEncodingOptions.DEFAULT, true);
+        add(iuid, new StoredInstance(fmi, dataset, digest, length, System.currentTimeMillis()));
+        return dataset;
+    }
+
+    private void add(String iuid, StoredInstance instance) {
+        synchronized (instances) {
+            StoredInstance previous = instances.remove(iuid);
+            if (previous != null)
+                totalBytes -= previous.length;
+
+            instances.put(iuid, instance);
+            totalBytes += instance.length;
+
+            Iterator<StoredInstance> eldest = instances.values().iterator();
+            while (instances.size() > maxInstances || totalBytes > maxBytes) {
+                totalBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    @Override
+    public String getSOPClassUID(String sopInstanceUID) {
+        StoredInstance instance = get(sopInstanceUID);
+        return instance != null ? instance.getFileMetaInformation().getString(Tag.MediaStorageSOPClassUID) : null;
+    }
+
+    /**
+     * @return stored instance, null if not (or not anymore) stored
+     */
+    public StoredInstance get(String sopInstanceUID) {
+        synchronized (instances) {
+            return instances.get(sopInstanceUID);
+        }
+    }
+
+    /**
+     * @return SOP Instance UIDs of all kept instances, in the order they were
+     *         received
+     */
+    public List<String> getSOPInstanceUIDs() {
+        synchronized (instances) {
+            return new ArrayList<>(instances.keySet());
+        }
+    }
+
+    public int size() {
+        synchronized (instances) {
+            return instances.size();
+        }
+    }
+
+    /**
+     * @return estimated size of all kept instances in bytes
+     */
+    public long getEstimatedBytes() {
+        synchronized (instances) {
+            return totalBytes;
+        }
+    }
+
+    public void clear() {
+        synchronized (instances) {
+            instances.clear();
+            totalBytes = 0;
+        }
+    }
+
+    public int getMaxInstances() {
+        return maxInstances;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return MessageDigest.getInstance(digestAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // checked in constructor
+        }
+    }
+
+    /**
+     * Instance kept in memory.
+     */
+    public static class StoredInstance {
+        private final Attributes fmi;
+        private final Attributes dataset;
+        private final byte[] digest;
+        private final long length;
+        private final long receiveTime;
+
+        private StoredInstance(Attributes fmi, Attributes dataset, byte[] digest, long length, long receiveTime) {
+            this.fmi = fmi;
+            this.dataset = dataset;
+            this.digest = digest;
+            this.length = length;
+            this.receiveTime = receiveTime;
+        }
+
+        public Attributes getFileMetaInformation() {
+            return fmi;
+        }
+
+        /**
+         * @return received dataset, without bulk data in
+         *         {@link Mode#HEADERS_WITH_DIGEST} mode
+         */
+        public Attributes getDataset() {
+            return dataset;
+        }
+
+        /**
+         * @return digest of the received dataset stream, null in
+         *         {@link Mode#DATASET} mode
+         */
+        public byte[] getDigest() {
+            return digest;
+        }
+
+        public String getDigestAsHex() {
+            if (digest == null)
+                return null;
+
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return sb.toString();
+        }
+
+        /**
+         * @return encoded length of the kept file meta information and
+         *         dataset, counted against the byte bound
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public long getReceiveTime() {
+            return receiveTime;
+        }
+    }
+
+    /**
+     * Updates a message digest with all bytes read or skipped.
+     */
+    static class DigestingInputStream extends FilterInputStream {
+        private final MessageDigest md;
+        private final byte[] skipBuffer = new byte[8192];
+        private long count;
+
+        DigestingInputStream(InputStream in, MessageDigest md) {
+            super(in);
+            this.md = md;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                md.update((byte) b);
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                md.update(b, off, n);
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(skipBuffer, 0, (int) Math.min(skipBuffer.length, n - skipped));
+                if (read < 0)
+                    break;
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Immutable list of {@link DicomServiceInterceptor}s. Adding an interceptor
+ * returns a new chain, so services swap the chain atomically and requests run
+ * over a stable array without locking or copying.
+ */
+public final class InterceptorChain {
+
+    public static final InterceptorChain EMPTY = new InterceptorChain(new DicomServiceInterceptor[0]);
+
+    private final DicomServiceInterceptor[] interceptors;
+
+    private InterceptorChain(DicomServiceInterceptor[] interceptors) {
+        this.interceptors = interceptors;
+    }
+
+    /**
+     * @return new chain with the interceptor appended
+     */
+    public InterceptorChain with(DicomServiceInterceptor interceptor) {
+        if (interceptor == null)
+            throw new NullPointerException("interceptor");
+
+        DicomServiceInterceptor[] copy = Arrays.copyOf(interceptors, interceptors.length + 1);
+        copy[interceptors.length] = interceptor;
+        return new InterceptorChain(copy);
+    }
+
+    public List<DicomServiceInterceptor> getInterceptors() {
+        return Collections.unmodifiableList(Arrays.asList(interceptors));
+    }
+
+    public boolean isEmpty() {
+        return interceptors.length == 0;
+    }
+
+    /**
+     * Run the before hooks, then the service wrapped by the around hooks.
+     */
+    void invoke(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data,
+            DimseInvocation.Service service) throws IOException {
+        for (DicomServiceInterceptor interceptor : interceptors)
+            interceptor.beforeDimseRQ(as, pc, dimse, cmd, data);
+
+        if (interceptors.length == 0)
+            service.invoke();
+        else
+            new DimseInvocation(interceptors, as, pc, dimse, cmd, data, service).proceed();
+    }
+
+    void afterDataParsed(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data)
+            throws IOException {
+        for (DicomServiceInterceptor interceptor : interceptors)
+            interceptor.afterDataParsed(as, pc, dimse, cmd, data);
+    }
+
+    void beforeDimseRSP(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes rsp)
+            throws IOException {
+        for (DicomServiceInterceptor interceptor : interceptors)
+            interceptor.beforeDimseRSP(as, pc, dimse, cmd, rsp);
+    }
+}
@@ -0,0 +1,147 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.Random;
+
+/**
+ * Distribution of additional response delays in milliseconds used for fault
+ * injection in {@link BehavioralCStoreSCP}.
+ * 
+ * Random distributions take a seed, so that a scenario can be reproduced
+ * deterministically as long as the requests arrive in the same order.
+ */
+public abstract class Jitter {
+
+    public static final Jitter NONE = fixed(0);
+
+    /**
+     * @return next delay in milliseconds, never negative
+     */
+    public abstract long nextDelay();
+
+    public static Jitter fixed(final long delay) {
+        if (delay < 0)
+            throw new IllegalArgumentException("delay: " + delay);
+
+        return new Jitter() {
+            @Override
+            public long nextDelay() {
+                return delay;
+            }
+
+            @Override
+            public String toString() {
+                return "fixed(" + delay + ")";
+            }
+        };
+    }
+
+    /**
+     * Uniformly distributed delay between <code>min</code> (inclusive) and
+     * <code>max</code> (exclusive).
+     */
+    public static Jitter uniform(final long min, final long max, long seed) {
+        if (min < 0 || max <= min)
+            throw new IllegalArgumentException("min: " + min + ", max: " + max);
+
+        final Random random = new Random(seed);
+        return new Jitter() {
+            @Override
+            public long nextDelay() {
+                synchronized (random) {
+                    return min + (long) (random.nextDouble() * (max - min));
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "uniform(" + min + ", " + max + ")";
+            }
+        };
+    }
+
+    /**
+     * Exponentially distributed delay, typical for the service time of a busy
+     * peer.
+     */
+    public static Jitter exponential(final double mean, long seed) {
+        if (mean <= 0)
+            throw new IllegalArgumentException("mean: " + mean);
+
+        final Random random = new Random(seed);
+        return new Jitter() {
+            @Override
+            public long nextDelay() {
+                synchronized (random) {
+                    return (long) (-mean * Math.log(1 - random.nextDouble()));
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "exponential(" + mean + ")";
+            }
+        };
+    }
+
+    /**
+     * Normally distributed delay, negative samples are cut off at 0.
+     */
+    public static Jitter gaussian(final double mean, final double stdDev, long seed) {
+        if (mean < 0 || stdDev < 0)
+            throw new IllegalArgumentException("mean: " + mean + ", stdDev: " + stdDev);
+
+        final Random random = new Random(seed);
+        return new Jitter() {
+            @Override
+            public long nextDelay() {
+                synchronized (random) {
+                    return Math.max(0, Math.round(mean + stdDev * random.nextGaussian()));
+                }
+            }
+
+            @Override
+            public String toString() {
+                return "gaussian(" + mean + ", " + stdDev + ")";
+            }
+        };
+    }
+}
@@ -0,0 +1,151 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Dimse;
+
+/**
+ * Number of recorded requests per DIMSE type and referenced SOP Instance UID,
+ * maintained incrementally by {@link DimseRequestRecorder} so that
+ * {@link RequestMatchers} can answer in constant time.
+ * 
+ * C-STORE requests reference their Affected SOP Instance UID, storage
+ * commitment N-ACTION requests every instance of their Referenced SOP
+ * Sequence. Requests without a known DIMSE type are indexed by the attributes
+ * they contain.
+ */
+public class RequestIndex {
+
+    private static final Dimse[] INDEXED = { Dimse.C_STORE_RQ, Dimse.N_ACTION_RQ };
+
+    private final Map<Dimse, ConcurrentMap<String, AtomicInteger>> counts =
+            new EnumMap<Dimse, ConcurrentMap<String, AtomicInteger>>(Dimse.class);
+
+    public RequestIndex() {
+        for (Dimse dimse : INDEXED)
+            counts.put(dimse, new ConcurrentHashMap<String, AtomicInteger>());
+    }
+
+    public void add(DimseRequest request) {
+        update(request, 1);
+    }
+
+    public void remove(DimseRequest request) {
+        update(request, -1);
+    }
+
+    /**
+     * @return number of requests of the given type referencing the instance
+     */
+    public int count(Dimse dimse, String sopInstanceUID) {
+        ConcurrentMap<String, AtomicInteger> map = counts.get(dimse);
+        if (map == null)
+            throw new IllegalArgumentException("Requests not indexed: " + dimse);
+
+        AtomicInteger count = map.get(sopInstanceUID);
+        return count != null ? count.get() : 0;
+    }
+
+    public void clear() {
+        for (ConcurrentMap<String, AtomicInteger> map : counts.values())
+            map.clear();
+    }
+
+    private void update(DimseRequest request, int delta) {
+        for (Dimse dimse : INDEXED) {
+            String[] iuids = referencedInstances(dimse, request);
+            if (iuids == null)
+                continue;
+
+            ConcurrentMap<String, AtomicInteger> map = counts.get(dimse);
+            for (String iuid : iuids) {
+                if (iuid == null)
+                    continue;
+
+                AtomicInteger count = map.get(iuid);
+                if (count == null) {
+                    AtomicInteger newCount = new AtomicInteger();
+                    count = map.putIfAbsent(iuid, newCount);
+                    if (count == null)
+                        count = newCount;
+                }
+                count.addAndGet(delta);
+            }
+        }
+    }
+
+    /**
+     * @return SOP Instance UIDs the request references as a request of the
+     *         given type, null if it is no such request
+     */
+    static String[] referencedInstances(Dimse dimse, DimseRequest request) {
+        if (request.getDimse() != null && request.getDimse() != dimse)
+            return null;
+
+        switch (dimse) {
+        case C_STORE_RQ:
+            Attributes cmd = request.getCmd();
+            String iuid = cmd != null ? cmd.getString(Tag.AffectedSOPInstanceUID) : null;
+            return iuid != null ? new String[] { iuid } : null;
+        case N_ACTION_RQ:
+            Attributes data = request.getData();
+            Sequence refSOPSeq = data != null ? data.getSequence(Tag.ReferencedSOPSequence) : null;
+            if (refSOPSeq == null)
+                return null;
+
+            String[] iuids = new String[refSOPSeq.size()];
+            for (int i = 0; i < iuids.length; i++)
+                iuids[i] = refSOPSeq.get(i).getString(Tag.ReferencedSOPInstanceUID);
+            return iuids;
+        default:
+            return null;
+        }
+    }
+}
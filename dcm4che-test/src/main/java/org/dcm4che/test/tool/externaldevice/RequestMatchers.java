@@ -42,104 +42,233 @@ package org.dcm4che.test.tool.externaldevice;
 import static java.lang.String.format;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
-import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Sequence;
-import org.dcm4che3.data.Tag;
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.IndexedRequests;
+import org.dcm4che3.net.Dimse;
+import org.hamcrest.BaseMatcher;
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeDiagnosingMatcher;
 
 /**
+ * Matchers counting the requests referencing a SOP instance. Lists returned by
+ * {@link DimseRequestRecorder#getRequests()} and recorders themselves are
+ * answered from the {@link RequestIndex} of the recorder, other lists are
+ * scanned.
+ * 
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
  *
  */
 public class RequestMatchers {
 
     public static Matcher<List<? super DimseRequestRecorder.DimseRequest>> containsCStoreRequest(String sopInstanceUID, int numberOfExpectedRequests) {
-        return new IsCStoreRequest(sopInstanceUID, numberOfExpectedRequests);
+        return new ContainsInstanceRequest(Dimse.C_STORE_RQ, sopInstanceUID, numberOfExpectedRequests);
     }
     
     public static Matcher<List<? super DimseRequestRecorder.DimseRequest>> containsStgCmtRequest(String sopInstanceUID, int numberOfExpectedRequests) {
-        return new IsStgCmtRequest(sopInstanceUID, numberOfExpectedRequests);
+        return new ContainsInstanceRequest(Dimse.N_ACTION_RQ, sopInstanceUID, numberOfExpectedRequests);
     }
     
-    private static abstract class ContainsInstanceRequest extends TypeSafeDiagnosingMatcher<List<? super DimseRequestRecorder.DimseRequest>> {
+    public static Matcher<DimseRequestRecorder> recordedCStoreRequest(String sopInstanceUID, int numberOfExpectedRequests) {
+        return new RecordedInstanceRequest(Dimse.C_STORE_RQ, sopInstanceUID, numberOfExpectedRequests);
+    }
+    
+    public static Matcher<DimseRequestRecorder> recordedStgCmtRequest(String sopInstanceUID, int numberOfExpectedRequests) {
+        return new RecordedInstanceRequest(Dimse.N_ACTION_RQ, sopInstanceUID, numberOfExpectedRequests);
+    }
+    
+    /**
+     * Matches the requests of a recorder, for use with
+     * {@link #eventually(Matcher, long, TimeUnit)} or
+     * {@link DimseRequestRecorder#whenRecorded(Matcher)}. The matcher is
+     * applied to all recorded requests on each evaluation, unlike the
+     * index-backed {@link #recordedCStoreRequest(String, int)} and
+     * {@link #recordedStgCmtRequest(String, int)}, so waiting with it costs
+     * a rescan per recorded request.
+     */
+    public static Matcher<DimseRequestRecorder> recordedRequests(Matcher<? super List<DimseRequest>> matcher) {
+        return new RecordedRequests(matcher);
+    }
+    
+    /**
+     * Waits until the recorder matches, re-evaluating the matcher on each
+     * request recorded instead of polling. Use it with matchers answered from
+     * the {@link RequestIndex} like {@link #recordedCStoreRequest(String, int)}.
+     */
+    public static Matcher<DimseRequestRecorder> eventually(Matcher<? super DimseRequestRecorder> matcher, long timeout, TimeUnit unit) {
+        return new Eventually(matcher, timeout, unit);
+    }
+    
+    private static void describe(Description description, String verb, int numberOfRequests, String sopInstanceUID) {
+        description.appendText(format("%s %d request for SOP instance with UID %s", verb, numberOfRequests, sopInstanceUID));
+    }
+    
+    private static class ContainsInstanceRequest extends TypeSafeDiagnosingMatcher<List<? super DimseRequestRecorder.DimseRequest>> {
+        private final Dimse dimse;
         private final String sopInstanceUID;
         private final int numberOfExpectedRequests;
         
-        private ContainsInstanceRequest(String sopInstanceUID, int numberOfExpectedRequests) {
+        private ContainsInstanceRequest(Dimse dimse, String sopInstanceUID, int numberOfExpectedRequests) {
+            this.dimse = dimse;
             this.sopInstanceUID = sopInstanceUID;
             this.numberOfExpectedRequests = numberOfExpectedRequests;
         }
         
         @Override
         public void describeTo(Description description) {
-            description.appendText(format("contains %d request for SOP instance with UID %s", numberOfExpectedRequests, sopInstanceUID));
+            describe(description, "contains", numberOfExpectedRequests, sopInstanceUID);
         }
 
         @Override
         protected boolean matchesSafely(List<? super DimseRequest> requests, Description mismatchDescription) {
-            int actualRequests = 0;
-            for(Object o : requests) {
-                if(!(o instanceof DimseRequest)) {
-                    continue;
-                }
-                
-                DimseRequest request = (DimseRequest)o;
-                String[] sopInstanceUIDs = parseSopInstanceUID(request.getCmd(), request.getData());
-                if(sopInstanceUIDs == null || sopInstanceUIDs.length != 1) {
-                    continue;
-                }
-                
-                if(sopInstanceUIDs[0].equals(this.sopInstanceUID)) {
+            int actualRequests = (requests instanceof IndexedRequests)
+                    ? ((IndexedRequests) requests).getIndex().count(dimse, sopInstanceUID)
+                    : countRequests(dimse, sopInstanceUID, requests);
+            
+            if(actualRequests == numberOfExpectedRequests) {
+                return true;
+            } else {
+                describe(mismatchDescription, "does contain", actualRequests, sopInstanceUID);
+                return false;
+            }
+        }
+        
+    }
+    
+    private static int countRequests(Dimse dimse, String sopInstanceUID, List<? super DimseRequest> requests) {
+        int actualRequests = 0;
+        for(Object o : requests) {
+            if(!(o instanceof DimseRequest)) {
+                continue;
+            }
+            
+            String[] sopInstanceUIDs = RequestIndex.referencedInstances(dimse, (DimseRequest)o);
+            if(sopInstanceUIDs == null) {
+                continue;
+            }
+            
+            for(String iuid : sopInstanceUIDs) {
+                if(sopInstanceUID.equals(iuid)) {
                     actualRequests++;
                 }
             }
-            
+        }
+        return actualRequests;
+    }
+    
+    private static class RecordedInstanceRequest extends TypeSafeDiagnosingMatcher<DimseRequestRecorder> {
+        private final Dimse dimse;
+        private final String sopInstanceUID;
+        private final int numberOfExpectedRequests;
+        
+        private RecordedInstanceRequest(Dimse dimse, String sopInstanceUID, int numberOfExpectedRequests) {
+            this.dimse = dimse;
+            this.sopInstanceUID = sopInstanceUID;
+            this.numberOfExpectedRequests = numberOfExpectedRequests;
+        }
+        
+        @Override
+        public void describeTo(Description description) {
+            describe(description, "recorded", numberOfExpectedRequests, sopInstanceUID);
+        }
+
+        @Override
+        protected boolean matchesSafely(DimseRequestRecorder recorder, Description mismatchDescription) {
+            int actualRequests = recorder.isIndexed()
+                    ? recorder.getRequestIndex().count(dimse, sopInstanceUID)
+                    : countRequests(dimse, sopInstanceUID, recorder.getRequests());
             if(actualRequests == numberOfExpectedRequests) {
                 return true;
             } else {
-                mismatchDescription.appendText(format("does contain %d request for SOP instance with UID %s", actualRequests, sopInstanceUID));
+                describe(mismatchDescription, "did record", actualRequests, sopInstanceUID);
                 return false;
             }
         }
         
-        protected abstract String[] parseSopInstanceUID(Attributes cmd, Attributes data);
-          
     }
     
-    private static class IsCStoreRequest extends ContainsInstanceRequest {
+    private static class RecordedRequests extends TypeSafeDiagnosingMatcher<DimseRequestRecorder> {
+        private final Matcher<? super List<DimseRequest>> matcher;
         
-        private IsCStoreRequest(String sopInstanceUID, int numberOfExpectedRequests) {
-            super(sopInstanceUID, numberOfExpectedRequests);
+        private RecordedRequests(Matcher<? super List<DimseRequest>> matcher) {
+            this.matcher = matcher;
         }
-       
-        protected String[] parseSopInstanceUID(Attributes cmd, Attributes data) {
-            return new String[] { cmd.getString(Tag.AffectedSOPInstanceUID) };
+        
+        @Override
+        public void describeTo(Description description) {
+            description.appendText("recorded ").appendDescriptionOf(matcher);
         }
 
+        @Override
+        protected boolean matchesSafely(DimseRequestRecorder recorder, Description mismatchDescription) {
+            List<DimseRequest> requests = recorder.getRequests();
+            if(matcher.matches(requests)) {
+                return true;
+            } else {
+                matcher.describeMismatch(requests, mismatchDescription);
+                return false;
+            }
+        }
+        
     }
     
-    private static class IsStgCmtRequest extends ContainsInstanceRequest {
-      
-        private IsStgCmtRequest(String sopInstanceUID, int numberOfExpectedRequests) {
-            super(sopInstanceUID, numberOfExpectedRequests);
-        }
+    private static class Eventually extends BaseMatcher<DimseRequestRecorder> {
+        private final Matcher<? super DimseRequestRecorder> matcher;
+        private final long timeout;
+        private final TimeUnit unit;
+        // why the last evaluation did not match, so describeMismatch does not wait again
+        private volatile String failure;
         
-        protected String[] parseSopInstanceUID(Attributes cmd, Attributes data) {
-            Sequence requestSeq = data.getSequence(Tag.ReferencedSOPSequence);
-            int size = requestSeq.size();
-            String[] sopIUIDs = new String[size];
-            for (int i = 0; i < sopIUIDs.length; i++) {
-                Attributes item = requestSeq.get(i);
-                sopIUIDs[i] = item.getString(Tag.ReferencedSOPInstanceUID);
+        private Eventually(Matcher<? super DimseRequestRecorder> matcher, long timeout, TimeUnit unit) {
+            this.matcher = matcher;
+            this.timeout = timeout;
+            this.unit = unit;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText(format("within %d %s ", timeout, unit)).appendDescriptionOf(matcher);
+        }
+
+        @Override
+        public boolean matches(Object item) {
+            if (!(item instanceof DimseRequestRecorder)) {
+                failure = "was not a " + DimseRequestRecorder.class.getSimpleName();
+                return false;
             }
             
-            return sopIUIDs;
+            CompletableFuture<Void> matched = ((DimseRequestRecorder) item).whenRecorded(matcher);
+            try {
+                matched.get(timeout, unit);
+                failure = null;
+                return true;
+            } catch (TimeoutException e) {
+                failure = format("timed out after %d %s", timeout, unit);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = "interrupted while waiting";
+            } catch (ExecutionException e) {
+                failure = "matcher failed with " + e.getCause();
+            } finally {
+                matched.cancel(false);
+            }
+            return false;
         }
 
+        @Override
+        public void describeMismatch(Object item, Description description) {
+            description.appendText(failure != null ? failure : "did match");
+            if (item instanceof DimseRequestRecorder) {
+                description.appendText(", ");
+                matcher.describeMismatch(item, description);
+            }
+        }
+        
     }
     
 }
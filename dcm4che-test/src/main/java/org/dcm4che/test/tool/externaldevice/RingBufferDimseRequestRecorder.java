@@ -0,0 +1,266 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link DimseRequestRecorder} keeping the requests in a bounded ring buffer,
+ * so soak tests run in constant memory.
+ * 
+ * Association threads record lock-free. Each slot is guarded by a sequence
+ * number acting as seqlock: a writer marks the slot as being written, stores
+ * the request and publishes it with its sequence. Readers only take requests
+ * whose sequence did not change while reading them, so
+ * {@link #snapshot()} and {@link #drain()} always see complete requests in
+ * the order they were recorded.
+ * 
+ * If the buffer is full, the {@link OverflowPolicy} decides whether the oldest
+ * request is overwritten, the new one is dropped or the recording thread
+ * waits until {@link #drain()} made room.
+ * 
+ * The {@link RequestIndex} only covers the requests in the buffer, overwritten
+ * and drained requests are removed from it.
+ */
+public class RingBufferDimseRequestRecorder extends DimseRequestRecorder {
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, DROP_NEWEST, BLOCK
+    }
+
+    private static final long EMPTY = 0L;
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> slots;
+    // EMPTY, 2 * seq + 1 while written, 2 * seq + 2 once published
+    private final AtomicLongArray markers;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity
+     *            rounded up to the next power of two
+     */
+    public RingBufferDimseRequestRecorder(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, CaptureProfile.FULL);
+    }
+
+    /**
+     * @param capacity
+     *            rounded up to the next power of two
+     * @param captureProfile
+     *            selects the attributes kept of each request
+     */
+    public RingBufferDimseRequestRecorder(int capacity, OverflowPolicy policy, CaptureProfile captureProfile) {
+        super(captureProfile);
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity: " + capacity);
+
+        this.policy = policy;
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.slots = new AtomicReferenceArray<Entry>(this.capacity);
+        this.markers = new AtomicLongArray(this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return number of requests passed to {@link #record(DimseRequest)}
+     *         which were dropped or overwritten before they were drained
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void record(DimseRequest r) {
+        long seq = policy == OverflowPolicy.DROP_OLDEST ? head.getAndIncrement() : claimBounded();
+        if (seq < 0)
+            return;
+
+        int index = (int) seq & mask;
+        long writing = 2 * seq + 1;
+        for (;;) {
+            long marker = markers.get(index);
+            if ((marker & 1) == 1) {
+                // another writer wrapped around onto the same slot
+                Thread.yield();
+                continue;
+            }
+            if (marker > writing) {
+                // overtaken by a newer request for this slot
+                dropped.incrementAndGet();
+                return;
+            }
+            if (markers.compareAndSet(index, marker, writing)) {
+                if (marker != EMPTY && (marker - 2) / 2 >= tail.get())
+                    dropped.incrementAndGet(); // overwrites a request not drained yet
+                break;
+            }
+        }
+        // index before publishing, so a reader overwriting or draining it
+        // always finds it in the index
+        Entry entry = new Entry(r);
+        getRequestIndex().add(r);
+        Entry old = slots.getAndSet(index, entry);
+        markers.set(index, writing + 1);
+        if (old != null)
+            unindex(old);
+        notifyRecorded(r);
+    }
+
+    private void unindex(Entry entry) {
+        if (entry.indexed.compareAndSet(true, false))
+            getRequestIndex().remove(entry.request);
+    }
+
+    private long claimBounded() {
+        for (;;) {
+            long seq = head.get();
+            if (seq - tail.get() >= capacity) {
+                if (policy == OverflowPolicy.DROP_NEWEST) {
+                    dropped.incrementAndGet();
+                    return -1;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    dropped.incrementAndGet();
+                    return -1;
+                }
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                continue;
+            }
+            if (head.compareAndSet(seq, seq + 1))
+                return seq;
+        }
+    }
+
+    /**
+     * @return requests currently in the buffer, oldest first
+     */
+    public List<DimseRequest> snapshot() {
+        return read(false);
+    }
+
+    /**
+     * Remove the requests currently in the buffer, stops at the first request
+     * which is still being written.
+     * 
+     * @return the removed requests, oldest first
+     */
+    public List<DimseRequest> drain() {
+        return read(true);
+    }
+
+    /**
+     * @return {@link #snapshot()}, matchers count its requests from the
+     *         {@link RequestIndex}, which also covers requests recorded after
+     *         the snapshot was taken
+     */
+    @Override
+    public List<DimseRequest> getRequests() {
+        return new IndexedRequests(snapshot(), getRequestIndex());
+    }
+
+    private List<DimseRequest> read(boolean consume) {
+        if (consume) {
+            synchronized (tail) {
+                return read(true, tail.get());
+            }
+        }
+        return read(false, tail.get());
+    }
+
+    private List<DimseRequest> read(boolean consume, long from) {
+        long to = head.get();
+        long start = Math.max(from, to - capacity);
+        List<DimseRequest> result = new ArrayList<DimseRequest>((int) (to - start));
+        long seq = start;
+        for (; seq < to; seq++) {
+            int index = (int) seq & mask;
+            long published = 2 * seq + 2;
+            long before = markers.get(index);
+            if (before < published) {
+                break; // claimed, but not yet published
+            }
+            Entry entry = slots.get(index);
+            if (before != published || markers.get(index) != published) {
+                continue; // overwritten by a newer request
+            }
+            if (consume) {
+                unindex(entry);
+            }
+            result.add(entry.request);
+        }
+
+        if (consume) {
+            tail.set(seq);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private static final class Entry {
+        private final DimseRequest request;
+        // cleared by whoever removes the request from the index first
+        private final AtomicBoolean indexed = new AtomicBoolean(true);
+
+        private Entry(DimseRequest request) {
+            this.request = request;
+        }
+    }
+}
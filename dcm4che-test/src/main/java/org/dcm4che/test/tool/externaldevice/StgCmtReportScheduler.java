@@ -0,0 +1,398 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.BehavioralStgCmtSCP.BehavioralStgCmtSCPImpl;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the storage commitment N-EVENT-REPORTs of a
+ * {@link BehavioralStgCmtSCPImpl} delayed, batched and split like a real
+ * archive does, or immediately if none of this is configured.
+ * 
+ * N-ACTIONs of the same calling AE are collected in a batch which is closed
+ * once it holds the configured number of N-ACTIONs or its window expired.
+ * N-ACTIONs with the same Transaction UID are merged into one report, all
+ * reports of a batch are sent over one association. A report may be split in
+ * several partial reports with the same Transaction UID. All waiting is done
+ * by tasks on the device's scheduled executor, the device's executor is only
+ * used to send due reports.
+ */
+class StgCmtReportScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(StgCmtReportScheduler.class);
+
+    static final class Behavior {
+        long reportDelay;
+        int batchSize = 1;
+        long batchWindow;
+        int maxInstancesPerReport;
+        long splitInterval;
+    }
+
+    static final class Commitment {
+        private final Association as;
+        private final String transactionUID;
+        private final Map<String, String> requestMap;
+        private final Map<String, Integer> matches;
+
+        Commitment(Association as, String transactionUID, Map<String, String> requestMap,
+                Map<String, Integer> matches) {
+            this.as = as;
+            this.transactionUID = transactionUID;
+            this.requestMap = requestMap;
+            this.matches = matches;
+        }
+    }
+
+    private final long reportDelay;
+    private final int batchSize;
+    private final long batchWindow;
+    private final int maxInstancesPerReport;
+    private final long splitInterval;
+    private final Map<String, Connection> remoteConnections;
+    private final boolean stgCmtOnSameAssoc;
+    private final BehavioralStgCmtSCPImpl stgCmtSCP;
+
+    private final Map<String, Batch> openBatches = new HashMap<String, Batch>();
+
+    StgCmtReportScheduler(Behavior behavior, Map<String, Connection> remoteConnections,
+            boolean stgCmtOnSameAssoc, BehavioralStgCmtSCPImpl stgCmtSCP) {
+        this.reportDelay = behavior.reportDelay;
+        this.batchSize = behavior.batchSize;
+        this.batchWindow = behavior.batchWindow;
+        this.maxInstancesPerReport = behavior.maxInstancesPerReport;
+        this.splitInterval = behavior.splitInterval;
+        this.remoteConnections = remoteConnections;
+        this.stgCmtOnSameAssoc = stgCmtOnSameAssoc;
+        this.stgCmtSCP = stgCmtSCP;
+    }
+
+    boolean canReportTo(Association as) {
+        return stgCmtOnSameAssoc || remoteConnections.containsKey(as.getCallingAET());
+    }
+
+    void schedule(Commitment commitment) {
+        String callingAET = commitment.as.getCallingAET();
+        Batch closed = null;
+        synchronized (openBatches) {
+            Batch batch = openBatches.get(callingAET);
+            if (batch == null) {
+                batch = new Batch(callingAET, commitment.as.getApplicationEntity());
+                if (batchSize > 1) {
+                    batch.windowTimer = batch.device().schedule(batch, batchWindow, TimeUnit.MILLISECONDS);
+                }
+                openBatches.put(callingAET, batch);
+            }
+
+            batch.commitments.add(commitment);
+            if (batch.commitments.size() >= batchSize) {
+                openBatches.remove(callingAET);
+                closed = batch;
+            }
+        }
+
+        if (closed != null) {
+            if (closed.windowTimer != null) {
+                closed.windowTimer.cancel(false);
+            }
+            scheduleReports(closed);
+        }
+    }
+
+    private void windowExpired(Batch batch) {
+        synchronized (openBatches) {
+            if (openBatches.get(batch.callingAET) != batch) {
+                return; // already closed because it was full
+            }
+            openBatches.remove(batch.callingAET);
+        }
+        scheduleReports(batch);
+    }
+
+    private void scheduleReports(Batch batch) {
+        Map<String, Commitment> byTransaction = new LinkedHashMap<String, Commitment>();
+        for (Commitment commitment : batch.commitments) {
+            Commitment merged = byTransaction.get(commitment.transactionUID);
+            if (merged == null) {
+                byTransaction.put(commitment.transactionUID, commitment);
+            } else {
+                Map<String, String> requestMap = new LinkedHashMap<String, String>(merged.requestMap);
+                requestMap.putAll(commitment.requestMap);
+                Map<String, Integer> matches = new HashMap<String, Integer>(merged.matches);
+                matches.putAll(commitment.matches);
+                byTransaction.put(commitment.transactionUID,
+                        new Commitment(commitment.as, commitment.transactionUID, requestMap, matches));
+            }
+        }
+
+        // wave n holds the n-th partial report of every commitment
+        List<List<Report>> waves = new ArrayList<List<Report>>();
+        for (Commitment commitment : byTransaction.values()) {
+            List<String> iuids = new ArrayList<String>(commitment.requestMap.keySet());
+            int partSize = maxInstancesPerReport > 0 ? maxInstancesPerReport : Math.max(1, iuids.size());
+            int part = 0;
+            int from = 0;
+            do {
+                int to = Math.min(from + partSize, iuids.size());
+                if (waves.size() <= part) {
+                    waves.add(new ArrayList<Report>());
+                }
+                waves.get(part++).add(new Report(commitment, iuids.subList(from, to)));
+                from = to;
+            } while (from < iuids.size());
+        }
+
+        if (splitInterval <= 0) {
+            List<Report> all = new ArrayList<Report>();
+            for (List<Report> wave : waves) {
+                all.addAll(wave);
+            }
+            scheduleWave(batch, all, reportDelay);
+        } else {
+            for (int i = 0; i < waves.size(); i++) {
+                scheduleWave(batch, waves.get(i), reportDelay + i * splitInterval);
+            }
+        }
+    }
+
+    private void scheduleWave(Batch batch, final List<Report> reports, long delay) {
+        final Device device = batch.device();
+        final String callingAET = batch.callingAET;
+        final ApplicationEntity ae = batch.ae;
+        final Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                sendReports(ae, callingAET, reports);
+            }
+        };
+
+        if (delay <= 0) {
+            device.execute(send);
+        } else {
+            device.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    device.execute(send);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the given reports. Instances of reports which could not be sent are
+     * reported as failed to the {@link VerifiedInstanceRegistry}, so waiters
+     * do not wait in vain.
+     */
+    private void sendReports(ApplicationEntity ae, String callingAET, List<Report> reports) {
+        Association as = null;
+        boolean release = false;
+        int sent = 0;
+        try {
+            as = openAssociation(reports);
+            if (as == null) {
+                Connection remote = remoteConnections.get(callingAET);
+                if (remote == null) {
+                    throw new IOException("Association of " + callingAET
+                            + " already closed and no remote connection configured to report to");
+                }
+                as = ae.connect(remote, createAARQ(ae, callingAET));
+                release = true;
+            }
+
+            for (; sent < reports.size(); sent++) {
+                Report report = reports.get(sent);
+                DimseRSP rsp = as.neventReport(UID.StorageCommitmentPushModelSOPClass,
+                        UID.StorageCommitmentPushModelSOPInstance, report.eventTypeID(), report.eventInfo(ae), null);
+                rsp.next();
+                int status = rsp.getCommand().getInt(Tag.Status, -1);
+                if (status != Status.Success) {
+                    log.warn("{}: N-EVENT-REPORT for transaction {} failed with status {}", as,
+                            report.commitment.transactionUID, Integer.toHexString(status));
+                    stgCmtSCP.reportFailed(report.iuids, new IOException("N-EVENT-REPORT for transaction "
+                            + report.commitment.transactionUID + " failed with status " + Integer.toHexString(status)));
+                } else {
+                    stgCmtSCP.verified(report.results());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Failed to send storage commitment reports to " + callingAET, e);
+            for (Report report : reports.subList(sent, reports.size())) {
+                stgCmtSCP.reportFailed(report.iuids, e);
+            }
+        } finally {
+            if (release) {
+                try {
+                    as.release();
+                } catch (Exception e) {
+                    log.debug("Failed to release association to " + callingAET, e);
+                }
+            }
+        }
+    }
+
+    private Association openAssociation(List<Report> reports) {
+        if (!stgCmtOnSameAssoc) {
+            return null;
+        }
+
+        for (int i = reports.size() - 1; i >= 0; i--) {
+            Association as = reports.get(i).commitment.as;
+            if (as.isReadyForDataTransfer()) {
+                return as;
+            }
+        }
+        return null;
+    }
+
+    private static AAssociateRQ createAARQ(ApplicationEntity ae, String callingAET) {
+        AAssociateRQ aarq = new AAssociateRQ();
+        aarq.setCallingAET(ae.getAETitle());
+        aarq.setCalledAET(callingAET);
+        aarq.addPresentationContext(new PresentationContext(1, UID.StorageCommitmentPushModelSOPClass,
+                UID.ImplicitVRLittleEndian));
+        aarq.addRoleSelection(new RoleSelection(UID.StorageCommitmentPushModelSOPClass, false, true));
+        return aarq;
+    }
+
+    private final class Batch implements Runnable {
+        private final String callingAET;
+        private final ApplicationEntity ae;
+        private final List<Commitment> commitments = new ArrayList<Commitment>();
+        private ScheduledFuture<?> windowTimer;
+
+        private Batch(String callingAET, ApplicationEntity ae) {
+            this.callingAET = callingAET;
+            this.ae = ae;
+        }
+
+        private Device device() {
+            return ae.getDevice();
+        }
+
+        @Override
+        public void run() {
+            windowExpired(this);
+        }
+    }
+
+    private static final class Report {
+        private final Commitment commitment;
+        private final List<String> iuids;
+
+        private Report(Commitment commitment, List<String> iuids) {
+            this.commitment = commitment;
+            this.iuids = iuids;
+        }
+
+        private int status(String iuid) {
+            Integer status = commitment.matches.get(iuid);
+            return status != null ? status : Status.NoSuchObjectInstance;
+        }
+
+        private Map<String, Integer> results() {
+            Map<String, Integer> results = new HashMap<String, Integer>(iuids.size() * 2);
+            for (String iuid : iuids) {
+                results.put(iuid, status(iuid));
+            }
+            return results;
+        }
+
+        private int eventTypeID() {
+            for (String iuid : iuids) {
+                if (status(iuid) != Status.Success) {
+                    return 2;
+                }
+            }
+            return 1;
+        }
+
+        private Attributes eventInfo(ApplicationEntity ae) {
+            Attributes eventInfo = new Attributes(4);
+            eventInfo.setString(Tag.RetrieveAETitle, VR.AE, ae.getAETitle());
+            eventInfo.setString(Tag.TransactionUID, VR.UI, commitment.transactionUID);
+            Sequence successSeq = eventInfo.newSequence(Tag.ReferencedSOPSequence, iuids.size());
+            Sequence failedSeq = eventInfo.newSequence(Tag.FailedSOPSequence, iuids.size());
+            for (String iuid : iuids) {
+                int status = status(iuid);
+                Attributes item = new Attributes(3);
+                item.setString(Tag.ReferencedSOPClassUID, VR.UI, commitment.requestMap.get(iuid));
+                item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+                if (status == Status.Success) {
+                    successSeq.add(item);
+                } else {
+                    item.setInt(Tag.FailureReason, VR.US, status);
+                    failedSeq.add(item);
+                }
+            }
+            if (successSeq.isEmpty()) {
+                eventInfo.remove(Tag.ReferencedSOPSequence);
+            }
+            if (failedSeq.isEmpty()) {
+                eventInfo.remove(Tag.FailedSOPSequence);
+            }
+            return eventInfo;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import static java.lang.String.format;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Dimse;
+import org.hamcrest.Description;
+import org.hamcrest.Matcher;
+import org.hamcrest.TypeSafeDiagnosingMatcher;
+
+/**
+ * Matchers on the order and timing of recorded requests, based on
+ * {@link DimseRequest#getTimestamp()} and
+ * {@link DimseRequest#getAssociationSerialNo()}. Each matcher takes the
+ * requests in a single pass. They are not incremental: wrapped with
+ * {@link RequestMatchers#recordedRequests(Matcher)} and waited for, every
+ * evaluation rescans all recorded requests.
+ */
+public class TemporalRequestMatchers {
+
+    /**
+     * Matches if the C-STORE requests of a study are not interleaved with
+     * requests of another study, and if studies are given, if the studies were
+     * stored in that order. Requires the Study Instance UID in the recorded
+     * data set, which the C-STORE SCP only adds once it parsed the data set.
+     * Wrap it with {@link RequestMatchers#recordedRequests(Matcher)} to
+     * re-evaluate it as soon as the data set was captured.
+     */
+    public static Matcher<List<? super DimseRequest>> storedInStudyOrder(String... studyInstanceUIDs) {
+        return new InStudyOrder(studyInstanceUIDs);
+    }
+
+    /**
+     * Matches if at no time more than the given number of associations
+     * carried requests. An association is taken to be open from its first to
+     * its last recorded request, requests of unknown associations are
+     * ignored.
+     */
+    public static Matcher<List<? super DimseRequest>> atMostConcurrentAssociations(int maxAssociations) {
+        return new AtMostConcurrentAssociations(maxAssociations);
+    }
+
+    /**
+     * Matches if each window of the given length between the first and the
+     * last C-STORE request holds at least the given rate of C-STORE requests.
+     */
+    public static Matcher<List<? super DimseRequest>> sustainedCStoreRate(double requestsPerSecond,
+            long windowMillis) {
+        return new SustainedCStoreRate(requestsPerSecond, windowMillis);
+    }
+
+    /**
+     * Matches if an instance was stored again not earlier than the given
+     * interval after its previous C-STORE request, as on retry of a failed
+     * store.
+     */
+    public static Matcher<List<? super DimseRequest>> cStoreRetryIntervalAtLeast(long intervalMillis) {
+        return new RetryIntervalAtLeast(intervalMillis);
+    }
+
+    private static boolean isCStore(Object o) {
+        return o instanceof DimseRequest
+                && RequestIndex.referencedInstances(Dimse.C_STORE_RQ, (DimseRequest) o) != null;
+    }
+
+    private static class InStudyOrder extends TypeSafeDiagnosingMatcher<List<? super DimseRequest>> {
+        private final List<String> studyInstanceUIDs;
+
+        private InStudyOrder(String... studyInstanceUIDs) {
+            this.studyInstanceUIDs = Arrays.asList(studyInstanceUIDs);
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText("C-STORE requests in study order");
+            if (!studyInstanceUIDs.isEmpty())
+                description.appendText(" " + studyInstanceUIDs);
+        }
+
+        @Override
+        protected boolean matchesSafely(List<? super DimseRequest> requests, Description mismatchDescription) {
+            List<String> studies = new ArrayList<String>();
+            Set<String> finished = new HashSet<String>();
+            String current = null;
+            int i = 0;
+            for (Object o : requests) {
+                i++;
+                if (!isCStore(o))
+                    continue;
+
+                Attributes data = ((DimseRequest) o).getData();
+                if (data == null) {
+                    mismatchDescription.appendText(format("request #%d has no data set captured", i));
+                    return false;
+                }
+                String study = data.getString(Tag.StudyInstanceUID);
+                if (study == null) {
+                    mismatchDescription.appendText(format("request #%d has no Study Instance UID", i));
+                    return false;
+                }
+                if (study.equals(current))
+                    continue;
+
+                if (!finished.add(study)) {
+                    mismatchDescription.appendText(
+                            format("study %s was resumed after study %s at request #%d", study, current, i));
+                    return false;
+                }
+                studies.add(study);
+                current = study;
+            }
+
+            if (!studyInstanceUIDs.isEmpty() && !studyInstanceUIDs.equals(studies)) {
+                mismatchDescription.appendText("studies were stored in order " + studies);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static class AtMostConcurrentAssociations extends TypeSafeDiagnosingMatcher<List<? super DimseRequest>> {
+        private final int maxAssociations;
+
+        private AtMostConcurrentAssociations(int maxAssociations) {
+            this.maxAssociations = maxAssociations;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText(format("requests on at most %d concurrent associations", maxAssociations));
+        }
+
+        @Override
+        protected boolean matchesSafely(List<? super DimseRequest> requests, Description mismatchDescription) {
+            Map<Integer, long[]> lifetimes = new LinkedHashMap<Integer, long[]>();
+            for (Object o : requests) {
+                if (!(o instanceof DimseRequest))
+                    continue;
+
+                DimseRequest request = (DimseRequest) o;
+                if (request.getAssociationSerialNo() < 0)
+                    continue;
+
+                long timestamp = request.getTimestamp();
+                long[] lifetime = lifetimes.get(request.getAssociationSerialNo());
+                if (lifetime == null) {
+                    lifetimes.put(request.getAssociationSerialNo(), new long[] { timestamp, timestamp });
+                } else {
+                    lifetime[0] = Math.min(lifetime[0], timestamp);
+                    lifetime[1] = Math.max(lifetime[1], timestamp);
+                }
+            }
+
+            // opens encoded odd and sorted before closes at the same time, lifetimes include both ends
+            long[] events = new long[lifetimes.size() * 2];
+            int n = 0;
+            for (long[] lifetime : lifetimes.values()) {
+                events[n++] = lifetime[0] * 2 + 1;
+                events[n++] = lifetime[1] * 2 + 2;
+            }
+            Arrays.sort(events);
+
+            int open = 0;
+            for (long event : events) {
+                if ((event & 1) == 1) {
+                    if (++open > maxAssociations) {
+                        long first = events[0] / 2;
+                        mismatchDescription.appendText(format("had %d concurrent associations %d ms after the first request",
+                                open, (event - 1) / 2 - first));
+                        return false;
+                    }
+                } else {
+                    open--;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class SustainedCStoreRate extends TypeSafeDiagnosingMatcher<List<? super DimseRequest>> {
+        private final double requestsPerSecond;
+        private final long windowMillis;
+
+        private SustainedCStoreRate(double requestsPerSecond, long windowMillis) {
+            if (windowMillis <= 0)
+                throw new IllegalArgumentException("windowMillis: " + windowMillis);
+
+            this.requestsPerSecond = requestsPerSecond;
+            this.windowMillis = windowMillis;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText(format("at least %.1f C-STORE requests/s in each %d ms", requestsPerSecond,
+                    windowMillis));
+        }
+
+        @Override
+        protected boolean matchesSafely(List<? super DimseRequest> requests, Description mismatchDescription) {
+            long[] timestamps = new long[requests.size()];
+            int n = 0;
+            for (Object o : requests) {
+                if (isCStore(o))
+                    timestamps[n++] = ((DimseRequest) o).getTimestamp();
+            }
+            if (n == 0) {
+                mismatchDescription.appendText("has no C-STORE requests");
+                return false;
+            }
+            // requests recorded by concurrent associations may be slightly out of order
+            Arrays.sort(timestamps, 0, n);
+
+            long first = timestamps[0];
+            long last = timestamps[n - 1];
+            if (last - first < windowMillis) {
+                mismatchDescription.appendText(format("C-STORE requests only lasted %d ms", last - first));
+                return false;
+            }
+
+            // the emptiest window starts at the first request or right after one
+            int minCount = Integer.MAX_VALUE;
+            long minStart = first;
+            int lo = 0;
+            int hi = 0;
+            for (int i = -1; i < n; i++) {
+                long start = i < 0 ? first : timestamps[i] + 1;
+                if (start > last - windowMillis)
+                    break;
+
+                while (lo < n && timestamps[lo] < start)
+                    lo++;
+                while (hi < n && timestamps[hi] < start + windowMillis)
+                    hi++;
+                if (hi - lo < minCount) {
+                    minCount = hi - lo;
+                    minStart = start;
+                }
+            }
+
+            double rate = minCount * 1000.0 / windowMillis;
+            if (rate < requestsPerSecond) {
+                mismatchDescription.appendText(format("had %.1f C-STORE requests/s %d ms after the first one", rate,
+                        minStart - first));
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static class RetryIntervalAtLeast extends TypeSafeDiagnosingMatcher<List<? super DimseRequest>> {
+        private final long intervalMillis;
+
+        private RetryIntervalAtLeast(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        @Override
+        public void describeTo(Description description) {
+            description.appendText(format("C-STORE requests of an instance at least %d ms apart", intervalMillis));
+        }
+
+        @Override
+        protected boolean matchesSafely(List<? super DimseRequest> requests, Description mismatchDescription) {
+            Map<String, Long> lastSent = new HashMap<String, Long>();
+            for (Object o : requests) {
+                if (!isCStore(o))
+                    continue;
+
+                DimseRequest request = (DimseRequest) o;
+                String iuid = request.getCmd().getString(Tag.AffectedSOPInstanceUID);
+                Long previous = lastSent.put(iuid, request.getTimestamp());
+                if (previous == null)
+                    continue;
+
+                long interval = Math.abs(request.getTimestamp() - previous);
+                if (interval < intervalMillis) {
+                    mismatchDescription.appendText(format("instance %s was stored again after %d ms", iuid, interval));
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
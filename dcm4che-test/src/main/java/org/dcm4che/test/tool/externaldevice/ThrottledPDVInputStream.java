@@ -0,0 +1,161 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.net.PDVInputStream;
+
+/**
+ * Limits the rate at which a received dataset is read to a fixed number of
+ * bytes per second. As the PDUs are read by the association's reader thread,
+ * throttling the read causes TCP back-pressure towards the sender.
+ */
+class ThrottledPDVInputStream extends PDVInputStream {
+
+    private static final int SLICES_PER_SECOND = 20;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PDVInputStream in;
+    private final long bytesPerSecond;
+    private final int maxChunk;
+    private final long start = System.nanoTime();
+    private long bytesRead;
+
+    ThrottledPDVInputStream(PDVInputStream in, long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("bytesPerSecond: " + bytesPerSecond);
+
+        this.in = in;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxChunk = (int) Math.max(1, Math.min(BUFFER_SIZE, bytesPerSecond / SLICES_PER_SECOND));
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0)
+            consumed(1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, Math.min(len, maxChunk));
+        if (n > 0)
+            consumed(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, maxChunk));
+        if (skipped > 0)
+            consumed(skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    @Override
+    public Attributes readDataset(String tsuid) throws IOException {
+        @SuppressWarnings("resource") // must not close the underlying PDV stream
+        DicomInputStream dis = new DicomInputStream(this, tsuid);
+        return dis.readDataset(-1, -1);
+    }
+
+    @Override
+    public void copyTo(OutputStream out, int length) throws IOException {
+        byte[] buf = new byte[maxChunk];
+        int remaining = length;
+        while (remaining > 0) {
+            int n = read(buf, 0, Math.min(remaining, buf.length));
+            if (n < 0)
+                throw new IOException("Unexpected end of PDV stream, " + remaining + " bytes missing");
+            out.write(buf, 0, n);
+            remaining -= n;
+        }
+    }
+
+    @Override
+    public void copyTo(OutputStream out) throws IOException {
+        byte[] buf = new byte[maxChunk];
+        int n;
+        while ((n = read(buf, 0, buf.length)) > 0)
+            out.write(buf, 0, n);
+    }
+
+    @Override
+    public long skipAll() throws IOException {
+        byte[] buf = new byte[maxChunk];
+        long total = 0;
+        int n;
+        while ((n = read(buf, 0, buf.length)) > 0)
+            total += n;
+        return total;
+    }
+
+    private void consumed(long n) throws InterruptedIOException {
+        bytesRead += n;
+        long due = start + (long) (bytesRead * 1e9 / bytesPerSecond);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling PDV stream");
+            }
+        }
+    }
+}
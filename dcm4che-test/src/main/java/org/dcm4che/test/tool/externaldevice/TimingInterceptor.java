@@ -0,0 +1,120 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.dcm4che.test.tool.LatencyHistogram;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Records the time the service spent handling each request into a
+ * {@link LatencyHistogram} per DIMSE, including requests the service failed.
+ * 
+ * Only requests which reach the around hooks are timed: a request rejected by
+ * the {@link DicomServiceInterceptor#beforeDimseRQ before hook} of an
+ * interceptor, as by a scripted rejection, is not recorded.
+ */
+public class TimingInterceptor implements DicomServiceInterceptor {
+
+    private final ConcurrentMap<Dimse, LatencyHistogram> histograms = new ConcurrentHashMap<Dimse, LatencyHistogram>();
+
+    @Override
+    public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd, Attributes data)
+            throws IOException {
+    }
+
+    @Override
+    public void aroundDimseRQ(DimseInvocation invocation) throws IOException {
+        long start = System.nanoTime();
+        try {
+            invocation.proceed();
+        } finally {
+            histogram(invocation.getDimse()).record(System.nanoTime() - start);
+        }
+    }
+
+    private LatencyHistogram histogram(Dimse dimse) {
+        LatencyHistogram histogram = histograms.get(dimse);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(dimse, newHistogram);
+            if (histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
+
+    /**
+     * @return service times of the given DIMSE, null if none was received
+     */
+    public LatencyHistogram getHistogram(Dimse dimse) {
+        return histograms.get(dimse);
+    }
+
+    public Map<Dimse, LatencyHistogram> getHistograms() {
+        Map<Dimse, LatencyHistogram> copy = new EnumMap<Dimse, LatencyHistogram>(Dimse.class);
+        copy.putAll(histograms);
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * @return one line per received DIMSE with its service time summary
+     */
+    public String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Dimse, LatencyHistogram> entry : getHistograms().entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().summary()).append('\n');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+}
@@ -0,0 +1,306 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage commitment results per SOP Instance UID as reported by a
+ * {@link BehavioralStgCmtSCP}.
+ * 
+ * Results are written by the threads that process N-ACTIONs or send
+ * N-EVENT-REPORTs and can be awaited per UID and status. Each update only
+ * wakes the waiters registered for the updated UID, waiters never block the
+ * reporting threads.
+ */
+public class VerifiedInstanceRegistry {
+
+    /**
+     * Matches every status in {@link #whenVerified(int, String...)}.
+     */
+    public static final int ANY_STATUS = -1;
+
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+    private final ConcurrentMap<String, Integer> statuses = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> view = Collections.unmodifiableMap(statuses);
+
+    public void put(String iuid, int status) {
+        statuses.put(iuid, status);
+        slot(iuid).update(status);
+    }
+
+    public void putAll(Map<String, Integer> results) {
+        for (Map.Entry<String, Integer> entry : results.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Fail the pending and future waits for the given instances, until a
+     * status is reported for them or the registry is cleared. Used if the
+     * result for the instances could not be reported.
+     */
+    public void fail(Collection<String> iuids, Throwable cause) {
+        for (String iuid : iuids) {
+            slot(iuid).fail(cause);
+        }
+    }
+
+    /**
+     * @return last reported status of the instance or null if none was
+     *         reported yet
+     */
+    public Integer getStatus(String iuid) {
+        return statuses.get(iuid);
+    }
+
+    public int size() {
+        return statuses.size();
+    }
+
+    /**
+     * @return read-only live view of the last reported status per instance
+     */
+    public Map<String, Integer> asMap() {
+        return view;
+    }
+
+    /**
+     * @return copy of the last reported status per instance
+     */
+    public Map<String, Integer> snapshot() {
+        return new HashMap<String, Integer>(statuses);
+    }
+
+    /**
+     * @return future completed with the first status reported for the
+     *         instance, or its current status if already reported
+     */
+    public CompletableFuture<Integer> whenVerified(String iuid) {
+        return slot(iuid).register(ANY_STATUS);
+    }
+
+    /**
+     * @param status
+     *            expected status or {@link #ANY_STATUS}
+     * @return future completed once every given instance was reported with
+     *         the expected status, or exceptionally as soon as one instance
+     *         failed, see {@link #fail(Collection, Throwable)}
+     */
+    public CompletableFuture<Void> whenVerified(int status, String... iuids) {
+        return allOf(register(status, iuids));
+    }
+
+    /**
+     * Wait until every given instance was reported with the expected status.
+     * 
+     * @param timeout
+     *            0 or less to wait forever
+     * @throws TimeoutException
+     *             if the timeout passed before
+     * @throws IllegalStateException
+     *             if the result for an instance could not be reported, see
+     *             {@link #fail(Collection, Throwable)}
+     */
+    public void await(long timeout, TimeUnit unit, int status, String... iuids)
+            throws InterruptedException, TimeoutException {
+        CompletableFuture<?>[] futures = register(status, iuids);
+        CompletableFuture<Void> verified = allOf(futures);
+        try {
+            if (timeout <= 0) {
+                verified.get();
+            } else {
+                verified.get(timeout, unit);
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // let the slots drop the registrations of a timed out wait
+            for (CompletableFuture<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Forget all reported statuses, pending waits stay registered.
+     */
+    public void clear() {
+        statuses.clear();
+        for (Slot slot : slots.values()) {
+            slot.reset();
+        }
+    }
+
+    private static CompletableFuture<Void> allOf(CompletableFuture<?>[] futures) {
+        final CompletableFuture<Void> all = CompletableFuture.allOf(futures);
+        // fail as soon as one instance failed, not only once all completed
+        for (CompletableFuture<?> future : futures) {
+            future.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object status, Throwable failure) {
+                    if (failure != null) {
+                        all.completeExceptionally(failure);
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    private CompletableFuture<?>[] register(int status, String... iuids) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[iuids.length];
+        for (int i = 0; i < iuids.length; i++) {
+            futures[i] = slot(iuids[i]).register(status);
+        }
+        return futures;
+    }
+
+    private Slot slot(String iuid) {
+        Slot slot = slots.get(iuid);
+        if (slot == null) {
+            Slot newSlot = new Slot();
+            slot = slots.putIfAbsent(iuid, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+        return slot;
+    }
+
+    private static final class Slot {
+        private Integer status;
+        private Throwable failure;
+        private final List<Waiter> waiters = new ArrayList<Waiter>(1);
+
+        private CompletableFuture<Integer> register(int expected) {
+            CompletableFuture<Integer> future = new CompletableFuture<Integer>();
+            Integer current;
+            Throwable currentFailure;
+            synchronized (this) {
+                current = status;
+                currentFailure = failure;
+                if ((current == null || !matches(expected, current)) && currentFailure == null) {
+                    waiters.add(new Waiter(expected, future));
+                    return future;
+                }
+            }
+            if (current != null && matches(expected, current)) {
+                future.complete(current);
+            } else {
+                future.completeExceptionally(currentFailure);
+            }
+            return future;
+        }
+
+        private synchronized void reset() {
+            status = null;
+            failure = null;
+        }
+
+        private void fail(Throwable cause) {
+            List<Waiter> failed;
+            synchronized (this) {
+                failure = cause;
+                failed = new ArrayList<Waiter>(waiters);
+                waiters.clear();
+            }
+
+            // complete outside the lock, dependent stages run in this thread
+            for (Waiter waiter : failed) {
+                waiter.future.completeExceptionally(cause);
+            }
+        }
+
+        private void update(int newStatus) {
+            List<CompletableFuture<Integer>> completed = null;
+            synchronized (this) {
+                status = newStatus;
+                failure = null;
+                for (Iterator<Waiter> iter = waiters.iterator(); iter.hasNext();) {
+                    Waiter waiter = iter.next();
+                    if (waiter.future.isDone()) {
+                        iter.remove();
+                    } else if (matches(waiter.expected, newStatus)) {
+                        iter.remove();
+                        if (completed == null) {
+                            completed = new ArrayList<CompletableFuture<Integer>>(waiters.size() + 1);
+                        }
+                        completed.add(waiter.future);
+                    }
+                }
+            }
+
+            // complete outside the lock, dependent stages run in this thread
+            if (completed != null) {
+                for (CompletableFuture<Integer> future : completed) {
+                    future.complete(newStatus);
+                }
+            }
+        }
+
+        private static boolean matches(int expected, int status) {
+            return expected == ANY_STATUS || expected == status;
+        }
+    }
+
+    private static final class Waiter {
+        private final int expected;
+        private final CompletableFuture<Integer> future;
+
+        private Waiter(int expected, CompletableFuture<Integer> future) {
+            this.expected = expected;
+            this.future = future;
+        }
+    }
+}
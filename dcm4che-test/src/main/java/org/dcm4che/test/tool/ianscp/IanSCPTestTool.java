@@ -43,10 +43,8 @@ package org.dcm4che.test.tool.ianscp;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.security.GeneralSecurityException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 
+import org.dcm4che.test.tool.SharedExecutors;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Device;
@@ -69,6 +67,7 @@ public class IanSCPTestTool implements TestTool {
     private final Device device;
     private final ApplicationEntity ae;
     private Path storageDirectory;
+    private SharedExecutors.Lease executors;
 
     public IanSCPTestTool(Device device, Path storageDirectory) {
         this.device = device;
@@ -91,20 +90,36 @@ public class IanSCPTestTool implements TestTool {
                         transferSyntaxes));
     }
 
-    public void start() throws IOException, GeneralSecurityException {
-        ExecutorService executorService = Executors.newCachedThreadPool();
-        ScheduledExecutorService scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
-
-        device.setScheduledExecutor(scheduledExecutorService);
-        device.setExecutor(executorService);
-
-        device.bindConnections();
+    /**
+     * @throws IllegalStateException
+     *             if already started and not stopped since
+     */
+    public synchronized void start() throws IOException, GeneralSecurityException {
+        if (executors != null)
+            throw new IllegalStateException("IAN-SCP tool already started");
+
+        SharedExecutors.Lease lease = SharedExecutors.acquire();
+        device.setScheduledExecutor(lease.getScheduledExecutor());
+        device.setExecutor(lease.getExecutor());
+
+        boolean bound = false;
+        try {
+            device.bindConnections();
+            bound = true;
+        } finally {
+            if (bound)
+                executors = lease;
+            else
+                lease.close();
+        }
     }
 
-    public void stop() {
+    public synchronized void stop() {
         device.unbindConnections();
-        device.getScheduledExecutor().shutdown();
-        ((ExecutorService)device.getExecutor()).shutdown();
+        if (executors != null) {
+            executors.close();
+            executors = null;
+        }
     }
 
     public Path getStorageDirectory() {
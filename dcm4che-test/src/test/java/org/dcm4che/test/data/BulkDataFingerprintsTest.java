@@ -0,0 +1,110 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link BulkDataFingerprints} class.
+ */
+public class BulkDataFingerprintsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFingerprint() throws Exception {
+        Path reference = referenceFile();
+        Attributes dataset = DicomUtils.read(reference,
+                DicomUtils.IncludeFileMetaInformation.DATASET_ONLY, IncludeBulkData.URI);
+
+        BulkDataFingerprints.fingerprint(reference, dataset);
+
+        // SHA-256 digest instead of 512x512 16 bit pixels
+        Assert.assertEquals(32, dataset.getBytes(Tag.PixelData).length);
+    }
+
+    @Test
+    public void testAssertEqualsByFingerprint() throws Exception {
+        Path reference = referenceFile();
+        Path copy = folder.getRoot().toPath().resolve("copy.dcm");
+        Files.copy(reference, copy);
+
+        DicomAssert.assertEqualsByFingerprint(copy, reference);
+    }
+
+    @Test
+    public void testModifiedPixelDataIsDetected() throws Exception {
+        Path reference = referenceFile();
+        Path copy = folder.getRoot().toPath().resolve("copy.dcm");
+        Files.copy(reference, copy);
+        DicomAssert.assertEqualsByFingerprint(copy, reference);
+
+        // pixel data is the last element, flip its last byte
+        byte[] bytes = Files.readAllBytes(copy);
+        bytes[bytes.length - 1] ^= 0xFF;
+        FileTime lastModified = Files.getLastModifiedTime(copy);
+        Files.write(copy, bytes);
+        Files.setLastModifiedTime(copy, FileTime.fromMillis(lastModified.toMillis() + 2000));
+
+        try {
+            DicomAssert.assertEqualsByFingerprint(copy, reference);
+        } catch (AssertionError expected) {
+            return; // expected, the cached digest of the copy was invalidated
+        }
+
+        Assert.fail("Expecting exception");
+    }
+
+    private Path referenceFile() throws Exception {
+        return Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI());
+    }
+}
@@ -39,6 +39,9 @@
 
 package org.dcm4che.test.data;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
@@ -406,4 +409,18 @@ public class DicomAssertTest {
         Assert.fail("Expecting exception");
     }
 
+    @Test
+    public void testReferenceDatasetCacheOptIn() throws Exception {
+        Path reference = Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI());
+        ReferenceDatasetCache cache = DicomUtils.getReferenceDatasetCache();
+        cache.clear();
+
+        DicomAssert.assertEquals(reference, reference);
+        Assert.assertEquals(0, cache.size());
+
+        DicomAssert.assertEqualsCached(reference, reference);
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+    }
+
 }
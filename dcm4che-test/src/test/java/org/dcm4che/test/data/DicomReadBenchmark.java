@@ -0,0 +1,136 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.dcm4che.test.data.DicomUtils.IncludeFileMetaInformation;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * Compares the stream based {@link DicomUtils#read(Path)} with
+ * {@link DicomUtils#readMapped(Path, IncludeFileMetaInformation)} for a small
+ * header-only file, the single-frame CT test instance and a large multi-frame
+ * file.
+ * 
+ * <pre>
+ * java ... DicomReadBenchmark [iterations] [frames]
+ * </pre>
+ */
+public class DicomReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        Path reference = Paths.get(DicomReadBenchmark.class.getResource("/testdata/CTInstance1.dcm").toURI());
+        Path dir = Files.createTempDirectory("DicomReadBenchmark");
+        Attributes dataset = DicomUtils.read(reference, IncludeFileMetaInformation.DATASET_ONLY, IncludeBulkData.YES);
+        byte[] frame = dataset.getBytes(Tag.PixelData);
+
+        Attributes header = new Attributes(dataset);
+        header.remove(Tag.PixelData);
+        Path headerFile = write(dir.resolve("header.dcm"), header);
+
+        Attributes multiFrame = new Attributes(dataset);
+        byte[] pixelData = new byte[frame.length * frames];
+        for (int i = 0; i < frames; i++)
+            System.arraycopy(frame, 0, pixelData, i * frame.length, frame.length);
+        multiFrame.setInt(Tag.NumberOfFrames, VR.IS, frames);
+        multiFrame.setBytes(Tag.PixelData, VR.OW, pixelData);
+        Path multiFrameFile = write(dir.resolve("multiframe.dcm"), multiFrame);
+
+        try {
+            for (Path file : new Path[] { headerFile, reference, multiFrameFile }) {
+                int n = file == multiFrameFile ? Math.max(1, iterations / 10) : iterations;
+                System.out.printf("%s (%d bytes):%n", file.getFileName(), Files.size(file));
+                run("  stream, bulk data in heap", file, n, Mode.STREAM);
+                run("  stream, bulk data as URI ", file, n, Mode.STREAM_URI);
+                run("  mapped                   ", file, n, Mode.MAPPED);
+            }
+        } finally {
+            for (File file : dir.toFile().listFiles())
+                file.delete();
+            Files.delete(dir);
+        }
+    }
+
+    private enum Mode { STREAM, STREAM_URI, MAPPED }
+
+    private static void run(String name, Path file, int iterations, Mode mode) throws Exception {
+        for (int i = 0; i < iterations / 10 + 1; i++)
+            read(file, mode);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            read(file, mode);
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("%s: %.1f us/read%n", name, elapsed / 1000.0 / iterations);
+    }
+
+    private static Object read(Path file, Mode mode) throws Exception {
+        switch (mode) {
+        case STREAM:
+            return DicomUtils.read(file).getValue(Tag.PixelData);
+        case STREAM_URI:
+            return DicomUtils.read(file, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION, IncludeBulkData.URI)
+                    .getValue(Tag.PixelData);
+        default:
+            return DicomUtils.readMapped(file, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION)
+                    .getValue(Tag.PixelData);
+        }
+    }
+
+    private static Path write(Path file, Attributes dataset) throws Exception {
+        try (DicomOutputStream out = new DicomOutputStream(file.toFile())) {
+            out.writeDataset(dataset.createFileMetaInformation(UID.ExplicitVRLittleEndian), dataset);
+        }
+        return file;
+    }
+}
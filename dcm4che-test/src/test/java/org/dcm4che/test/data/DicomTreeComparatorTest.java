@@ -0,0 +1,161 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ForkJoinPool;
+
+import org.dcm4che3.data.Tag;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link DicomTreeComparator} class.
+ */
+public class DicomTreeComparatorTest {
+
+    private static final String IUID = "1.2.840.113704.1.111.5400.1294742670.43039";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEqualTrees() throws Exception {
+        Path referenceTree = tree("reference", "CT/1.dcm");
+        Path tree = tree("received", "1.2.3/4.5.6/" + IUID);
+        Files.write(tree.resolve("README.txt"), "not a DICOM file".getBytes("US-ASCII"));
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            DicomTreeComparator.Report report = new DicomTreeComparator().pool(pool).compare(tree, referenceTree);
+            Assert.assertTrue(report.toString(), report.isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+        DicomAssert.assertTreeEquals(tree, referenceTree);
+    }
+
+    @Test
+    public void testMissingAndExtra() throws Exception {
+        Path referenceTree = tree("reference", "CT/1.dcm");
+        Path empty = folder.newFolder("empty").toPath();
+
+        DicomTreeComparator.Report report = new DicomTreeComparator().compare(empty, referenceTree);
+        Assert.assertEquals(1, report.getMissing().size());
+        Assert.assertEquals(referenceTree.resolve("CT/1.dcm"), report.getMissing().values().iterator().next());
+        Assert.assertTrue(report.getExtra().isEmpty());
+
+        report = new DicomTreeComparator().compare(referenceTree, empty);
+        Assert.assertEquals(1, report.getExtra().size());
+        Assert.assertTrue(report.getMissing().isEmpty());
+    }
+
+    @Test
+    public void testDiffering() throws Exception {
+        Path referenceTree = tree("reference", "CT/1.dcm");
+        Path tree = tree("received", "1.dcm");
+
+        // pixel data is the last element, flip its last byte
+        Path file = tree.resolve("1.dcm");
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length - 1] ^= 0xFF;
+        Files.write(file, bytes);
+
+        DicomTreeComparator.Report report = new DicomTreeComparator().compare(tree, referenceTree);
+        Assert.assertEquals(1, report.getDiffering().size());
+        Assert.assertEquals(file, report.getDiffering().get(0).getFile());
+        Assert.assertEquals("tags differ: (7FE0,0010)", report.getDiffering().get(0).getDescription());
+
+        report = new DicomTreeComparator().compareBulkDataByFingerprint(true).compare(tree, referenceTree);
+        Assert.assertEquals(1, report.getDiffering().size());
+
+        Assert.assertTrue(new DicomTreeComparator()
+                .ignoreTags(Tag.PixelData)
+                .compare(tree, referenceTree).isEmpty());
+    }
+
+    @Test
+    public void testIgnoreTagsNotModified() throws Exception {
+        Path referenceTree = tree("reference", "CT/1.dcm");
+        Path tree = tree("received", "1.dcm");
+
+        // the comparing tasks must not sort the array of the caller
+        int[] unsorted = { Tag.PixelData, Tag.PatientID };
+        Assert.assertTrue(new DicomTreeComparator().ignoreTags(unsorted).compare(tree, referenceTree).isEmpty());
+        Assert.assertArrayEquals(new int[] { Tag.PixelData, Tag.PatientID }, unsorted);
+
+        DicomAssert.assertEqualsIgnoringTags(DicomUtils.read(tree.resolve("1.dcm")),
+                DicomUtils.read(referenceTree.resolve("CT/1.dcm")), unsorted);
+        Assert.assertArrayEquals(new int[] { Tag.PixelData, Tag.PatientID }, unsorted);
+    }
+
+    @Test
+    public void testReferenceDatasetCacheOptIn() throws Exception {
+        Path referenceTree = tree("reference", "CT/1.dcm");
+        Path tree = tree("received", "1.dcm");
+        ReferenceDatasetCache cache = DicomUtils.getReferenceDatasetCache();
+        cache.clear();
+
+        Assert.assertTrue(new DicomTreeComparator().compare(tree, referenceTree).isEmpty());
+        Assert.assertEquals(0, cache.size());
+
+        Assert.assertTrue(new DicomTreeComparator().cacheReferenceDatasets(true)
+                .compare(tree, referenceTree).isEmpty());
+        Assert.assertEquals(1, cache.size());
+        cache.clear();
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testAssertTreeNotEquals() throws Exception {
+        DicomAssert.assertTreeEquals(folder.newFolder("empty").toPath(), tree("reference", "CT/1.dcm"));
+    }
+
+    private Path tree(String name, String file) throws Exception {
+        Path root = folder.newFolder(name).toPath();
+        Path target = root.resolve(file);
+        Files.createDirectories(target.getParent());
+        Files.copy(Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI()), target);
+        return root;
+    }
+}
@@ -0,0 +1,114 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.dcm4che.test.data.DicomUtils.IncludeFileMetaInformation;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link MappedDicomFile} class.
+ */
+public class MappedDicomFileTest {
+
+    @Test
+    public void testReadMapped() throws Exception {
+        Path reference = Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI());
+        Attributes dataset = DicomUtils.read(reference);
+
+        MappedDicomFile mapped = DicomUtils.readMapped(reference, IncludeFileMetaInformation.DATASET_MERGED_WITH_FILE_META_INFORMATION);
+
+        byte[] pixelData = dataset.getBytes(Tag.PixelData);
+        ByteBuffer mappedPixelData = mapped.getValue(Tag.PixelData);
+        Assert.assertTrue(mappedPixelData.isReadOnly());
+        Assert.assertEquals(ByteBuffer.wrap(pixelData), mappedPixelData);
+
+        dataset.remove(Tag.PixelData);
+        Attributes mappedDataset = new Attributes(mapped.getDataset());
+        mappedDataset.remove(Tag.PixelData);
+        DicomAssert.assertEquals(mappedDataset, dataset);
+    }
+
+    @Test
+    public void testSliceMappedSeparately() throws Exception {
+        Path reference = Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI());
+        MappedDicomFile mapped = DicomUtils.readMapped(reference, IncludeFileMetaInformation.DATASET_ONLY);
+        Assert.assertTrue(mapped.isMappedAsWhole());
+
+        // as for files too large to be mapped as a whole
+        MappedDicomFile unmapped = new MappedDicomFile(reference, mapped.getSize(), null, mapped.getDataset());
+        Assert.assertFalse(unmapped.isMappedAsWhole());
+        ByteBuffer pixelData = unmapped.getValue(Tag.PixelData);
+        Assert.assertTrue(pixelData.isReadOnly());
+        Assert.assertEquals(mapped.getValue(Tag.PixelData), pixelData);
+        try {
+            unmapped.getBuffer();
+        } catch (IllegalStateException e) {
+            return; // expected
+        }
+        Assert.fail("Expecting exception");
+    }
+
+    @Test
+    public void testByteBufferInputStream() throws Exception {
+        MappedDicomFile.ByteBufferInputStream in = new MappedDicomFile.ByteBufferInputStream(
+                ByteBuffer.wrap(new byte[] { 1, 2, (byte) 0xff, 4, 5 }));
+
+        Assert.assertTrue(in.markSupported());
+        in.mark(5);
+        Assert.assertEquals(1, in.read());
+        Assert.assertEquals(1, in.skip(1));
+        Assert.assertEquals(0xff, in.read());
+        in.reset();
+
+        byte[] b = new byte[8];
+        Assert.assertEquals(5, in.read(b, 0, b.length));
+        Assert.assertEquals(5, b[4]);
+        Assert.assertEquals(-1, in.read(b, 0, b.length));
+        Assert.assertEquals(-1, in.read());
+        Assert.assertEquals(0, in.skip(10));
+    }
+}
@@ -0,0 +1,244 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.data;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.dcm4che.test.data.DicomAssert.PrivateTag;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Fragments;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link StreamingDicomComparator} class.
+ */
+public class StreamingDicomComparatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEqual() throws Exception {
+        Path reference = referenceFile();
+
+        Assert.assertTrue(new StreamingDicomComparator().bufferSize(512).compare(reference, reference).isEmpty());
+        DicomAssert.assertEqualsStreaming(reference, reference);
+    }
+
+    @Test
+    public void testDifferences() throws Exception {
+        Path reference = referenceFile();
+        Path modified = writeModified(reference, "modified.dcm");
+
+        List<StreamingDicomComparator.Difference> differences = new StreamingDicomComparator()
+                .maxDifferences(10)
+                .compare(modified, reference);
+
+        Assert.assertEquals(2, differences.size());
+        Assert.assertEquals("(0010,0020)", differences.get(0).getPath());
+        Assert.assertEquals("value length 12 instead of " + patientIDLength(reference), differences.get(0).getDescription());
+        Assert.assertEquals("(0010,4000)", differences.get(1).getPath());
+        Assert.assertEquals("unexpected", differences.get(1).getDescription());
+
+        Assert.assertEquals(1, new StreamingDicomComparator().compare(modified, reference).size());
+        Assert.assertTrue(new StreamingDicomComparator()
+                .ignoreTags(Tag.PatientID, Tag.PatientComments)
+                .compare(modified, reference).isEmpty());
+    }
+
+    @Test(expected = AssertionError.class)
+    public void testAssertNotEqual() throws Exception {
+        Path reference = referenceFile();
+        DicomAssert.assertEqualsStreaming(writeModified(reference, "modified.dcm"), reference);
+    }
+
+    @Test
+    public void testLargeValueInChunks() throws Exception {
+        byte[] pixels = new byte[64 * 1024];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (byte) i;
+        Attributes dataset = dataset();
+        dataset.setBytes(Tag.PixelData, VR.OW, pixels);
+        Path reference = write("reference.dcm", dataset, UID.ExplicitVRLittleEndian);
+
+        StreamingDicomComparator comparator = new StreamingDicomComparator().bufferSize(512);
+        Assert.assertTrue(comparator.compare(write("equal.dcm", dataset, UID.ExplicitVRLittleEndian), reference)
+                .isEmpty());
+
+        // in a chunk in the middle of the value and in its last chunk
+        for (int offset : new int[] { 40000, pixels.length - 1 }) {
+            byte[] modified = pixels.clone();
+            modified[offset] ^= 1;
+            dataset.setBytes(Tag.PixelData, VR.OW, modified);
+            List<StreamingDicomComparator.Difference> differences = comparator
+                    .compare(write("modified.dcm", dataset, UID.ExplicitVRLittleEndian), reference);
+
+            Assert.assertEquals(1, differences.size());
+            Assert.assertEquals("(7FE0,0010): value differs", differences.get(0).toString());
+        }
+    }
+
+    @Test
+    public void testPathInSequence() throws Exception {
+        Attributes dataset = dataset();
+        Sequence seq = dataset.newSequence(Tag.ReferencedSeriesSequence, 2);
+        seq.add(referencedSOP("1.2.3.4"));
+        seq.add(referencedSOP("1.2.3.5"));
+        Path reference = write("reference.dcm", dataset, UID.ExplicitVRLittleEndian);
+
+        seq.set(0, referencedSOP("1.2.3.6"));
+        seq.remove(1);
+        List<StreamingDicomComparator.Difference> differences = new StreamingDicomComparator()
+                .maxDifferences(10)
+                .compare(write("modified.dcm", dataset, UID.ExplicitVRLittleEndian), reference);
+
+        Assert.assertEquals(2, differences.size());
+        Assert.assertEquals("(0008,1115)[0]/(0008,1150): value differs", differences.get(0).toString());
+        Assert.assertEquals("(0008,1115)[1]: missing", differences.get(1).toString());
+    }
+
+    @Test
+    public void testEncapsulatedFragments() throws Exception {
+        Attributes dataset = dataset();
+        Fragments frags = dataset.newFragments(Tag.PixelData, VR.OB, 3);
+        frags.add(new byte[0]);
+        frags.add(new byte[] { 1, 2, 3, 4 });
+        frags.add(new byte[] { 5, 6, 7, 8 });
+        Path reference = write("reference.dcm", dataset, UID.JPEGBaseline1);
+
+        frags.set(2, new byte[] { 5, 6, 7, 9 });
+        frags.add(new byte[] { 10, 11 });
+        List<StreamingDicomComparator.Difference> differences = new StreamingDicomComparator()
+                .maxDifferences(10)
+                .compare(write("modified.dcm", dataset, UID.JPEGBaseline1), reference);
+
+        Assert.assertEquals(2, differences.size());
+        Assert.assertEquals("(7FE0,0010)[2]: value differs", differences.get(0).toString());
+        Assert.assertEquals("(7FE0,0010)[3]: unexpected", differences.get(1).toString());
+    }
+
+    @Test
+    public void testIgnorePrivateTags() throws Exception {
+        Attributes dataset = dataset();
+        dataset.setString(0x00090010, VR.LO, "ACME");
+        dataset.setString(0x00091001, VR.LO, "REFERENCE");
+        Path reference = write("reference.dcm", dataset, UID.ExplicitVRLittleEndian);
+
+        // same private tag, reserved in another block
+        Attributes modifiedDataset = dataset();
+        modifiedDataset.setString(0x00090011, VR.LO, "ACME");
+        modifiedDataset.setString(0x00091101, VR.LO, "MODIFIED");
+        Path modified = write("modified.dcm", modifiedDataset, UID.ExplicitVRLittleEndian);
+
+        Assert.assertFalse(new StreamingDicomComparator().compare(modified, reference).isEmpty());
+        Assert.assertFalse(new StreamingDicomComparator()
+                .ignorePrivateTags(new PrivateTag("OTHER", 0x00091001))
+                .compare(modified, reference).isEmpty());
+        Assert.assertTrue(new StreamingDicomComparator()
+                .ignorePrivateTags(new PrivateTag("ACME", 0x00091001))
+                .compare(modified, reference).isEmpty());
+    }
+
+    private static Attributes dataset() {
+        Attributes dataset = new Attributes();
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, "1.2.3.4.5");
+        return dataset;
+    }
+
+    private static Attributes referencedSOP(String cuid) {
+        Attributes item = new Attributes();
+        item.setString(Tag.ReferencedSOPClassUID, VR.UI, cuid);
+        item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, "1.2.3.4.5.6");
+        return item;
+    }
+
+    private Path write(String name, Attributes dataset, String tsuid) throws IOException {
+        Path file = folder.getRoot().toPath().resolve(name);
+        try (DicomOutputStream out = new DicomOutputStream(file.toFile())) {
+            out.writeDataset(dataset.createFileMetaInformation(tsuid), dataset);
+        }
+        return file;
+    }
+
+    private Path referenceFile() throws Exception {
+        return Paths.get(getClass().getResource("/testdata/CTInstance1.dcm").toURI());
+    }
+
+    private int patientIDLength(Path file) throws IOException {
+        String patientID = DicomUtils.read(file).getString(Tag.PatientID, "");
+        return (patientID.length() + 1) & ~1;
+    }
+
+    private Path writeModified(Path reference, String name) throws IOException {
+        Attributes fmi;
+        Attributes dataset;
+        String tsuid;
+        try (DicomInputStream in = new DicomInputStream(reference.toFile())) {
+            fmi = in.readFileMetaInformation();
+            dataset = in.readDataset(-1, -1);
+            tsuid = in.getTransferSyntax();
+        }
+        dataset.setString(Tag.PatientID, VR.LO, "MODIFIED-ID");
+        dataset.setString(Tag.PatientComments, VR.LT, "added");
+
+        Path modified = folder.getRoot().toPath().resolve(name);
+        // keep the encoding of the reference, the comparison is on encoded values
+        try (DicomOutputStream out = fmi != null
+                ? new DicomOutputStream(modified.toFile())
+                : new DicomOutputStream(Files.newOutputStream(modified), tsuid)) {
+            out.writeDataset(fmi, dataset);
+        }
+        return modified;
+    }
+}
@@ -0,0 +1,100 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import org.dcm4che.test.tool.externaldevice.LocalExternalDevice;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link EchoLoadTool} class.
+ */
+public class EchoLoadToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRequestCount() throws Exception {
+        try (LocalExternalDevice scp = new LocalExternalDevice(
+                LocalExternalDevice.config("ECHOSCP", folder.getRoot()), null, null)) {
+            Device device = LocalExternalDevice.scuDevice("loadscu");
+            EchoLoadTool tool = new EchoLoadTool("localhost", scp.getPort(), scp.getAETitle(),
+                    device, "LOADSCU", LocalExternalDevice.connection(device))
+                    .concurrency(2)
+                    .echoesPerAssociation(5)
+                    .requestCount(20);
+
+            for (int run = 0; run < 2; run++) {
+                EchoLoadTool.Result result = tool.run();
+
+                Assert.assertEquals(0, result.getErrors());
+                Assert.assertEquals(20, result.getEchoes());
+                Assert.assertTrue(result.getAssociations() >= 4);
+                Assert.assertEquals(20, result.getDimseLatency().getCount());
+
+                // the AE and connection added for the run are removed again
+                Assert.assertNull(device.getApplicationEntity("LOADSCU"));
+                Assert.assertEquals(1, device.listConnections().size());
+            }
+        }
+    }
+
+    @Test
+    public void testFailedEchoes() throws Exception {
+        try (FailingEchoSCP scp = new FailingEchoSCP("ECHOSCP", Status.ProcessingFailure)) {
+            Device device = LocalExternalDevice.scuDevice("loadscu");
+            EchoLoadTool.Result result = new EchoLoadTool("localhost", scp.getPort(), scp.getAETitle(),
+                    device, "LOADSCU", LocalExternalDevice.connection(device))
+                    .echoesPerAssociation(5)
+                    .requestCount(5)
+                    .run();
+
+            Assert.assertEquals(0, result.getErrors());
+            Assert.assertEquals(0, result.getEchoes());
+            Assert.assertEquals(5, result.getFailedEchoes());
+            Assert.assertEquals(0, result.getDimseLatency().getCount());
+        }
+    }
+}
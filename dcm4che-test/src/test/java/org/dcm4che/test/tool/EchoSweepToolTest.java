@@ -0,0 +1,118 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.io.File;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.LocalExternalDevice;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link EchoSweepTool} class.
+ */
+public class EchoSweepToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSameAETitleOnTwoDevices() throws Exception {
+        File dir1 = folder.newFolder("device1");
+        File dir2 = folder.newFolder("device2");
+        try (LocalExternalDevice scp1 = new LocalExternalDevice(LocalExternalDevice.config("device1", "SWEEPSCP", dir1), null, null);
+                LocalExternalDevice scp2 = new LocalExternalDevice(LocalExternalDevice.config("device2", "SWEEPSCP", dir2), null, null)) {
+            EchoSweepTool tool = new EchoSweepTool("SWEEPSCU", new Connection());
+
+            Map<String, EchoSweepTool.Result> results = tool.sweep(
+                    Arrays.asList(scp1.getConfig().getDevice(), scp2.getConfig().getDevice()), 10, TimeUnit.SECONDS);
+
+            Assert.assertEquals(2, results.size());
+            Assert.assertEquals(EchoSweepTool.Status.SUCCESS, results.get("device1/SWEEPSCP").getStatus());
+            Assert.assertEquals(scp1.getPort(), results.get("device1/SWEEPSCP").getPort());
+            Assert.assertEquals(EchoSweepTool.Status.SUCCESS, results.get("device2/SWEEPSCP").getStatus());
+            Assert.assertEquals(scp2.getPort(), results.get("device2/SWEEPSCP").getPort());
+        }
+    }
+
+    @Test
+    public void testUnreachable() throws Exception {
+        // nothing listens on a port that was just free
+        Connection closed = new Connection("dicom", "localhost", freePort());
+        EchoSweepTool tool = new EchoSweepTool("SWEEPSCU", new Connection());
+
+        Map<String, EchoSweepTool.Result> results = tool.sweep(
+                Collections.singletonMap("NOBODY", closed), 10, TimeUnit.SECONDS);
+
+        EchoSweepTool.Result result = results.get("NOBODY");
+        Assert.assertFalse(result.isSuccess());
+        Assert.assertNotNull(result.getError());
+    }
+
+    @Test
+    public void testFailureStatus() throws Exception {
+        try (FailingEchoSCP scp = new FailingEchoSCP("SWEEPSCP", Status.ProcessingFailure)) {
+            EchoSweepTool tool = new EchoSweepTool("SWEEPSCU", new Connection());
+
+            Map<String, EchoSweepTool.Result> results = tool.sweep(
+                    Collections.singletonList(scp.getDevice()), 10, TimeUnit.SECONDS);
+
+            EchoSweepTool.Result result = results.get(scp.getDevice().getDeviceName() + "/SWEEPSCP");
+            Assert.assertEquals(EchoSweepTool.Status.FAILED, result.getStatus());
+            Assert.assertEquals(Status.ProcessingFailure, result.getDimseStatus());
+            Assert.assertNull(result.getError());
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+
+/**
+ * C-ECHO SCP listening on a free local port, which answers every C-ECHO with
+ * the given status.
+ */
+public class FailingEchoSCP implements Closeable {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final Device device;
+    private final String aeTitle;
+    private final int port;
+
+    public FailingEchoSCP(String aeTitle, final int status) throws Exception {
+        this.aeTitle = aeTitle;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        device = new Device(aeTitle.toLowerCase());
+        Connection conn = new Connection("dicom", "localhost", port);
+        device.addConnection(conn);
+        ApplicationEntity ae = new ApplicationEntity(aeTitle);
+        ae.setAssociationAcceptor(true);
+        ae.addConnection(conn);
+        ae.addTransferCapability(new TransferCapability(null, UID.VerificationSOPClass,
+                TransferCapability.Role.SCP, UID.ImplicitVRLittleEndian));
+        device.addApplicationEntity(ae);
+
+        DicomServiceRegistry registry = new DicomServiceRegistry();
+        registry.addDicomService(new AbstractDicomService(UID.VerificationSOPClass) {
+            @Override
+            protected void onDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd,
+                    Attributes data) throws IOException {
+                as.writeDimseRSP(pc, Commands.mkEchoRSP(cmd, status), null);
+            }
+        });
+        device.setDimseRQHandler(registry);
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        device.bindConnections();
+    }
+
+    public Device getDevice() {
+        return device;
+    }
+
+    public String getAETitle() {
+        return aeTitle;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void close() {
+        try {
+            device.unbindConnections();
+        } finally {
+            scheduledExecutor.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import org.dcm4che.test.tool.externaldevice.LocalExternalDevice;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Status;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link PooledEchoTool} class.
+ */
+public class PooledEchoToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LocalExternalDevice scp;
+    private PooledEchoTool tool;
+
+    @Before
+    public void setUp() throws Exception {
+        scp = new LocalExternalDevice(LocalExternalDevice.config("ECHOSCP", folder.getRoot()), null, null);
+        Device device = LocalExternalDevice.scuDevice("echoscu");
+        tool = new PooledEchoTool(device, "ECHOSCU", LocalExternalDevice.connection(device));
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            tool.close();
+        } finally {
+            scp.close();
+        }
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(Status.Success, echo().getInt(Tag.Status, -1));
+        }
+
+        Assert.assertEquals(1, tool.getOpenedAssociations());
+        Assert.assertEquals(10, tool.getEchoes());
+        Assert.assertEquals(1, tool.getIdleAssociations());
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        tool.setIdleTimeout(200);
+        echo();
+        Assert.assertEquals(1, tool.getIdleAssociations());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tool.getIdleAssociations() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, tool.getIdleAssociations());
+
+        echo();
+        Assert.assertEquals(2, tool.getOpenedAssociations());
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        echo();
+        tool.close();
+        Assert.assertEquals(0, tool.getIdleAssociations());
+
+        try {
+            echo();
+        } catch (IllegalStateException expected) {
+            return; // expected
+        }
+        Assert.fail("Expecting exception");
+    }
+
+    private Attributes echo() throws Exception {
+        return tool.echo("localhost", scp.getPort(), scp.getAETitle());
+    }
+}
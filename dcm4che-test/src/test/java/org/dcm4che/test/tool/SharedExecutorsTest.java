@@ -0,0 +1,93 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link SharedExecutors} class.
+ */
+public class SharedExecutorsTest {
+
+    @Test
+    public void testLeasesShareExecutors() throws Exception {
+        int refCount = SharedExecutors.getReferenceCount();
+
+        try (SharedExecutors.Lease lease1 = SharedExecutors.acquire();
+                SharedExecutors.Lease lease2 = SharedExecutors.acquire()) {
+            Assert.assertSame(lease1.getExecutor(), lease2.getExecutor());
+            Assert.assertSame(lease1.getScheduledExecutor(), lease2.getScheduledExecutor());
+            Assert.assertEquals(refCount + 2, SharedExecutors.getReferenceCount());
+
+            lease1.close();
+            lease1.close();
+            Assert.assertEquals(refCount + 1, SharedExecutors.getReferenceCount());
+            Assert.assertFalse(lease2.getExecutor().isShutdown());
+        }
+
+        Assert.assertEquals(refCount, SharedExecutors.getReferenceCount());
+    }
+
+    @Test
+    public void testThreadsAreReused() throws Exception {
+        try (SharedExecutors.Lease lease = SharedExecutors.acquire()) {
+            ExecutorService executor = lease.getExecutor();
+            runTask(executor);
+            long created = SharedExecutors.getCreatedThreadCount();
+            for (int i = 0; i < 100; i++) {
+                runTask(executor);
+            }
+            // a task may be submitted before the previous thread is idle again
+            Assert.assertTrue(SharedExecutors.getCreatedThreadCount() - created < 10);
+        }
+    }
+
+    private static void runTask(ExecutorService executor) throws Exception {
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        }).get();
+    }
+}
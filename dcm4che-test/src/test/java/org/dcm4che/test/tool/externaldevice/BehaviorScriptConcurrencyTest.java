@@ -0,0 +1,174 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.net.service.DicomServiceException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the scripted behavior of {@link BehavioralCStoreSCP} and
+ * {@link BehavioralStgCmtSCP} under concurrent associations.
+ */
+public class BehaviorScriptConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int CALLS_PER_THREAD = 20000;
+
+    @Test
+    public void testNextIndex() {
+        AtomicInteger counter = new AtomicInteger();
+        Assert.assertEquals(0, Scripts.nextIndex(counter, 3));
+        Assert.assertEquals(1, Scripts.nextIndex(counter, 3));
+        Assert.assertEquals(2, Scripts.nextIndex(counter, 3));
+        Assert.assertEquals(2, Scripts.nextIndex(counter, 3));
+        Assert.assertEquals(2, counter.get());
+        Assert.assertEquals(0, Scripts.nextIndex(new AtomicInteger(), 1));
+    }
+
+    @Test
+    public void testCStoreReturnState() throws Exception {
+        final BehavioralCStoreSCP.ReturnState state = new BehavioralCStoreSCP.ReturnState(
+                new boolean[] { false, false, false, false, false, true });
+
+        int failures = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int failures = 0;
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    if (!state.state())
+                        failures++;
+                }
+                return failures;
+            }
+        });
+
+        Assert.assertEquals(5, failures);
+    }
+
+    @Test
+    public void testStgCmtReturnState() throws Exception {
+        final int[] script = { 0x0110, 0x0112, 0x0119, 0x0000 };
+        final BehavioralStgCmtSCP.ReturnState state = new BehavioralStgCmtSCP.ReturnState(script);
+        final int[][] counts = new int[THREADS][script.length];
+        final AtomicInteger threadIndex = new AtomicInteger();
+
+        runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int[] local = counts[threadIndex.getAndIncrement()];
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    int status = state.state();
+                    for (int j = 0; j < script.length; j++) {
+                        if (script[j] == status)
+                            local[j]++;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        int[] total = new int[script.length];
+        for (int[] local : counts) {
+            for (int j = 0; j < script.length; j++)
+                total[j] += local[j];
+        }
+        Assert.assertEquals(1, total[0]);
+        Assert.assertEquals(1, total[1]);
+        Assert.assertEquals(1, total[2]);
+        Assert.assertEquals(THREADS * CALLS_PER_THREAD - 3, total[3]);
+    }
+
+    @Test
+    public void testStgCmtRequestInterceptor() throws Exception {
+        final BehavioralStgCmtSCP.RequestInterceptor interceptor = new BehavioralStgCmtSCP.RequestInterceptor(
+                new boolean[] { false, false, true });
+
+        int failures = runConcurrently(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                int failures = 0;
+                for (int i = 0; i < CALLS_PER_THREAD; i++) {
+                    try {
+                        interceptor.beforeDimseRQ(null, null, null, null, null);
+                    } catch (DicomServiceException e) {
+                        failures++;
+                    }
+                }
+                return failures;
+            }
+        });
+
+        Assert.assertEquals(2, failures);
+    }
+
+    private static int runConcurrently(final Callable<Integer> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        return task.call();
+                    }
+                }));
+            }
+            start.countDown();
+
+            int sum = 0;
+            for (Future<Integer> future : futures)
+                sum += future.get();
+            return sum;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
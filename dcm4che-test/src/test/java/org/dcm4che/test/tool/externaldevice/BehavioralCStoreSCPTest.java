@@ -0,0 +1,191 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che.test.tool.externaldevice.BehavioralCStoreSCP.Faults;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test fault injection of {@link BehavioralCStoreSCP} class.
+ */
+public class BehavioralCStoreSCPTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testInstanceDelayOverridesJitter() throws Exception {
+        Faults faults = new Faults(Collections.singletonMap("1.2.3.1", 0L), 0, Jitter.fixed(300), 0, 0);
+
+        long start = System.nanoTime();
+        faults.delayResponse("1.2.3.1");
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 200);
+
+        start = System.nanoTime();
+        faults.delayResponse("1.2.3.2");
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 300);
+    }
+
+    @Test
+    public void testStorePermitsAreFair() {
+        Faults faults = new Faults(Collections.<String, Long>emptyMap(), 0, Jitter.NONE, 0, 3);
+        Assert.assertEquals(3, faults.storePermits.availablePermits());
+        Assert.assertTrue(faults.storePermits.isFair());
+
+        Assert.assertNull(Faults.NONE.storePermits);
+    }
+
+    @Test
+    public void testMaxConcurrentStores() throws Exception {
+        ConcurrencyProbe probe = new ConcurrencyProbe();
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(probe)
+                .maxConcurrentStores(2)
+                .build();
+
+        ExecutorService senders = Executors.newFixedThreadPool(4);
+        try (final LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final String iuid = "1.2.3." + (i + 1);
+                results.add(senders.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Association as = scp.open("STORESCU", UID.CTImageStorage);
+                        try {
+                            return LocalExternalDevice.store(as, InMemoryInstanceStorageTest.dataset(iuid, 100));
+                        } finally {
+                            as.release();
+                        }
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(Status.Success, result.get(30, TimeUnit.SECONDS).intValue());
+            }
+        } finally {
+            senders.shutdownNow();
+        }
+
+        Assert.assertEquals(8, probe.stored.get());
+        Assert.assertEquals(2, probe.maxActive.get());
+    }
+
+    @Test
+    public void testThrottle() throws Exception {
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(10);
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(storage)
+                .throttle(20000)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            Association as = scp.open("STORESCU", UID.CTImageStorage);
+            try {
+                long start = System.nanoTime();
+                Assert.assertEquals(Status.Success,
+                        LocalExternalDevice.store(as, InMemoryInstanceStorageTest.dataset("1.2.3.1", 10000)));
+                Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 450);
+            } finally {
+                as.release();
+            }
+        }
+        Assert.assertEquals(1, storage.size());
+    }
+
+    /**
+     * Discards the dataset and records how many stores are active at the
+     * same time.
+     */
+    private static class ConcurrencyProbe implements InstanceStorage {
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger maxActive = new AtomicInteger();
+        private final AtomicInteger stored = new AtomicInteger();
+
+        @Override
+        public Attributes store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data)
+                throws IOException {
+            int current = active.incrementAndGet();
+            try {
+                int max;
+                while (current > (max = maxActive.get()) && !maxActive.compareAndSet(max, current)) {
+                    // retry
+                }
+                data.skipAll();
+                Thread.sleep(200);
+                stored.incrementAndGet();
+                return null;
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public String getSOPClassUID(String sopInstanceUID) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link CaptureProfile} class.
+ */
+public class CaptureProfileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTags() {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.1");
+        cmd.setString(Tag.AffectedSOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2");
+        cmd.setString(Tag.MoveOriginatorApplicationEntityTitle, VR.AE, "MOVESCU");
+
+        Attributes captured = CaptureProfile.tags(Tag.MoveOriginatorApplicationEntityTitle, Tag.AffectedSOPInstanceUID)
+                .captureCommand(Dimse.C_STORE_RQ, cmd);
+
+        Assert.assertEquals(2, captured.size());
+        Assert.assertEquals("1.1.1", captured.getString(Tag.AffectedSOPInstanceUID));
+        Assert.assertEquals("MOVESCU", captured.getString(Tag.MoveOriginatorApplicationEntityTitle));
+        Assert.assertNull(CaptureProfile.tags(Tag.AffectedSOPInstanceUID).captureData(Dimse.C_STORE_RQ, null));
+    }
+
+    @Test
+    public void testInstanceReferences() {
+        Attributes data = new Attributes();
+        data.setString(Tag.TransactionUID, VR.UI, "1.2.3");
+        data.setString(Tag.PatientName, VR.PN, "Test^Patient");
+        Sequence refSOPSeq = data.newSequence(Tag.ReferencedSOPSequence, 2);
+        for (String iuid : new String[] { "1.1.1", "1.1.2" }) {
+            Attributes item = new Attributes();
+            item.setString(Tag.ReferencedSOPClassUID, VR.UI, "1.2.840.10008.5.1.4.1.1.2");
+            item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+            item.setString(Tag.RetrieveAETitle, VR.AE, "ARCHIVE");
+            refSOPSeq.add(item);
+        }
+
+        Attributes captured = CaptureProfile.INSTANCE_REFERENCES.captureData(Dimse.N_ACTION_RQ, data);
+
+        Assert.assertEquals("1.2.3", captured.getString(Tag.TransactionUID));
+        Assert.assertFalse(captured.contains(Tag.PatientName));
+        Sequence capturedSeq = captured.getSequence(Tag.ReferencedSOPSequence);
+        Assert.assertEquals(2, capturedSeq.size());
+        Assert.assertEquals("1.1.2", capturedSeq.get(1).getString(Tag.ReferencedSOPInstanceUID));
+        Assert.assertFalse(capturedSeq.get(1).contains(Tag.RetrieveAETitle));
+    }
+
+    @Test
+    public void testStudyOfStoredInstanceWrittenToFile() throws Exception {
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.INSTANCE_REFERENCES);
+        store(recorder, null);
+
+        Attributes data = recorder.getRequests().get(0).getData();
+        Assert.assertEquals("1.2.3", data.getString(Tag.StudyInstanceUID));
+        Assert.assertFalse(data.contains(Tag.PixelData));
+    }
+
+    @Test
+    public void testStudyOfStoredInstanceInMemory() throws Exception {
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.INSTANCE_REFERENCES);
+        store(recorder, new InMemoryInstanceStorage(10));
+
+        Assert.assertEquals("1.2.3", recorder.getRequests().get(0).getData().getString(Tag.StudyInstanceUID));
+    }
+
+    @Test
+    public void testNoDataOfDiscardedInstance() throws Exception {
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.INSTANCE_REFERENCES);
+        store(recorder, new DigestSinkInstanceStorage());
+
+        Assert.assertEquals(1, recorder.getRequests().size());
+        Assert.assertNull(recorder.getRequests().get(0).getData());
+    }
+
+    private void store(DimseRequestRecorder recorder, InstanceStorage storage) throws Exception {
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(storage)
+                .attachRequestRecorder(recorder)
+                .build();
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            Association as = scp.open("STORESCU", UID.CTImageStorage);
+            try {
+                Assert.assertEquals(Status.Success,
+                        LocalExternalDevice.store(as, InMemoryInstanceStorageTest.dataset("1.2.3.1", 100)));
+            } finally {
+                as.release();
+            }
+        }
+    }
+
+    @Test
+    public void testFullCopies() {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.1");
+
+        Attributes captured = CaptureProfile.FULL.captureCommand(Dimse.C_STORE_RQ, cmd);
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.2");
+
+        Assert.assertEquals("1.1.1", captured.getString(Tag.AffectedSOPInstanceUID));
+    }
+}
@@ -0,0 +1,133 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dcm4che.test.tool.externaldevice.DigestSinkInstanceStorage.ReceivedInstance;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link DigestSinkInstanceStorage} class.
+ */
+public class DigestSinkInstanceStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDigest() throws Exception {
+        DigestSinkInstanceStorage sink = new DigestSinkInstanceStorage(DigestSinkInstanceStorage.CRC32);
+        storeAll(sink,
+                InMemoryInstanceStorageTest.dataset("1.2.3.1", 1000),
+                InMemoryInstanceStorageTest.dataset("1.2.3.2", 1000),
+                InMemoryInstanceStorageTest.dataset("1.2.3.1", 1000));
+
+        Assert.assertEquals(2, sink.size());
+        Assert.assertEquals(3, sink.getTotalInstances());
+
+        ReceivedInstance first = sink.get("1.2.3.1");
+        ReceivedInstance second = sink.get("1.2.3.2");
+        Assert.assertEquals(UID.CTImageStorage, sink.getSOPClassUID("1.2.3.1"));
+        Assert.assertEquals(UID.ImplicitVRLittleEndian, first.getTransferSyntaxUID());
+        Assert.assertEquals("STORESCU", first.getCallingAET());
+        Assert.assertEquals(4, first.getDigest().length);
+        Assert.assertTrue(first.getLength() > 1000);
+        Assert.assertEquals(first.getLength(), second.getLength());
+        Assert.assertFalse(first.getDigestAsHex().equals(second.getDigestAsHex()));
+        Assert.assertEquals(3 * first.getLength(), sink.getTotalBytes());
+    }
+
+    @Test
+    public void testMaxInstances() throws Exception {
+        DigestSinkInstanceStorage sink = new DigestSinkInstanceStorage("SHA-256", 2);
+        storeAll(sink,
+                InMemoryInstanceStorageTest.dataset("1.2.3.1", 100),
+                InMemoryInstanceStorageTest.dataset("1.2.3.2", 100),
+                InMemoryInstanceStorageTest.dataset("1.2.3.1", 100),
+                InMemoryInstanceStorageTest.dataset("1.2.3.3", 100));
+
+        // the repeated 1.2.3.1 counts as most recently received
+        List<String> iuids = new ArrayList<>();
+        for (ReceivedInstance instance : sink.getReceivedInstances()) {
+            iuids.add(instance.getSOPInstanceUID());
+        }
+        Assert.assertEquals(Arrays.asList("1.2.3.1", "1.2.3.3"), iuids);
+        Assert.assertNull(sink.get("1.2.3.2"));
+        Assert.assertEquals(4, sink.getTotalInstances());
+
+        sink.clear();
+        Assert.assertEquals(0, sink.size());
+        Assert.assertEquals(0, sink.getTotalInstances());
+        Assert.assertEquals(0, sink.getTotalBytes());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownAlgorithm() {
+        new DigestSinkInstanceStorage("NO-SUCH-DIGEST");
+    }
+
+    private void storeAll(DigestSinkInstanceStorage sink, Attributes... datasets) throws Exception {
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(sink)
+                .build();
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            Association as = scp.open("STORESCU", UID.CTImageStorage);
+            try {
+                for (Attributes dataset : datasets) {
+                    Assert.assertEquals(Status.Success, LocalExternalDevice.store(as, dataset));
+                }
+            } finally {
+                as.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Dimse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link DimseJournalReader} class.
+ */
+public class DimseJournalReaderTest {
+
+    private Path journal;
+
+    @Before
+    public void setUp() throws Exception {
+        journal = Files.createTempFile("DimseJournalReaderTest", ".jnl");
+        Files.delete(journal);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(journal);
+    }
+
+    @Test
+    public void testDataSet() throws Exception {
+        Attributes data = new Attributes();
+        data.setString(Tag.TransactionUID, VR.UI, "1.2.9.1");
+        Sequence refSOPSeq = data.newSequence(Tag.ReferencedSOPSequence, 2);
+        for (String iuid : new String[] { "1.1.1", "1.1.2" }) {
+            Attributes item = new Attributes();
+            item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+            refSOPSeq.add(item);
+        }
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal)) {
+            recorder.record(DimseRequest.captured("STGCMTSCU", "DCM4CHEE", Dimse.N_ACTION_RQ, new Attributes(), data));
+        }
+
+        List<DimseRequest> requests = DimseJournalReader.readAll(journal);
+        Assert.assertEquals(1, requests.size());
+        Attributes read = requests.get(0).getData();
+        Assert.assertEquals("1.2.9.1", read.getString(Tag.TransactionUID));
+        Assert.assertEquals("1.1.2",
+                read.getSequence(Tag.ReferencedSOPSequence).get(1).getString(Tag.ReferencedSOPInstanceUID));
+    }
+
+    @Test
+    public void testEmptyJournal() throws Exception {
+        new DimseJournalRecorder(journal).close();
+
+        try (DimseJournalReader reader = new DimseJournalReader(journal)) {
+            Iterator<DimseJournalReader.Entry> iter = reader.iterator();
+            Assert.assertFalse(iter.hasNext());
+            try {
+                iter.next();
+                Assert.fail("Expecting exception");
+            } catch (NoSuchElementException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testIterateOnce() throws Exception {
+        new DimseJournalRecorder(journal).close();
+
+        try (DimseJournalReader reader = new DimseJournalReader(journal)) {
+            reader.iterator();
+            reader.iterator();
+        }
+    }
+
+    @Test
+    public void testNotAJournal() throws Exception {
+        Files.write(journal, new byte[] { 1, 2, 3 });
+        try {
+            new DimseJournalReader(journal).close();
+        } catch (IOException e) {
+            return; // expected
+        }
+        Assert.fail("Expecting exception");
+    }
+}
@@ -0,0 +1,161 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Dimse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link DimseJournalRecorder} and {@link DimseJournalReader} classes.
+ */
+public class DimseJournalRecorderTest {
+
+    private Path journal;
+
+    @Before
+    public void setUp() throws Exception {
+        journal = Files.createTempFile("DimseJournalRecorderTest", ".jnl");
+        Files.delete(journal);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(journal);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.1");
+
+        long before = System.currentTimeMillis();
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal)) {
+            recorder.record(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, null, 1234L, 7));
+            recorder.record(DimseRequest.captured("STGCMTSCU", "DCM4CHEE", null, null, null));
+            Assert.assertEquals(2, recorder.getRequests().size());
+        }
+
+        try (DimseJournalReader reader = new DimseJournalReader(journal)) {
+            int count = 0;
+            for (DimseJournalReader.Entry entry : reader) {
+                DimseRequest request = entry.getRequest();
+                Assert.assertEquals(request.getTimestamp(), entry.getTimestamp());
+                if (count++ == 0) {
+                    Assert.assertEquals(1234L, request.getTimestamp());
+                    Assert.assertEquals(7, request.getAssociationSerialNo());
+                    Assert.assertEquals("STORESCU", request.getCallingAETitle());
+                    Assert.assertEquals(Dimse.C_STORE_RQ, request.getDimse());
+                    Assert.assertEquals("1.1.1", request.getCmd().getString(Tag.AffectedSOPInstanceUID));
+                    Assert.assertNull(request.getData());
+                } else {
+                    Assert.assertTrue(request.getTimestamp() >= before);
+                    Assert.assertEquals(-1, request.getAssociationSerialNo());
+                    Assert.assertEquals("STGCMTSCU", request.getCallingAETitle());
+                    Assert.assertNull(request.getDimse());
+                    Assert.assertNull(request.getCmd());
+                }
+            }
+            Assert.assertEquals(2, count);
+        }
+    }
+
+    @Test
+    public void testNotIndexedByDefault() throws Exception {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.1");
+
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal)) {
+            recorder.record(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, null));
+            recorder.record(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, null));
+
+            Assert.assertFalse(recorder.isIndexed());
+            Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.1.1", 2));
+            try {
+                recorder.getRequestIndex();
+            } catch (IllegalStateException e) {
+                return; // expected
+            }
+            Assert.fail("Expecting exception");
+        }
+    }
+
+    @Test
+    public void testIndexed() throws Exception {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, "1.1.1");
+
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal, CaptureProfile.FULL,
+                DimseJournalRecorder.DEFAULT_FLUSH_INTERVAL, false, true)) {
+            recorder.record(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, null));
+
+            Assert.assertTrue(recorder.isIndexed());
+            Assert.assertEquals(1, recorder.getRequestIndex().count(Dimse.C_STORE_RQ, "1.1.1"));
+        }
+    }
+
+    @Test
+    public void testAppendAndTruncatedRecord() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal)) {
+                recorder.record(DimseRequest.captured("SCU" + i, "SCP", null, null, null));
+            }
+        }
+        Assert.assertEquals(2, DimseJournalReader.readAll(journal).size());
+
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        List<DimseRequest> requests = DimseJournalReader.readAll(journal);
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals("SCU0", requests.get(0).getCallingAETitle());
+    }
+}
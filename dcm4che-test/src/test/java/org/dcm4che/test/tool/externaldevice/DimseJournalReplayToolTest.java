@@ -0,0 +1,245 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link DimseJournalReplayTool} class.
+ */
+public class DimseJournalReplayToolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path journal;
+
+    @Before
+    public void setUp() throws Exception {
+        journal = Files.createTempFile("DimseJournalReplayToolTest", ".jnl");
+        Files.delete(journal);
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(journal)) {
+            long t0 = System.currentTimeMillis();
+            recorder.record(DimseRequest.captured("MODALITY", "ARCHIVE", Dimse.C_ECHO_RQ,
+                    command(UID.VerificationSOPClass, null), null, t0, 1));
+            recorder.record(DimseRequest.captured("MODALITY", "ARCHIVE", Dimse.C_STORE_RQ,
+                    command(UID.CTImageStorage, "1.2.3.1"), null, t0 + 100, 1));
+            recorder.record(DimseRequest.captured("MODALITY", "ARCHIVE", Dimse.C_GET_RQ,
+                    command(UID.CTImageStorage, null), null, t0 + 150, 1));
+            recorder.record(DimseRequest.captured("MODALITY", "ARCHIVE", Dimse.C_STORE_RQ,
+                    command(UID.CTImageStorage, "1.2.3.2"), null, t0 + 200, 1));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(journal);
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(10);
+        DimseRequestRecorder recorder = new DimseRequestRecorder();
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("ARCHIVE", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(storage)
+                .attachRequestRecorder(recorder)
+                .build();
+
+        Device device = new Device("replayscu");
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            DimseJournalReplayTool tool = new DimseJournalReplayTool("localhost", scp.getPort(), scp.getAETitle(),
+                    device, new Connection());
+
+            DimseJournalReplayTool.Result result = tool.replay(journal);
+            assertReplayed(result);
+            Assert.assertTrue(result.getElapsed(TimeUnit.MILLISECONDS) >= 200);
+            Assert.assertEquals(3, result.getLatency().getCount());
+            Assert.assertEquals(2, recorder.getRequests().size());
+            Assert.assertEquals("MODALITY", recorder.getRequests().get(0).getCallingAETitle());
+            Assert.assertNotNull(storage.get("1.2.3.1"));
+            Assert.assertNotNull(storage.get("1.2.3.2"));
+
+            // the AE and connection added for the replay are removed again
+            Assert.assertNull(device.getApplicationEntity("MODALITY"));
+            Assert.assertTrue(device.listConnections().isEmpty());
+
+            result = tool.speed(0).callingAETitle("REPLAYSCU").replay(journal);
+            assertReplayed(result);
+            Assert.assertEquals("REPLAYSCU", recorder.getRequests().get(2).getCallingAETitle());
+            Assert.assertNull(device.getApplicationEntity("REPLAYSCU"));
+            Assert.assertTrue(device.listConnections().isEmpty());
+        }
+    }
+
+    @Test
+    public void testReplayRecordedDataset() throws Exception {
+        Path recorded = folder.getRoot().toPath().resolve("recorded.jnl");
+        ExternalDeviceToolConfig sourceCfg = LocalExternalDevice.config("ARCHIVE", folder.newFolder("source"));
+        try (DimseJournalRecorder journalRecorder = new DimseJournalRecorder(recorded);
+                LocalExternalDevice source = new LocalExternalDevice(sourceCfg, new BehavioralCStoreSCP.Builder()
+                        .qrSCPConfig(sourceCfg)
+                        .instanceStorage(new InMemoryInstanceStorage(10))
+                        .attachRequestRecorder(journalRecorder)
+                        .build(), null)) {
+            Association as = source.open("MODALITY", UID.CTImageStorage);
+            try {
+                Assert.assertEquals(Status.Success,
+                        LocalExternalDevice.store(as, InMemoryInstanceStorageTest.dataset("1.2.3.9", 16)));
+            } finally {
+                as.release();
+            }
+        }
+
+        List<DimseRequest> requests = DimseJournalReader.readAll(recorded);
+        Assert.assertEquals(1, requests.size());
+        Assert.assertEquals("1.2.3", requests.get(0).getData().getString(Tag.StudyInstanceUID));
+
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(10);
+        ExternalDeviceToolConfig targetCfg = LocalExternalDevice.config("ARCHIVE", folder.newFolder("target"));
+        try (LocalExternalDevice target = new LocalExternalDevice(targetCfg, new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(targetCfg)
+                .instanceStorage(storage)
+                .build(), null)) {
+            DimseJournalReplayTool.Result result = new DimseJournalReplayTool("localhost", target.getPort(),
+                    target.getAETitle(), new Device("replayscu"), new Connection()).speed(0).replay(recorded);
+
+            Assert.assertEquals(1, result.getSucceeded());
+            // the recorded data set was sent, not one with the UIDs only
+            Assert.assertEquals("1.2.3", storage.get("1.2.3.9").getDataset().getString(Tag.StudyInstanceUID));
+        }
+    }
+
+    @Test
+    public void testPacingWithSlowTarget() throws Exception {
+        Path stores = folder.getRoot().toPath().resolve("stores.jnl");
+        try (DimseJournalRecorder recorder = new DimseJournalRecorder(stores)) {
+            long t0 = System.currentTimeMillis();
+            for (int i = 0; i < 3; i++) {
+                recorder.record(DimseRequest.captured("MODALITY", "ARCHIVE", Dimse.C_STORE_RQ,
+                        command(UID.CTImageStorage, "1.2.3." + i), null, t0 + i * 10, 1));
+            }
+        }
+
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("ARCHIVE", folder.getRoot());
+        Connection conn = cfg.getDevice().listConnections().get(0);
+        conn.setMaxOpsInvoked(0);
+        conn.setMaxOpsPerformed(0);
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(new InMemoryInstanceStorage(10))
+                .responseDelay(500)
+                .build();
+
+        // the data set is fetched right before each C-STORE is sent
+        final List<Long> sendTimes = Collections.synchronizedList(new ArrayList<Long>());
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            DimseJournalReplayTool.Result result = new DimseJournalReplayTool("localhost", scp.getPort(),
+                    scp.getAETitle(), new Device("replayscu"), new Connection())
+                    .datasetSource(new DimseJournalReplayTool.DatasetSource() {
+                        @Override
+                        public Attributes datasetFor(DimseRequest request) {
+                            sendTimes.add(System.nanoTime());
+                            return DimseJournalReplayTool.RECORDED_OR_MINIMAL.datasetFor(request);
+                        }
+                    })
+                    .replay(stores);
+
+            Assert.assertEquals(3, result.getSucceeded());
+            Assert.assertEquals(3, sendTimes.size());
+            // with a window of one operation each C-STORE waits for the previous response
+            Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(sendTimes.get(2) - sendTimes.get(0)) < 400);
+        }
+    }
+
+    @Test
+    public void testTargetNotReachable() throws Exception {
+        Device device = new Device("replayscu");
+        DimseJournalReplayTool tool = new DimseJournalReplayTool("localhost", LocalExternalDevice.freePort(),
+                "ARCHIVE", device, new Connection()).speed(0);
+
+        DimseJournalReplayTool.Result result = tool.replay(journal);
+        Assert.assertEquals(0, result.getSent());
+        Assert.assertEquals(3, result.getErrors());
+        Assert.assertEquals(1, result.getSkipped());
+        Assert.assertNull(device.getApplicationEntity("MODALITY"));
+        Assert.assertTrue(device.listConnections().isEmpty());
+    }
+
+    private static void assertReplayed(DimseJournalReplayTool.Result result) {
+        Assert.assertEquals(3, result.getSent());
+        Assert.assertEquals(3, result.getSucceeded());
+        Assert.assertEquals(0, result.getFailed());
+        Assert.assertEquals(0, result.getUnanswered());
+        Assert.assertEquals(1, result.getSkipped());
+        Assert.assertEquals(0, result.getErrors());
+    }
+
+    private static Attributes command(String cuid, String iuid) {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPClassUID, VR.UI, cuid);
+        if (iuid != null)
+            cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, iuid);
+        return cmd;
+    }
+}
@@ -0,0 +1,165 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.EchoLoadTool;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.TransferCapability;
+
+/**
+ * Compares associations/sec, resident set size and peak thread count of an
+ * {@link ExternalDeviceTool} running on a cached thread pool with one running
+ * on virtual threads.
+ * 
+ * Run each mode in its own JVM so the memory figures are not mixed up:
+ * 
+ * <pre>
+ * java ... ExternalDeviceToolThreadingBenchmark cached  [senders] [seconds]
+ * java ... ExternalDeviceToolThreadingBenchmark virtual [senders] [seconds]
+ * </pre>
+ * 
+ * The C-ECHO load is generated by an {@link EchoLoadTool} in a child JVM on
+ * the same class path, so the resident set size, heap usage and peak thread
+ * count reported by the benchmark JVM only cover the SCP. The peak thread
+ * count only includes platform threads, virtual threads are not counted.
+ */
+public class ExternalDeviceToolThreadingBenchmark {
+
+    private static final String AE_TITLE = "BENCHSCP";
+    private static final int PORT = 11199;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "load".equals(args[0])) {
+            load(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        boolean virtual = args.length > 0 && "virtual".equals(args[0]);
+        int senders = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        File dicomDir = Files.createTempDirectory("ExternalDeviceToolThreadingBenchmark").resolve("DICOMDIR").toFile();
+        ExternalDeviceToolConfig cfg = new ExternalDeviceToolConfig()
+                .device(createDevice())
+                .aeTitle(AE_TITLE)
+                .port(PORT)
+                .dicomDir(dicomDir)
+                .virtualThreads(virtual);
+
+        ExternalDeviceTool tool = new ExternalDeviceTool.Builder().toolConfig(cfg).build();
+        tool.start();
+        try {
+            int exitCode = startLoad(senders, seconds).waitFor();
+            if (exitCode != 0)
+                throw new IllegalStateException("load generator exited with " + exitCode);
+
+            System.out.printf("mode=%s senders=%d scp: peakRss=%d kB heapUsed=%d kB peakThreads=%d%n",
+                    virtual ? "virtual" : "cached", senders,
+                    procStatusKB("VmHWM:"),
+                    ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024,
+                    ManagementFactory.getThreadMXBean().getPeakThreadCount());
+        } finally {
+            tool.stop();
+        }
+    }
+
+    private static Process startLoad(int senders, int seconds) throws IOException {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        return new ProcessBuilder(Arrays.asList(java, "-cp", System.getProperty("java.class.path"),
+                ExternalDeviceToolThreadingBenchmark.class.getName(), "load",
+                Integer.toString(senders), Integer.toString(seconds)))
+                .inheritIO()
+                .start();
+    }
+
+    private static void load(int senders, int seconds) throws Exception {
+        Device scu = new Device("benchscu");
+        Connection conn = new Connection();
+        scu.addConnection(conn);
+
+        EchoLoadTool.Result result = new EchoLoadTool("localhost", PORT, AE_TITLE, scu, "BENCHSCU", conn)
+                .concurrency(senders)
+                .duration(seconds, TimeUnit.SECONDS)
+                .run();
+
+        System.out.println(result);
+        System.out.printf("senders=%d associations/s=%.1f%n", senders,
+                result.getAssociations() * 1000.0 / result.getElapsed(TimeUnit.MILLISECONDS));
+    }
+
+    private static Device createDevice() {
+        Device device = new Device("benchscp");
+        Connection conn = new Connection("dicom", "localhost", PORT);
+        device.addConnection(conn);
+        ApplicationEntity ae = new ApplicationEntity(AE_TITLE);
+        ae.setAssociationAcceptor(true);
+        ae.addConnection(conn);
+        ae.addTransferCapability(new TransferCapability(null, UID.VerificationSOPClass,
+                TransferCapability.Role.SCP, UID.ImplicitVRLittleEndian));
+        device.addApplicationEntity(ae);
+        return device;
+    }
+
+    private static long procStatusKB(String key) throws IOException {
+        File status = new File("/proc/self/status");
+        if (!status.exists())
+            return -1;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(status))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(key))
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,148 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.dcm4che.test.tool.externaldevice.InMemoryInstanceStorage.DigestingInputStream;
+import org.dcm4che.test.tool.externaldevice.InMemoryInstanceStorage.Mode;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link InMemoryInstanceStorage} class.
+ */
+public class InMemoryInstanceStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMaxInstances() throws Exception {
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(2);
+        storeAll(storage, 3, 100);
+
+        Assert.assertEquals(Arrays.asList("1.2.3.2", "1.2.3.3"), storage.getSOPInstanceUIDs());
+        Assert.assertNull(storage.get("1.2.3.1"));
+        Assert.assertNotNull(storage.get("1.2.3.3").getDataset().getBytes(Tag.PixelData));
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(100, 25000);
+        storeAll(storage, 4, 10000);
+
+        Assert.assertEquals(Arrays.asList("1.2.3.3", "1.2.3.4"), storage.getSOPInstanceUIDs());
+        Assert.assertTrue(storage.getEstimatedBytes() <= 25000);
+        Assert.assertEquals(storage.get("1.2.3.3").getLength() + storage.get("1.2.3.4").getLength(),
+                storage.getEstimatedBytes());
+
+        storage.clear();
+        Assert.assertEquals(0, storage.size());
+        Assert.assertEquals(0, storage.getEstimatedBytes());
+    }
+
+    @Test
+    public void testHeadersWithDigest() throws Exception {
+        InMemoryInstanceStorage storage = new InMemoryInstanceStorage(Mode.HEADERS_WITH_DIGEST, 10, "SHA-256");
+        storeAll(storage, 1, 10000);
+
+        InMemoryInstanceStorage.StoredInstance instance = storage.get("1.2.3.1");
+        Assert.assertEquals("1.2.3.1", instance.getDataset().getString(Tag.SOPInstanceUID));
+        Assert.assertFalse(instance.getDataset().contains(Tag.PixelData));
+        Assert.assertEquals(32, instance.getDigest().length);
+        Assert.assertTrue(instance.getLength() < 10000);
+    }
+
+    @Test
+    public void testDigestingInputStream() throws Exception {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        DigestingInputStream in = new DigestingInputStream(new ByteArrayInputStream(data), md);
+        Assert.assertEquals(0, in.read());
+        Assert.assertEquals(100, in.skip(100));
+        byte[] b = new byte[2000];
+        Assert.assertEquals(899, in.read(b, 0, b.length));
+        Assert.assertEquals(-1, in.read());
+
+        Assert.assertEquals(1000, in.getCount());
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), md.digest());
+    }
+
+    private void storeAll(InMemoryInstanceStorage storage, int count, int pixelDataLength) throws Exception {
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(storage)
+                .build();
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            Association as = scp.open("STORESCU", UID.CTImageStorage);
+            try {
+                for (int i = 1; i <= count; i++) {
+                    Assert.assertEquals(Status.Success, LocalExternalDevice.store(as, dataset("1.2.3." + i, pixelDataLength)));
+                }
+            } finally {
+                as.release();
+            }
+        }
+    }
+
+    static Attributes dataset(String iuid, int pixelDataLength) {
+        Attributes dataset = new Attributes();
+        dataset.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        dataset.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        dataset.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        dataset.setBytes(Tag.PixelData, VR.OW, new byte[pixelDataLength]);
+        return dataset;
+    }
+}
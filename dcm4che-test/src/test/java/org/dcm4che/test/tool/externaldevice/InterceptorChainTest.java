@@ -0,0 +1,166 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link InterceptorChain} class.
+ */
+public class InterceptorChainTest {
+
+    private final List<String> calls = new ArrayList<String>();
+
+    @Test
+    public void testOrder() throws Exception {
+        InterceptorChain chain = InterceptorChain.EMPTY.with(new Tracing("a")).with(new Tracing("b"));
+
+        chain.invoke(null, null, Dimse.C_ECHO_RQ, new Attributes(), null, service());
+
+        Assert.assertEquals(Arrays.asList("before a", "before b", "enter a", "enter b", "service", "exit b", "exit a"),
+                calls);
+    }
+
+    @Test
+    public void testWithCopies() {
+        InterceptorChain one = InterceptorChain.EMPTY.with(new Tracing("a"));
+        InterceptorChain two = one.with(new Tracing("b"));
+
+        Assert.assertTrue(InterceptorChain.EMPTY.isEmpty());
+        Assert.assertEquals(1, one.getInterceptors().size());
+        Assert.assertEquals(2, two.getInterceptors().size());
+    }
+
+    @Test
+    public void testBeforeFailureSkipsService() throws Exception {
+        InterceptorChain chain = InterceptorChain.EMPTY.with(new Tracing("a")).with(new DicomServiceInterceptor() {
+            @Override
+            public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd,
+                    Attributes data) throws IOException {
+                throw new IOException("rejected");
+            }
+        });
+
+        try {
+            chain.invoke(null, null, Dimse.C_ECHO_RQ, new Attributes(), null, service());
+            Assert.fail("IOException expected");
+        } catch (IOException e) {
+            Assert.assertEquals("rejected", e.getMessage());
+        }
+        Assert.assertEquals(Arrays.asList("before a"), calls);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testProceedTwice() throws Exception {
+        InterceptorChain chain = InterceptorChain.EMPTY.with(new Tracing("a") {
+            @Override
+            public void aroundDimseRQ(DimseInvocation invocation) throws IOException {
+                invocation.proceed();
+                invocation.proceed();
+            }
+        });
+
+        chain.invoke(null, null, Dimse.C_ECHO_RQ, new Attributes(), null, service());
+    }
+
+    @Test
+    public void testTiming() throws Exception {
+        TimingInterceptor timing = new TimingInterceptor();
+        InterceptorChain chain = InterceptorChain.EMPTY.with(timing);
+
+        chain.invoke(null, null, Dimse.C_STORE_RQ, new Attributes(), null, service());
+        chain.invoke(null, null, Dimse.C_STORE_RQ, new Attributes(), null, service());
+        try {
+            chain.invoke(null, null, Dimse.N_ACTION_RQ, new Attributes(), null, new DimseInvocation.Service() {
+                @Override
+                public void invoke() throws IOException {
+                    throw new IOException("failed");
+                }
+            });
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+        }
+
+        Assert.assertEquals(2, timing.getHistogram(Dimse.C_STORE_RQ).getCount());
+        Assert.assertEquals(1, timing.getHistogram(Dimse.N_ACTION_RQ).getCount());
+        Assert.assertNull(timing.getHistogram(Dimse.C_ECHO_RQ));
+        Assert.assertEquals(2, timing.getHistograms().size());
+    }
+
+    private DimseInvocation.Service service() {
+        return new DimseInvocation.Service() {
+            @Override
+            public void invoke() {
+                calls.add("service");
+            }
+        };
+    }
+
+    private class Tracing implements DicomServiceInterceptor {
+        private final String name;
+
+        Tracing(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void beforeDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd,
+                Attributes data) {
+            calls.add("before " + name);
+        }
+
+        @Override
+        public void aroundDimseRQ(DimseInvocation invocation) throws IOException {
+            calls.add("enter " + name);
+            invocation.proceed();
+            calls.add("exit " + name);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link Jitter} class.
+ */
+public class JitterTest {
+
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void testFixed() {
+        Jitter jitter = Jitter.fixed(42);
+        Assert.assertEquals(42, jitter.nextDelay());
+        Assert.assertEquals(42, jitter.nextDelay());
+        Assert.assertEquals(0, Jitter.NONE.nextDelay());
+    }
+
+    @Test
+    public void testUniform() {
+        Jitter jitter = Jitter.uniform(10, 20, 1);
+        long sum = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = jitter.nextDelay();
+            Assert.assertTrue(delay >= 10 && delay < 20);
+            sum += delay;
+        }
+        Assert.assertEquals(14.5, (double) sum / SAMPLES, 0.2);
+    }
+
+    @Test
+    public void testExponential() {
+        Jitter jitter = Jitter.exponential(50, 1);
+        long sum = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = jitter.nextDelay();
+            Assert.assertTrue(delay >= 0);
+            sum += delay;
+        }
+        // truncation to whole milliseconds lowers the mean by about 0.5
+        Assert.assertEquals(49.5, (double) sum / SAMPLES, 2.5);
+    }
+
+    @Test
+    public void testGaussianCutOffAtZero() {
+        Jitter jitter = Jitter.gaussian(0, 10, 1);
+        int zeros = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = jitter.nextDelay();
+            Assert.assertTrue(delay >= 0);
+            if (delay == 0)
+                zeros++;
+        }
+        Assert.assertTrue(zeros > SAMPLES / 3);
+    }
+
+    @Test
+    public void testSeedIsReproducible() {
+        Jitter jitter1 = Jitter.exponential(100, 42);
+        Jitter jitter2 = Jitter.exponential(100, 42);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(jitter1.nextDelay(), jitter2.nextDelay());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeFixed() {
+        Jitter.fixed(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyUniformRange() {
+        Jitter.uniform(10, 10, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveExponentialMean() {
+        Jitter.exponential(0, 1);
+    }
+}
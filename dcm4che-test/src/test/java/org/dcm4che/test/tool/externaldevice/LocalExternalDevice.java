@@ -0,0 +1,211 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Priority;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.DicomService;
+
+/**
+ * {@link ExternalDeviceTool} listening on a free local port, for tests which
+ * need a real association.
+ * 
+ * <pre>
+ * ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", dir);
+ * try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+ *     ... connect to localhost:scp.getPort()
+ * }
+ * </pre>
+ */
+public class LocalExternalDevice implements Closeable {
+
+    private final ExternalDeviceToolConfig cfg;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduledExecutor;
+    private final ExternalDeviceTool tool;
+
+    /**
+     * @param aeTitle
+     *            AE title of the device, which accepts any SOP class and
+     *            transfer syntax
+     * @param dir
+     *            directory for the DICOMDIR and received files
+     */
+    public static ExternalDeviceToolConfig config(String aeTitle, File dir) throws IOException {
+        return config(aeTitle.toLowerCase(), aeTitle, dir);
+    }
+
+    public static ExternalDeviceToolConfig config(String deviceName, String aeTitle, File dir) throws IOException {
+        int port = freePort();
+
+        Device device = new Device(deviceName);
+        Connection conn = new Connection("dicom", "localhost", port);
+        device.addConnection(conn);
+        ApplicationEntity ae = new ApplicationEntity(aeTitle);
+        ae.setAssociationAcceptor(true);
+        ae.setAssociationInitiator(true);
+        ae.addConnection(conn);
+        ae.addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
+        ae.addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCU, "*"));
+        device.addApplicationEntity(ae);
+
+        return new ExternalDeviceToolConfig()
+                .device(device)
+                .aeTitle(aeTitle)
+                .port(port)
+                .dicomDir(new File(dir, "DICOMDIR"));
+    }
+
+    /**
+     * Build and start the tool.
+     * 
+     * @param cStoreSCP
+     *            C-STORE SCP built with the same config, or null
+     * @param stgCmtSCP
+     *            storage commitment SCP built with the same config, or null
+     */
+    public LocalExternalDevice(ExternalDeviceToolConfig cfg, DicomService cStoreSCP, DicomService stgCmtSCP) throws IOException {
+        this.cfg = cfg;
+        this.executor = Executors.newCachedThreadPool();
+        this.scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        cfg.executor(executor).scheduledExecutor(scheduledExecutor);
+
+        tool = new ExternalDeviceTool.Builder()
+                .toolConfig(cfg)
+                .cStoreSCP(cStoreSCP)
+                .stgCmtSCP(stgCmtSCP)
+                .build();
+        tool.start();
+    }
+
+    /**
+     * @return new SCU device with one connection, see {@link #connection(Device)}
+     */
+    public static Device scuDevice(String name) {
+        Device device = new Device(name);
+        device.addConnection(new Connection());
+        return device;
+    }
+
+    public static Connection connection(Device device) {
+        return device.listConnections().get(0);
+    }
+
+    /**
+     * Open an association to this device from a new SCU device running on
+     * the executors of this device, offering the given SOP classes in
+     * Implicit VR Little Endian.
+     */
+    public Association open(String callingAET, String... cuids) throws Exception {
+        Device device = scuDevice(callingAET.toLowerCase());
+        device.setExecutor(executor);
+        device.setScheduledExecutor(scheduledExecutor);
+        ApplicationEntity ae = new ApplicationEntity(callingAET);
+        device.addApplicationEntity(ae);
+        ae.addConnection(connection(device));
+
+        AAssociateRQ rq = new AAssociateRQ();
+        rq.setCallingAET(callingAET);
+        rq.setCalledAET(getAETitle());
+        for (int i = 0; i < cuids.length; i++) {
+            rq.addPresentationContext(new PresentationContext(2 * i + 1, cuids[i], UID.ImplicitVRLittleEndian));
+        }
+        return ae.connect(new Connection("dicom", "localhost", getPort()), rq);
+    }
+
+    /**
+     * Send the given dataset in a C-STORE request.
+     * 
+     * @return status of the C-STORE response
+     */
+    public static int store(Association as, Attributes dataset) throws Exception {
+        DimseRSP rsp = as.cstore(dataset.getString(Tag.SOPClassUID), dataset.getString(Tag.SOPInstanceUID),
+                Priority.NORMAL, new DataWriterAdapter(dataset), UID.ImplicitVRLittleEndian);
+        rsp.next();
+        return rsp.getCommand().getInt(Tag.Status, -1);
+    }
+
+    public ExternalDeviceToolConfig getConfig() {
+        return cfg;
+    }
+
+    public String getAETitle() {
+        return cfg.getAeTitle();
+    }
+
+    public int getPort() {
+        return cfg.getPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            tool.stop();
+        } finally {
+            scheduledExecutor.shutdownNow();
+            executor.shutdownNow();
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
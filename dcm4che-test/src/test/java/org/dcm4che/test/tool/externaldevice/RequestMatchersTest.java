@@ -39,14 +39,30 @@
 
 package org.dcm4che.test.tool.externaldevice;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * @author Alexander Hoermandinger <alexander.hoermandinger@agfa.com>
@@ -54,6 +70,9 @@ import org.junit.Test;
  */
 public class RequestMatchersTest {
     
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
     @Test
     public void testMatchedRequest() {
         String callingAETitle = "STORESCU";
@@ -81,4 +100,146 @@ public class RequestMatchersTest {
         
         Assert.assertThat(requests, RequestMatchers.containsCStoreRequest("1.1.1", 1));
     }
+    
+    @Test
+    public void testIndexedRequests() {
+        DimseRequestRecorder recorder = new DimseRequestRecorder();
+        recorder.record(cstore("1.1.1"));
+        recorder.record(cstore("1.1.1"));
+        recorder.record(stgCmt("1.1.1", "1.1.2"));
+        
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.1.1", 2));
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.1.2", 0));
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsStgCmtRequest("1.1.2", 1));
+        Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.1.1", 2));
+        Assert.assertThat(recorder, RequestMatchers.recordedStgCmtRequest("1.1.1", 1));
+        
+        recorder.getRequests().remove(0);
+        Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.1.1", 1));
+        
+        recorder.getRequests().clear();
+        Assert.assertThat(recorder, RequestMatchers.recordedStgCmtRequest("1.1.1", 0));
+    }
+    
+    @Test
+    public void testNotIndexedSubclass() {
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.FULL, false) {
+        };
+        recorder.record(cstore("1.1.1"));
+        
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.1.1", 1));
+        Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.1.1", 1));
+    }
+    
+    @Test
+    public void testIndexMatchesScan() {
+        DimseRequestRecorder recorder = new DimseRequestRecorder();
+        recorder.record(cstore("1.1.1"));
+        recorder.record(stgCmt("1.1.1", "1.1.2"));
+        recorder.record(stgCmt("1.1.2"));
+        
+        List<DimseRequestRecorder.DimseRequest> copy = new ArrayList<DimseRequestRecorder.DimseRequest>(recorder.getRequests());
+        Assert.assertThat(copy, RequestMatchers.containsCStoreRequest("1.1.1", 1));
+        Assert.assertThat(copy, RequestMatchers.containsStgCmtRequest("1.1.1", 1));
+        Assert.assertThat(copy, RequestMatchers.containsStgCmtRequest("1.1.2", 2));
+    }
+    
+    @Test
+    public void testEventuallyMatchedByLaterRequest() throws Exception {
+        final DimseRequestRecorder recorder = new DimseRequestRecorder();
+        recorder.record(cstore("1.1.1"));
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                recorder.record(cstore("1.1.1"));
+            }
+        };
+        sender.start();
+        
+        Assert.assertThat(recorder, RequestMatchers.eventually(
+                RequestMatchers.recordedCStoreRequest("1.1.1", 2), 10, TimeUnit.SECONDS));
+        sender.join();
+    }
+    
+    @Test
+    public void testRecordedByConcurrentAssociations() throws Exception {
+        // not indexed, so the matcher scans the requests while other associations record
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.FULL, false) {
+        };
+        CompletableFuture<Void> recorded = recorder.whenRecorded(RequestMatchers.recordedCStoreRequest("1.2.3.1", 40));
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(new InMemoryInstanceStorage(1))
+                .attachRequestRecorder(recorder)
+                .build();
+        
+        ExecutorService senders = Executors.newFixedThreadPool(4);
+        try (final LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            List<Future<Void>> stores = new ArrayList<Future<Void>>();
+            for (int i = 0; i < 4; i++) {
+                final String callingAET = "STORESCU" + i;
+                stores.add(senders.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Association as = scp.open(callingAET, UID.CTImageStorage);
+                        try {
+                            for (int j = 0; j < 10; j++) {
+                                Assert.assertEquals(Status.Success, LocalExternalDevice.store(as,
+                                        InMemoryInstanceStorageTest.dataset("1.2.3.1", 16)));
+                            }
+                        } finally {
+                            as.release();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> store : stores) {
+                store.get(10, TimeUnit.SECONDS);
+            }
+            
+            recorded.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(40, recorder.getRequests().size());
+        } finally {
+            senders.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testEventuallyTimesOut() {
+        DimseRequestRecorder recorder = new DimseRequestRecorder();
+        recorder.record(cstore("1.1.1"));
+        
+        Matcher<DimseRequestRecorder> matcher = RequestMatchers.eventually(
+                RequestMatchers.recordedStgCmtRequest("1.1.1", 1), 20, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(matcher.matches(recorder));
+        
+        StringDescription mismatch = new StringDescription();
+        matcher.describeMismatch(recorder, mismatch);
+        Assert.assertEquals("timed out after 20 MILLISECONDS, did record 0 request for SOP instance with UID 1.1.1",
+                mismatch.toString());
+    }
+    
+    private static DimseRequestRecorder.DimseRequest cstore(String iuid) {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, iuid);
+        return DimseRequestRecorder.DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, new Attributes());
+    }
+    
+    private static DimseRequestRecorder.DimseRequest stgCmt(String... iuids) {
+        Attributes data = new Attributes();
+        Sequence refSOPSeq = data.newSequence(Tag.ReferencedSOPSequence, iuids.length);
+        for (String iuid : iuids) {
+            Attributes item = new Attributes();
+            item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+            refSOPSeq.add(item);
+        }
+        return DimseRequestRecorder.DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.N_ACTION_RQ, new Attributes(), data);
+    }
 }
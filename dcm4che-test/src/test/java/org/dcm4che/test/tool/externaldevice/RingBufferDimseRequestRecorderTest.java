@@ -0,0 +1,203 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che.test.tool.externaldevice.RingBufferDimseRequestRecorder.OverflowPolicy;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Dimse;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link RingBufferDimseRequestRecorder} class.
+ */
+public class RingBufferDimseRequestRecorderTest {
+
+    @Test
+    public void testCapacityIsPowerOfTwo() {
+        Assert.assertEquals(1, new RingBufferDimseRequestRecorder(1, OverflowPolicy.DROP_OLDEST).getCapacity());
+        Assert.assertEquals(8, new RingBufferDimseRequestRecorder(5, OverflowPolicy.DROP_OLDEST).getCapacity());
+        Assert.assertEquals(8, new RingBufferDimseRequestRecorder(8, OverflowPolicy.DROP_OLDEST).getCapacity());
+    }
+
+    @Test
+    public void testDropOldest() {
+        RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(4, OverflowPolicy.DROP_OLDEST);
+        record(recorder, "T", 0, 10);
+
+        assertSequence(recorder.snapshot(), 6, 10);
+        Assert.assertEquals(6, recorder.getDropped());
+        assertSequence(recorder.drain(), 6, 10);
+        Assert.assertTrue(recorder.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testDropNewest() {
+        RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(4, OverflowPolicy.DROP_NEWEST);
+        record(recorder, "T", 0, 10);
+
+        assertSequence(recorder.getRequests(), 0, 4);
+        Assert.assertEquals(6, recorder.getDropped());
+        assertSequence(recorder.drain(), 0, 4);
+
+        record(recorder, "T", 10, 12);
+        assertSequence(recorder.drain(), 10, 12);
+    }
+
+    @Test
+    public void testBlockUntilDrained() throws Exception {
+        final RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(2, OverflowPolicy.BLOCK);
+        record(recorder, "T", 0, 2);
+
+        final CountDownLatch recorded = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                record(recorder, "T", 2, 3);
+                recorded.countDown();
+            }
+        };
+        producer.start();
+
+        Assert.assertFalse(recorded.await(50, TimeUnit.MILLISECONDS));
+        assertSequence(recorder.drain(), 0, 2);
+        Assert.assertTrue(recorded.await(5, TimeUnit.SECONDS));
+        assertSequence(recorder.drain(), 2, 3);
+        Assert.assertEquals(0, recorder.getDropped());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int perProducer = 20000;
+        final RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(1024, OverflowPolicy.BLOCK);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int p = 0; p < producers; p++) {
+            final String name = "T" + p;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    record(recorder, name, 0, perProducer);
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        int[] next = new int[producers];
+        int total = 0;
+        while (total < producers * perProducer) {
+            for (DimseRequest r : recorder.drain()) {
+                int producer = Integer.parseInt(r.getCallingAETitle().substring(1));
+                // requests of one producer are drained completely and in order
+                Assert.assertEquals(next[producer]++, Integer.parseInt(r.getCalledAETitle()));
+                total++;
+            }
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        Assert.assertEquals(0, recorder.getDropped());
+        Assert.assertTrue(recorder.drain().isEmpty());
+    }
+
+    @Test
+    public void testIndexDropsOverwrittenRequests() {
+        RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(2, OverflowPolicy.DROP_OLDEST);
+        recordStore(recorder, "1.1");
+        recordStore(recorder, "1.2");
+        recordStore(recorder, "1.1");
+        Assert.assertEquals(1, recorder.getRequestIndex().count(Dimse.C_STORE_RQ, "1.1"));
+        Assert.assertEquals(1, recorder.getRequestIndex().count(Dimse.C_STORE_RQ, "1.2"));
+
+        recordStore(recorder, "1.3");
+        Assert.assertEquals(0, recorder.getRequestIndex().count(Dimse.C_STORE_RQ, "1.2"));
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.1", 1));
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.3", 1));
+        Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.2", 0));
+    }
+
+    @Test
+    public void testIndexDropsDrainedRequests() {
+        RingBufferDimseRequestRecorder recorder = new RingBufferDimseRequestRecorder(4, OverflowPolicy.BLOCK);
+        recordStore(recorder, "1.1");
+        recordStore(recorder, "1.1");
+        Assert.assertThat(recorder.getRequests(), RequestMatchers.containsCStoreRequest("1.1", 2));
+
+        Assert.assertEquals(2, recorder.drain().size());
+        Assert.assertEquals(0, recorder.getRequestIndex().count(Dimse.C_STORE_RQ, "1.1"));
+
+        // slots reused after the drain must not remove the new requests
+        for (int i = 0; i < 4; i++)
+            recordStore(recorder, "1.2");
+        Assert.assertThat(recorder, RequestMatchers.recordedCStoreRequest("1.2", 4));
+    }
+
+    private static void recordStore(RingBufferDimseRequestRecorder recorder, String iuid) {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, iuid);
+        recorder.record(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, null));
+    }
+
+    private static void record(RingBufferDimseRequestRecorder recorder, String callingAET, int from, int to) {
+        for (int i = from; i < to; i++)
+            recorder.record(new DimseRequest(callingAET, Integer.toString(i), null, null));
+    }
+
+    private static void assertSequence(List<DimseRequest> requests, int from, int to) {
+        Assert.assertEquals(to - from, requests.size());
+        for (int i = from; i < to; i++)
+            Assert.assertEquals(Integer.toString(i), requests.get(i - from).getCalledAETitle());
+    }
+}
@@ -0,0 +1,118 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.pdu.PresentationContext;
+
+/**
+ * Measures {@link BehavioralStgCmtSCP.BehavioralStgCmtSCPImpl#calculateMatches}
+ * for growing behavior tables and Referenced SOP Sequences. With the indexed
+ * lookup the time per N-ACTION must only grow with the number of requested
+ * instances.
+ * 
+ * <pre>
+ * java ... StgCmtMatchingBenchmark [iterations]
+ * </pre>
+ */
+public class StgCmtMatchingBenchmark {
+
+    private static final int[] BEHAVIOR_TABLE_SIZES = { 1000, 100000, 500000 };
+    private static final int[] REQUEST_SIZES = { 5, 1000, 50000 };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        File dicomDir = Files.createTempDirectory("StgCmtMatchingBenchmark").resolve("DICOMDIR").toFile();
+        ExternalDeviceToolConfig cfg = new ExternalDeviceToolConfig().dicomDir(dicomDir);
+
+        for (int tableSize : BEHAVIOR_TABLE_SIZES) {
+            BehavioralStgCmtSCP.Builder builder = new BehavioralStgCmtSCP.Builder()
+                    .qrSCPConfig(cfg)
+                    .instanceStorage(new AllStoredInstanceStorage());
+            for (int i = 0; i < tableSize; i++)
+                builder.returnInstanceState(iuid(i), Status.NoSuchObjectInstance, Status.Success);
+            BehavioralStgCmtSCP.BehavioralStgCmtSCPImpl stgCmtSCP = builder.build();
+
+            for (int requestSize : REQUEST_SIZES) {
+                // request every other UID so that half of them hit the behavior table
+                Map<String, String> requestMap = new HashMap<String, String>(requestSize * 2);
+                for (int i = 0; i < requestSize; i++)
+                    requestMap.put(iuid(i * 2), UID.CTImageStorage);
+
+                for (int i = 0; i < iterations / 10 + 1; i++)
+                    stgCmtSCP.calculateMatches(requestMap);
+
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                    stgCmtSCP.calculateMatches(requestMap);
+                long elapsed = System.nanoTime() - start;
+
+                System.out.printf("behaviors=%d requested=%d: %.1f us/N-ACTION%n",
+                        tableSize, requestSize, elapsed / 1000.0 / iterations);
+            }
+        }
+    }
+
+    private static String iuid(int i) {
+        return "1.2.40.0.13.1.1." + i;
+    }
+
+    private static class AllStoredInstanceStorage implements InstanceStorage {
+
+        @Override
+        public Attributes store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getSOPClassUID(String iuid) {
+            return UID.CTImageStorage;
+        }
+    }
+}
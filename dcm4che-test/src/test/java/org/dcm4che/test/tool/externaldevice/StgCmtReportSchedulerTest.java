@@ -0,0 +1,360 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.BehavioralStgCmtSCP.BehavioralStgCmtSCPImpl;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Commands;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.DimseRSP;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.AbstractDicomService;
+import org.dcm4che3.net.service.DicomServiceRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link StgCmtReportScheduler} class.
+ */
+public class StgCmtReportSchedulerTest {
+
+    private static final String SCU_AET = "STGCMTSCU";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ReportReceiver receiver;
+
+    @Before
+    public void setUp() throws Exception {
+        receiver = new ReportReceiver();
+    }
+
+    @After
+    public void tearDown() {
+        receiver.close();
+    }
+
+    @Test
+    public void testImmediateReport() throws Exception {
+        ExternalDeviceToolConfig cfg = config();
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1");
+
+            Report report = receiver.nextReport();
+            Assert.assertEquals(Arrays.asList("1.2.3.1"), report.iuids);
+            stgCmtSCP.whenStgCmtResponse(Status.NoSuchObjectInstance, "1.2.3.1").get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testImmediateReportRejected() throws Exception {
+        ExternalDeviceToolConfig cfg = config();
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .build();
+        receiver.reportStatus = Status.ProcessingFailure;
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            CompletableFuture<Void> reported = stgCmtSCP.whenStgCmtResponse(
+                    VerifiedInstanceRegistry.ANY_STATUS, "1.2.3.1");
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1");
+            receiver.nextReport();
+
+            // the result only counts as verified once the report was accepted
+            try {
+                reported.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expecting exception");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            Assert.assertFalse(stgCmtSCP.verifiedInstances.containsKey("1.2.3.1"));
+        }
+    }
+
+    @Test
+    public void testReportDelay() throws Exception {
+        ExternalDeviceToolConfig cfg = config();
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .reportDelay(500)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            long start = System.currentTimeMillis();
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1", "1.2.3.2");
+
+            Report report = receiver.nextReport();
+            Assert.assertTrue(report.receiveTime - start >= 500);
+            Assert.assertEquals("1.2.9.1", report.transactionUID);
+            Assert.assertEquals(Arrays.asList("1.2.3.1", "1.2.3.2"), report.iuids);
+            stgCmtSCP.whenStgCmtResponse(Status.NoSuchObjectInstance, "1.2.3.1", "1.2.3.2").get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testMergeTransactions() throws Exception {
+        ExternalDeviceToolConfig cfg = config();
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .batchReports(3, 10000)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1");
+            receiver.requestCommitment(scp, "1.2.9.2", "1.2.3.2");
+            Assert.assertNull(receiver.reports.poll(200, TimeUnit.MILLISECONDS));
+            // the third N-ACTION closes the batch long before its window expires
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.3");
+
+            Report first = receiver.nextReport();
+            Report second = receiver.nextReport();
+            Assert.assertEquals("1.2.9.1", first.transactionUID);
+            Assert.assertEquals(Arrays.asList("1.2.3.1", "1.2.3.3"), first.iuids);
+            Assert.assertEquals("1.2.9.2", second.transactionUID);
+            Assert.assertEquals(Arrays.asList("1.2.3.2"), second.iuids);
+            Assert.assertSame(first.as, second.as);
+            Assert.assertNull(receiver.reports.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testSplitReports() throws Exception {
+        ExternalDeviceToolConfig cfg = config();
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .splitReports(2, 300)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1", "1.2.3.2", "1.2.3.3", "1.2.3.4", "1.2.3.5");
+
+            Report first = receiver.nextReport();
+            Report second = receiver.nextReport();
+            Report third = receiver.nextReport();
+            Assert.assertEquals(Arrays.asList("1.2.3.1", "1.2.3.2"), first.iuids);
+            Assert.assertEquals(Arrays.asList("1.2.3.3", "1.2.3.4"), second.iuids);
+            Assert.assertEquals(Arrays.asList("1.2.3.5"), third.iuids);
+            for (Report report : Arrays.asList(first, second, third)) {
+                Assert.assertEquals("1.2.9.1", report.transactionUID);
+            }
+            Assert.assertTrue(second.receiveTime - first.receiveTime >= 250);
+            Assert.assertTrue(third.receiveTime - second.receiveTime >= 250);
+            Assert.assertNotSame(first.as, second.as);
+        }
+    }
+
+    @Test
+    public void testSameAssociationClosedWithoutRemoteConnection() throws Exception {
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STGCMTSCP", folder.getRoot())
+                .stgCmtOnSameAssociation(true);
+        BehavioralStgCmtSCPImpl stgCmtSCP = new BehavioralStgCmtSCP.Builder()
+                .qrSCPConfig(cfg)
+                .reportDelay(500)
+                .build();
+
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, null, stgCmtSCP)) {
+            CompletableFuture<Void> reported = stgCmtSCP.whenStgCmtResponse(
+                    VerifiedInstanceRegistry.ANY_STATUS, "1.2.3.1");
+            // the association is released before the report is due
+            receiver.requestCommitment(scp, "1.2.9.1", "1.2.3.1");
+
+            try {
+                reported.get(5, TimeUnit.SECONDS);
+                Assert.fail("Expecting exception");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+            try {
+                stgCmtSCP.waitForStgCmtResponse(1000, Status.Success, "1.2.3.1");
+                Assert.fail("Expecting exception");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertNull(receiver.reports.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private ExternalDeviceToolConfig config() throws IOException {
+        return LocalExternalDevice.config("STGCMTSCP", folder.getRoot())
+                .addRemoteConnection(SCU_AET, "localhost", receiver.port);
+    }
+
+    private static final class Report {
+        private final long receiveTime = System.currentTimeMillis();
+        private final Association as;
+        private final String transactionUID;
+        private final List<String> iuids = new ArrayList<>();
+
+        private Report(Association as, Attributes eventInfo) {
+            this.as = as;
+            this.transactionUID = eventInfo.getString(Tag.TransactionUID);
+            addAll(eventInfo.getSequence(Tag.ReferencedSOPSequence));
+            addAll(eventInfo.getSequence(Tag.FailedSOPSequence));
+        }
+
+        private void addAll(Sequence seq) {
+            if (seq != null) {
+                for (Attributes item : seq) {
+                    iuids.add(item.getString(Tag.ReferencedSOPInstanceUID));
+                }
+            }
+        }
+    }
+
+    /**
+     * Storage commitment SCU which sends N-ACTIONs and records the received
+     * N-EVENT-REPORTs.
+     */
+    private static final class ReportReceiver implements Closeable {
+        private final BlockingQueue<Report> reports = new LinkedBlockingQueue<>();
+        private volatile int reportStatus = Status.Success;
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+        private final ScheduledExecutorService scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        private final Device device = new Device("stgcmtscu");
+        private final ApplicationEntity ae = new ApplicationEntity(SCU_AET);
+        private final Connection conn;
+        private final int port;
+
+        private ReportReceiver() throws Exception {
+            port = LocalExternalDevice.freePort();
+            conn = new Connection("dicom", "localhost", port);
+            device.addConnection(conn);
+            ae.setAssociationAcceptor(true);
+            ae.setAssociationInitiator(true);
+            ae.addConnection(conn);
+            ae.addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
+            ae.addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCU, "*"));
+            device.addApplicationEntity(ae);
+
+            DicomServiceRegistry registry = new DicomServiceRegistry();
+            registry.addDicomService(new AbstractDicomService(UID.StorageCommitmentPushModelSOPClass) {
+                @Override
+                protected void onDimseRQ(Association as, PresentationContext pc, Dimse dimse, Attributes cmd,
+                        Attributes data) throws IOException {
+                    reports.add(new Report(as, data));
+                    as.writeDimseRSP(pc, Commands.mkNEventReportRSP(cmd, reportStatus), null);
+                }
+            });
+            device.setDimseRQHandler(registry);
+            device.setExecutor(executor);
+            device.setScheduledExecutor(scheduledExecutor);
+            device.bindConnections();
+        }
+
+        private void requestCommitment(LocalExternalDevice scp, String transactionUID, String... iuids)
+                throws Exception {
+            AAssociateRQ rq = new AAssociateRQ();
+            rq.setCallingAET(SCU_AET);
+            rq.setCalledAET(scp.getAETitle());
+            rq.addPresentationContext(new PresentationContext(1, UID.StorageCommitmentPushModelSOPClass,
+                    UID.ImplicitVRLittleEndian));
+
+            Attributes actionInfo = new Attributes();
+            actionInfo.setString(Tag.TransactionUID, VR.UI, transactionUID);
+            Sequence refSOPSeq = actionInfo.newSequence(Tag.ReferencedSOPSequence, iuids.length);
+            for (String iuid : iuids) {
+                Attributes item = new Attributes(2);
+                item.setString(Tag.ReferencedSOPClassUID, VR.UI, UID.CTImageStorage);
+                item.setString(Tag.ReferencedSOPInstanceUID, VR.UI, iuid);
+                refSOPSeq.add(item);
+            }
+
+            Association as = ae.connect(new Connection("dicom", "localhost", scp.getPort()), rq);
+            try {
+                DimseRSP rsp = as.naction(UID.StorageCommitmentPushModelSOPClass,
+                        UID.StorageCommitmentPushModelSOPInstance, 1, actionInfo, null);
+                rsp.next();
+                Assert.assertEquals(Status.Success, rsp.getCommand().getInt(Tag.Status, -1));
+            } finally {
+                as.release();
+            }
+        }
+
+        private Report nextReport() throws InterruptedException {
+            Report report = reports.poll(5, TimeUnit.SECONDS);
+            Assert.assertNotNull("no N-EVENT-REPORT received", report);
+            return report;
+        }
+
+        @Override
+        public void close() {
+            try {
+                device.unbindConnections();
+            } finally {
+                scheduledExecutor.shutdownNow();
+                executor.shutdownNow();
+            }
+        }
+    }
+}
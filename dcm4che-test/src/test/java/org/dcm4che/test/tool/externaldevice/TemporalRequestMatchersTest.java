@@ -0,0 +1,189 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che.test.tool.externaldevice.DimseRequestRecorder.DimseRequest;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.Status;
+import org.hamcrest.Matcher;
+import org.hamcrest.StringDescription;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test {@link TemporalRequestMatchers} class.
+ */
+public class TemporalRequestMatchersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testStudyOrder() {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        requests.add(cstore("1.1", "1.1.1", 0, 1));
+        requests.add(cstore("1.1", "1.1.2", 10, 1));
+        requests.add(cstore("1.2", "1.2.1", 20, 1));
+
+        Assert.assertThat(requests, TemporalRequestMatchers.storedInStudyOrder());
+        Assert.assertThat(requests, TemporalRequestMatchers.storedInStudyOrder("1.1", "1.2"));
+        assertMismatch("studies were stored in order [1.1, 1.2]", requests,
+                TemporalRequestMatchers.storedInStudyOrder("1.2", "1.1"));
+
+        requests.add(cstore("1.1", "1.1.3", 30, 1));
+        assertMismatch("study 1.1 was resumed after study 1.2 at request #4", requests,
+                TemporalRequestMatchers.storedInStudyOrder());
+    }
+
+    @Test
+    public void testStudyOrderWithoutData() {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        requests.add(cstore("1.1", "1.1.1", 0, 1));
+        requests.add(DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ,
+                cstore("1.1", "1.1.2", 10, 1).getCmd(), null, 10, 1));
+
+        assertMismatch("request #2 has no data set captured", requests,
+                TemporalRequestMatchers.storedInStudyOrder());
+    }
+
+    @Test
+    public void testStudyOrderRecordedByCStoreSCP() throws Exception {
+        DimseRequestRecorder recorder = new DimseRequestRecorder(CaptureProfile.INSTANCE_REFERENCES);
+        // evaluated on each recorded request and again once its data set was captured
+        CompletableFuture<Void> inOrder = recorder.whenRecorded(RequestMatchers.recordedRequests(
+                TemporalRequestMatchers.storedInStudyOrder("1.1", "1.2")));
+
+        ExternalDeviceToolConfig cfg = LocalExternalDevice.config("STORESCP", folder.getRoot());
+        BehavioralCStoreSCP.InterceptableCStoreSCPImpl cStoreSCP = new BehavioralCStoreSCP.Builder()
+                .qrSCPConfig(cfg)
+                .instanceStorage(new InMemoryInstanceStorage(10))
+                .attachRequestRecorder(recorder)
+                .build();
+        try (LocalExternalDevice scp = new LocalExternalDevice(cfg, cStoreSCP, null)) {
+            Association as = scp.open("STORESCU", UID.CTImageStorage);
+            try {
+                store(as, "1.1", "1.1.1");
+                store(as, "1.1", "1.1.2");
+                Assert.assertFalse(inOrder.isDone());
+                store(as, "1.2", "1.2.1");
+            } finally {
+                as.release();
+            }
+        }
+
+        inOrder.get(5, TimeUnit.SECONDS);
+        Assert.assertThat(recorder.getRequests(), TemporalRequestMatchers.storedInStudyOrder("1.1", "1.2"));
+    }
+
+    @Test
+    public void testConcurrentAssociations() {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        requests.add(cstore("1.1", "1.1.1", 0, 1));
+        requests.add(cstore("1.1", "1.1.2", 50, 2));
+        requests.add(cstore("1.1", "1.1.3", 100, 1));
+        requests.add(cstore("1.1", "1.1.4", 200, 3));
+
+        Assert.assertThat(requests, TemporalRequestMatchers.atMostConcurrentAssociations(2));
+        assertMismatch("had 2 concurrent associations 50 ms after the first request", requests,
+                TemporalRequestMatchers.atMostConcurrentAssociations(1));
+    }
+
+    @Test
+    public void testSustainedRate() {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        for (int i = 0; i < 100; i++)
+            requests.add(cstore("1.1", "1.1." + i, i * 10, 1));
+
+        Assert.assertThat(requests, TemporalRequestMatchers.sustainedCStoreRate(90, 200));
+        assertMismatch("had 100.0 C-STORE requests/s 0 ms after the first one", requests,
+                TemporalRequestMatchers.sustainedCStoreRate(110, 200));
+
+        requests.add(cstore("1.1", "1.1.100", 1500, 1));
+        assertMismatch("had 0.0 C-STORE requests/s 991 ms after the first one", requests,
+                TemporalRequestMatchers.sustainedCStoreRate(90, 200));
+    }
+
+    @Test
+    public void testRetryInterval() {
+        List<DimseRequest> requests = new ArrayList<DimseRequest>();
+        requests.add(cstore("1.1", "1.1.1", 0, 1));
+        requests.add(cstore("1.1", "1.1.2", 10, 1));
+        requests.add(cstore("1.1", "1.1.1", 5000, 2));
+
+        Assert.assertThat(requests, TemporalRequestMatchers.cStoreRetryIntervalAtLeast(5000));
+        assertMismatch("instance 1.1.1 was stored again after 5000 ms", requests,
+                TemporalRequestMatchers.cStoreRetryIntervalAtLeast(6000));
+    }
+
+    private static void store(Association as, String studyIUID, String iuid) throws Exception {
+        Attributes dataset = InMemoryInstanceStorageTest.dataset(iuid, 100);
+        dataset.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+        Assert.assertEquals(Status.Success, LocalExternalDevice.store(as, dataset));
+    }
+
+    private static void assertMismatch(String expected, List<DimseRequest> requests,
+            Matcher<List<? super DimseRequest>> matcher) {
+        Assert.assertFalse(matcher.matches(requests));
+        StringDescription mismatch = new StringDescription();
+        matcher.describeMismatch(requests, mismatch);
+        Assert.assertEquals(expected, mismatch.toString());
+    }
+
+    private static DimseRequest cstore(String studyIUID, String iuid, long timestamp, int associationSerialNo) {
+        Attributes cmd = new Attributes();
+        cmd.setString(Tag.AffectedSOPInstanceUID, VR.UI, iuid);
+        Attributes data = new Attributes();
+        data.setString(Tag.StudyInstanceUID, VR.UI, studyIUID);
+        return DimseRequest.captured("STORESCU", "DCM4CHEE", Dimse.C_STORE_RQ, cmd, data, timestamp,
+                associationSerialNo);
+    }
+}
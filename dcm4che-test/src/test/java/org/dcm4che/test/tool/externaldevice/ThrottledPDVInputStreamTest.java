@@ -0,0 +1,175 @@
+//
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.PDVInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link ThrottledPDVInputStream} class.
+ */
+public class ThrottledPDVInputStreamTest {
+
+    @Test
+    public void testRate() throws Exception {
+        byte[] data = data(10000);
+        ThrottledPDVInputStream in = new ThrottledPDVInputStream(new ByteArrayPDVInputStream(data), 20000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        long start = System.nanoTime();
+        in.copyTo(out);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertArrayEquals(data, out.toByteArray());
+        // 10000 bytes at 20000 bytes/s
+        Assert.assertTrue("elapsed: " + elapsed, elapsed >= 450);
+        Assert.assertTrue("elapsed: " + elapsed, elapsed < 2000);
+    }
+
+    @Test
+    public void testCopyLength() throws Exception {
+        byte[] data = data(3000);
+        ThrottledPDVInputStream in = new ThrottledPDVInputStream(new ByteArrayPDVInputStream(data), 1000000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        in.copyTo(out, 2000);
+        Assert.assertArrayEquals(Arrays.copyOf(data, 2000), out.toByteArray());
+        Assert.assertEquals(1000, in.skipAll());
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testCopyLengthPastEnd() throws Exception {
+        ThrottledPDVInputStream in = new ThrottledPDVInputStream(new ByteArrayPDVInputStream(data(100)), 1000000);
+        try {
+            in.copyTo(new ByteArrayOutputStream(), 200);
+        } catch (IOException e) {
+            return; // expected
+        }
+        Assert.fail("Expecting exception");
+    }
+
+    @Test
+    public void testReadIsSliced() throws Exception {
+        // at most 1/20 s worth of bytes per read
+        ThrottledPDVInputStream in = new ThrottledPDVInputStream(new ByteArrayPDVInputStream(data(10000)), 20000);
+        Assert.assertEquals(1000, in.read(new byte[5000], 0, 5000));
+        Assert.assertEquals(1000, in.skip(5000));
+    }
+
+    @Test
+    public void testInterrupt() throws Exception {
+        ThrottledPDVInputStream in = new ThrottledPDVInputStream(new ByteArrayPDVInputStream(data(10000)), 100);
+        Thread.currentThread().interrupt();
+        try {
+            in.copyTo(new ByteArrayOutputStream());
+        } catch (InterruptedIOException e) {
+            Assert.assertTrue(Thread.interrupted());
+            return; // expected
+        }
+        Assert.fail("Expecting exception");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testZeroRate() {
+        new ThrottledPDVInputStream(new ByteArrayPDVInputStream(new byte[0]), 0);
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static class ByteArrayPDVInputStream extends PDVInputStream {
+        private final ByteArrayInputStream in;
+
+        ByteArrayPDVInputStream(byte[] data) {
+            this.in = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) {
+            return in.skip(n);
+        }
+
+        @Override
+        public Attributes readDataset(String tsuid) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void copyTo(OutputStream out, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void copyTo(OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long skipAll() {
+            return in.skip(Long.MAX_VALUE);
+        }
+    }
+}
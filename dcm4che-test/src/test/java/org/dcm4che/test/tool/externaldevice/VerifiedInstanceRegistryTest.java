@@ -0,0 +1,159 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * Version: MPL 1.1/GPL 2.0/LGPL 2.1
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ * http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ *
+ * The Original Code is part of dcm4che, an implementation of DICOM(TM) in
+ * Java(TM), hosted at https://github.com/gunterze/dcm4che.
+ *
+ * The Initial Developer of the Original Code is
+ * Agfa Healthcare.
+ * Portions created by the Initial Developer are Copyright (C) 2011
+ * the Initial Developer. All Rights Reserved.
+ *
+ * Contributor(s):
+ * See @authors listed below
+ *
+ * Alternatively, the contents of this file may be used under the terms of
+ * either the GNU General Public License Version 2 or later (the "GPL"), or
+ * the GNU Lesser General Public License Version 2.1 or later (the "LGPL"),
+ * in which case the provisions of the GPL or the LGPL are applicable instead
+ * of those above. If you wish to allow use of your version of this file only
+ * under the terms of either the GPL or the LGPL, and not to allow others to
+ * use your version of this file under the terms of the MPL, indicate your
+ * decision by deleting the provisions above and replace them with the notice
+ * and other provisions required by the GPL or the LGPL. If you do not delete
+ * the provisions above, a recipient may use your version of this file under
+ * the terms of any one of the MPL, the GPL or the LGPL.
+ *
+ * ***** END LICENSE BLOCK ***** */
+
+package org.dcm4che.test.tool.externaldevice;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link VerifiedInstanceRegistry} class.
+ */
+public class VerifiedInstanceRegistryTest {
+
+    private static final int SUCCESS = 0x0000;
+    private static final int NO_SUCH_OBJECT_INSTANCE = 0x0112;
+
+    @Test
+    public void testAlreadyVerified() throws Exception {
+        VerifiedInstanceRegistry registry = new VerifiedInstanceRegistry();
+        registry.put("1.1", SUCCESS);
+
+        Assert.assertTrue(registry.whenVerified(SUCCESS, "1.1").isDone());
+        Assert.assertEquals(Integer.valueOf(SUCCESS), registry.whenVerified("1.1").get());
+        registry.await(1, TimeUnit.MILLISECONDS, SUCCESS, "1.1");
+    }
+
+    @Test
+    public void testWaitsForExpectedStatus() throws Exception {
+        VerifiedInstanceRegistry registry = new VerifiedInstanceRegistry();
+        CompletableFuture<Void> success = registry.whenVerified(SUCCESS, "1.1", "1.2");
+        CompletableFuture<Void> any = registry.whenVerified(VerifiedInstanceRegistry.ANY_STATUS, "1.1");
+
+        registry.put("1.1", NO_SUCH_OBJECT_INSTANCE);
+        Assert.assertTrue(any.isDone());
+        Assert.assertFalse(success.isDone());
+
+        registry.put("1.1", SUCCESS);
+        Assert.assertFalse(success.isDone());
+
+        registry.putAll(Collections.singletonMap("1.2", SUCCESS));
+        Assert.assertTrue(success.isDone());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testTimeout() throws Exception {
+        VerifiedInstanceRegistry registry = new VerifiedInstanceRegistry();
+        registry.put("1.1", NO_SUCH_OBJECT_INSTANCE);
+        registry.await(10, TimeUnit.MILLISECONDS, SUCCESS, "1.1");
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final VerifiedInstanceRegistry registry = new VerifiedInstanceRegistry();
+        final int threads = 8;
+        final int perThread = 5000;
+        String[] iuids = new String[threads * perThread];
+        for (int i = 0; i < iuids.length; i++)
+            iuids[i] = "1.2." + i;
+        CompletableFuture<Void> all = registry.whenVerified(SUCCESS, iuids);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * perThread;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                        registry.put("1.2." + (offset + i), SUCCESS);
+                }
+            };
+            writers[t].start();
+        }
+        start.countDown();
+
+        all.get(10, TimeUnit.SECONDS);
+        for (Thread writer : writers)
+            writer.join();
+        Assert.assertEquals(iuids.length, registry.size());
+        Assert.assertEquals(iuids.length, registry.snapshot().size());
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        VerifiedInstanceRegistry registry = new VerifiedInstanceRegistry();
+        CompletableFuture<Void> pending = registry.whenVerified(SUCCESS, "1.1", "1.2");
+
+        registry.fail(Collections.singleton("1.1"), new IOException("no connection"));
+        Assert.assertTrue(pending.isCompletedExceptionally());
+        Assert.assertTrue(registry.whenVerified("1.1").isCompletedExceptionally());
+        try {
+            registry.await(1, TimeUnit.SECONDS, SUCCESS, "1.1");
+            Assert.fail("Expecting exception");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+
+        // a later report overrides the failure
+        registry.put("1.1", SUCCESS);
+        Assert.assertTrue(registry.whenVerified(SUCCESS, "1.1").isDone());
+        Assert.assertFalse(registry.whenVerified(SUCCESS, "1.1").isCompletedExceptionally());
+
+        registry.fail(Collections.singleton("1.2"), new IOException("no connection"));
+        registry.clear();
+        Assert.assertFalse(registry.whenVerified(SUCCESS, "1.2").isDone());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnlyView() {
+        new VerifiedInstanceRegistry().asMap().put("1.1", SUCCESS);
+    }
+}